@@ -0,0 +1,576 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded write-back cache of partition blocks in front of a {@link BlockDevice}.
+ * Writes only dirty the cached copy; dirty blocks reach the device when they are evicted
+ * or when the cache is flushed ({@link #force()}, {@link #close()}).
+ * Requests spanning a large share of the cache bypass it, so a single large file cannot flush
+ * the hot metadata out of memory.
+ * <p>
+ * The cache is split into stripes by block number, each with its own lock, frames and replacement order, so misses
+ * and write-backs of blocks in different stripes reach the device in parallel. Requests bypassing the cache don't
+ * hold any stripe during their I/O.
+ * <p>
+ * Asynchronous requests on blocks that aren't cached go straight to the device; those touching cached blocks are
+ * served by the cache at once. Until an asynchronous write completes, reads of its blocks don't cache them, so a
+ * copy read before the write lands can't outlive it.
+ */
+public class BlockCache implements BlockDevice {
+	/**
+	 * Replacement policies supported by the cache.
+	 */
+	public enum Policy {
+		CLOCK,  // second chance: a referenced block survives one sweep of the clock hand
+		LRU     // least recently used block is evicted
+	}
+
+	private static final int stripeBlocks = 8;      // consecutive blocks kept in the same stripe
+	private static final int maxStripes = 16;
+	private static final int minStripeFrames = 32;
+
+	private final BlockDevice backing;
+	private final Policy policy;
+	private final int blockSize;
+	private final int capacity;
+	private final int bypassBlocks;     // requests covering at least this many blocks skip the cache
+	private final Stripe[] stripes;
+
+	/**
+	 * Creates a cache in front of a device.
+	 *
+	 * @param backing The device holding the blocks.
+	 * @param blockSize The size of a block in bytes.
+	 * @param capacity The maximum number of cached blocks.
+	 * @param policy The replacement policy.
+	 */
+	public BlockCache(BlockDevice backing, int blockSize, int capacity, Policy policy) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("Cache capacity must be positive");
+		this.backing = backing;
+		this.policy = policy;
+		this.blockSize = blockSize;
+		this.capacity = capacity;
+		this.bypassBlocks = Math.max(2, capacity / 4);
+		this.stripes = new Stripe[Math.clamp(capacity / minStripeFrames, 1, maxStripes)];
+		for (int i = 0; i < stripes.length; i++)
+			stripes[i] = new Stripe(i, capacity / stripes.length + (i < capacity % stripes.length ? 1 : 0));
+	}
+
+	@Override
+	public void read(long position, byte[] dest, int offset, int length) throws IOException {
+		if (spannedBlocks(position, length) >= bypassBlocks) {
+			// Large read: fetch it in one I/O, then overlay the cached copies which may be newer
+			long[] writeBacks = new long[stripes.length];
+			for (Stripe stripe : stripes)
+				writeBacks[stripe.id] = stripe.getWriteBacks();
+			backing.read(position, dest, offset, length);
+			while (length > 0) {
+				int chunk = segment(position, length);
+				Stripe stripe = stripeOf(position);
+				stripe.overlay(position, dest, offset, chunk, writeBacks[stripe.id]);
+				position += chunk;
+				offset += chunk;
+				length -= chunk;
+			}
+			return;
+		}
+
+		while (length > 0) {
+			int chunk = segment(position, length);
+			stripeOf(position).read(position, dest, offset, chunk);
+			position += chunk;
+			offset += chunk;
+			length -= chunk;
+		}
+	}
+
+	@Override
+	public void write(long position, byte[] src, int offset, int length) throws IOException {
+		if (spannedBlocks(position, length) >= bypassBlocks) {
+			// Large write: refresh the cached copies, then send it straight to the device
+			for (long from = position; from < position + length; ) {
+				int chunk = segment(from, (int) (position + length - from));
+				stripeOf(from).startWrite(from, src, offset + (int) (from - position), chunk);
+				from += chunk;
+			}
+			try {
+				backing.write(position, src, offset, length);
+			} finally {
+				for (long from = position; from < position + length; ) {
+					int chunk = segment(from, (int) (position + length - from));
+					stripeOf(from).endWrite(from, src, offset + (int) (from - position), chunk);
+					from += chunk;
+				}
+			}
+			return;
+		}
+
+		while (length > 0) {
+			int chunk = segment(position, length);
+			stripeOf(position).write(position, src, offset, chunk);
+			position += chunk;
+			offset += chunk;
+			length -= chunk;
+		}
+	}
+
+	@Override
+	public CompletableFuture<Void> readAsync(long position, byte[] dest, int offset, int length) {
+		if (anyCached(position, length))
+			return BlockDevice.super.readAsync(position, dest, offset, length);
+		return backing.readAsync(position, dest, offset, length);
+	}
+
+	@Override
+	public CompletableFuture<Void> writeAsync(long position, byte[] src, int offset, int length) {
+		// Keep the blocks out of the cache until the device holds the new content
+		long first = position / blockSize, last = first + spannedBlocks(position, length);
+		for (long block = first; block < last; block++)
+			stripeOf(block * blockSize).startWriting(block);
+		if (anyCached(position, length)) {
+			for (long block = first; block < last; block++)
+				stripeOf(block * blockSize).endWriting(block);
+			return BlockDevice.super.writeAsync(position, src, offset, length);
+		}
+		return backing.writeAsync(position, src, offset, length).whenComplete((done, e) -> {
+			for (long block = first; block < last; block++)
+				stripeOf(block * blockSize).endWriting(block);
+		});
+	}
+
+	/**
+	 * Writes every dirty block back to the device, coalescing adjacent blocks into single writes.
+	 *
+	 * @throws IOException If there is an issue accessing the device.
+	 */
+	public void flush() throws IOException {
+		// Every stripe is held, so that adjacent blocks of different stripes are written together
+		for (Stripe stripe : stripes)
+			stripe.lock.lock();
+		try {
+			List<long[]> dirtyFrames = new ArrayList<>();  // (block, stripe, frame)
+			for (Stripe stripe : stripes)
+				for (int frame = 0; frame < stripe.used; frame++)
+					if (stripe.dirty[frame])
+						dirtyFrames.add(new long[]{stripe.tags[frame], stripe.id, frame});
+			dirtyFrames.sort((a, b) -> Long.compare(a[0], b[0]));
+
+			int i = 0;
+			while (i < dirtyFrames.size()) {
+				int j = i + 1;
+				while (j < dirtyFrames.size() && dirtyFrames.get(j)[0] == dirtyFrames.get(j - 1)[0] + 1)
+					j++;
+				byte[] run = new byte[(j - i) * blockSize];
+				for (int k = i; k < j; k++) {
+					Stripe stripe = stripes[(int) dirtyFrames.get(k)[1]];
+					int frame = (int) dirtyFrames.get(k)[2];
+					System.arraycopy(stripe.frames[frame], 0, run, (k - i) * blockSize, blockSize);
+					stripe.dirty[frame] = false;
+					stripe.writeBacks++;
+				}
+				backing.write(dirtyFrames.get(i)[0] * blockSize, run, 0, run.length);
+				i = j;
+			}
+		} finally {
+			for (Stripe stripe : stripes)
+				stripe.lock.unlock();
+		}
+	}
+
+	@Override
+	public void force() throws IOException {
+		flush();
+		backing.force();
+	}
+
+	@Override
+	public long size() {
+		return backing.size();
+	}
+
+	@Override
+	public void close() throws IOException {
+		flush();
+		backing.close();
+	}
+
+	public BlockDevice getBacking() {
+		return backing;
+	}
+
+	public long getHits() {
+		long hits = 0;
+		for (Stripe stripe : stripes)
+			hits += stripe.getHits();
+		return hits;
+	}
+
+	public long getMisses() {
+		long misses = 0;
+		for (Stripe stripe : stripes)
+			misses += stripe.getMisses();
+		return misses;
+	}
+
+	public long getEvictions() {
+		long evictions = 0;
+		for (Stripe stripe : stripes)
+			evictions += stripe.getEvictions();
+		return evictions;
+	}
+
+	public long getWriteBacks() {
+		long writeBacks = 0;
+		for (Stripe stripe : stripes)
+			writeBacks += stripe.getWriteBacks();
+		return writeBacks;
+	}
+
+	@Override
+	public String toString() {
+		long hits = getHits(), misses = getMisses(), lookups = hits + misses;
+		return "Block cache (%s, %d blocks): %d hits, %d misses (%.1f%% hit rate), %d evictions, %d write-backs"
+				.formatted(policy, capacity, hits, misses, lookups == 0 ? 0.0 : 100.0 * hits / lookups, getEvictions(), getWriteBacks());
+	}
+
+	private long spannedBlocks(long position, int length) {
+		if (length == 0)
+			return 0;
+		return (position + length - 1) / blockSize - position / blockSize + 1;
+	}
+
+	/**
+	 * @return The stripe caching the block holding a position.
+	 */
+	private Stripe stripeOf(long position) {
+		return stripes[(int) (position / blockSize / stripeBlocks % stripes.length)];
+	}
+
+	/**
+	 * @return The length of the part of a range that falls in the stripe of its first byte.
+	 */
+	private int segment(long position, int length) {
+		long groupSize = (long) stripeBlocks * blockSize;
+		return (int) Math.min(length, (position / groupSize + 1) * groupSize - position);
+	}
+
+	private boolean anyCached(long position, int length) {
+		long first = position / blockSize, last = first + spannedBlocks(position, length);
+		for (long block = first; block < last; block++)
+			if (stripeOf(block * blockSize).isCached(block))
+				return true;
+		return false;
+	}
+
+	/**
+	 * A share of the cache: the frames of the blocks of its stripe, and their replacement order.
+	 * Its methods are given ranges within its stripe and hold its lock, including during their device I/O.
+	 */
+	private final class Stripe {
+		private final int id;
+		private final ReentrantLock lock = new ReentrantLock();
+		private final byte[][] frames;
+		private final long[] tags;          // block number held by each frame
+		private final boolean[] dirty;
+		private final boolean[] referenced; // CLOCK reference bits
+		private final int[] newer, older;   // LRU list links, -1 terminated
+		private final HashMap<Long, Integer> index = new HashMap<>();
+		private final HashMap<Long, Integer> writing = new HashMap<>();  // asynchronous writes in flight per block
+		private int used = 0;               // frames handed out so far
+		private int hand = 0;               // CLOCK hand
+		private int mostRecent = -1, leastRecent = -1;
+		private long hits, misses, evictions, writeBacks;
+
+		Stripe(int id, int capacity) {
+			this.id = id;
+			this.frames = new byte[capacity][];
+			this.tags = new long[capacity];
+			this.dirty = new boolean[capacity];
+			this.referenced = new boolean[capacity];
+			this.newer = new int[capacity];
+			this.older = new int[capacity];
+		}
+
+		void read(long position, byte[] dest, int offset, int length) throws IOException {
+			lock.lock();
+			try {
+				while (length > 0) {
+					long block = position / blockSize;
+					int inBlock = (int) (position % blockSize);
+					Integer frame = index.get(block);
+					int chunk;
+					if (frame != null) {
+						hits++;
+						touch(frame);
+						chunk = Math.min(length, blockSize - inBlock);
+						System.arraycopy(frames[frame], inBlock, dest, offset, chunk);
+					} else {
+						// Fetch the run of consecutive missing blocks with a single read
+						long lastBlock = (position + length - 1) / blockSize;
+						long end = block + 1;
+						while (end <= lastBlock && !index.containsKey(end))
+							end++;
+						int runBlocks = (int) (end - block);
+						byte[] run = new byte[runBlocks * blockSize];
+						backing.read(block * blockSize, run, 0, run.length);
+						misses += runBlocks;
+						for (int i = 0; i < runBlocks; i++)
+							if (!writing.containsKey(block + i))
+								System.arraycopy(run, i * blockSize, frames[install(block + i)], 0, blockSize);
+						chunk = Math.min(length, run.length - inBlock);
+						System.arraycopy(run, inBlock, dest, offset, chunk);
+					}
+					position += chunk;
+					offset += chunk;
+					length -= chunk;
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		void write(long position, byte[] src, int offset, int length) throws IOException {
+			lock.lock();
+			try {
+				while (length > 0) {
+					long block = position / blockSize;
+					int inBlock = (int) (position % blockSize);
+					int chunk = Math.min(length, blockSize - inBlock);
+					Integer frame = index.get(block);
+					if (frame != null) {
+						hits++;
+						touch(frame);
+					} else if (chunk < blockSize) {
+						// Partial write of an uncached block: the rest of the block must be loaded first
+						misses++;
+						frame = install(block);
+						backing.read(block * blockSize, frames[frame], 0, blockSize);
+					} else {
+						misses++;
+						frame = install(block);
+					}
+					System.arraycopy(src, offset, frames[frame], inBlock, chunk);
+					dirty[frame] = true;
+					position += chunk;
+					offset += chunk;
+					length -= chunk;
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Copies the cached blocks intersecting a range over data just read from the device.
+		 * If the stripe wrote blocks back since the read started, one of them may have left the cache
+		 * after the device returned its previous content, so the range is read again first.
+		 *
+		 * @param writeBacks The write-backs of the stripe before the read.
+		 */
+		void overlay(long position, byte[] dest, int offset, int length, long writeBacks) throws IOException {
+			lock.lock();
+			try {
+				if (this.writeBacks != writeBacks)
+					backing.read(position, dest, offset, length);
+				for (long block = position / blockSize; block * blockSize < position + length; block++) {
+					Integer frame = index.get(block);
+					if (frame == null)
+						continue;
+					long from = Math.max(position, block * blockSize);
+					long to = Math.min(position + length, (block + 1) * blockSize);
+					System.arraycopy(frames[frame], (int) (from - block * blockSize), dest, offset + (int) (from - position), (int) (to - from));
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Updates the cached blocks intersecting a range about to be written to the device, and keeps the blocks
+		 * of the range out of the cache until {@link #endWrite}. Dirty copies stay dirty: written back meanwhile,
+		 * they hold the new content too.
+		 */
+		void startWrite(long position, byte[] src, int offset, int length) {
+			lock.lock();
+			try {
+				for (long block = position / blockSize; block * blockSize < position + length; block++) {
+					writing.merge(block, 1, Integer::sum);
+					Integer frame = index.get(block);
+					if (frame == null)
+						continue;
+					long from = Math.max(position, block * blockSize);
+					long to = Math.min(position + length, (block + 1) * blockSize);
+					System.arraycopy(src, offset + (int) (from - position), frames[frame], (int) (from - block * blockSize), (int) (to - from));
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Ends a write started with {@link #startWrite} once it reached the device. The copies of the blocks it
+		 * covered whole are clean, unless they were written again meanwhile.
+		 */
+		void endWrite(long position, byte[] src, int offset, int length) {
+			lock.lock();
+			try {
+				for (long block = position / blockSize; block * blockSize < position + length; block++) {
+					writing.computeIfPresent(block, (key, count) -> count == 1 ? null : count - 1);
+					Integer frame = index.get(block);
+					long from = block * blockSize;
+					if (frame == null || from < position || from + blockSize > position + length)
+						continue;
+					int at = offset + (int) (from - position);
+					if (Arrays.equals(frames[frame], 0, blockSize, src, at, at + blockSize))
+						dirty[frame] = false;
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		boolean isCached(long block) {
+			lock.lock();
+			try {
+				return index.containsKey(block);
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		void startWriting(long block) {
+			lock.lock();
+			try {
+				writing.merge(block, 1, Integer::sum);
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		void endWriting(long block) {
+			lock.lock();
+			try {
+				writing.computeIfPresent(block, (key, count) -> count == 1 ? null : count - 1);
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		long getHits() {
+			lock.lock();
+			try {
+				return hits;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		long getMisses() {
+			lock.lock();
+			try {
+				return misses;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		long getEvictions() {
+			lock.lock();
+			try {
+				return evictions;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		long getWriteBacks() {
+			lock.lock();
+			try {
+				return writeBacks;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Assigns a frame to a block, evicting another block if the stripe is full.
+		 *
+		 * @return The frame now holding the block (its content must be filled by the caller).
+		 */
+		private int install(long block) throws IOException {
+			int frame;
+			if (used < frames.length) {
+				frame = used++;
+				frames[frame] = new byte[blockSize];
+			} else {
+				frame = victim();
+				if (dirty[frame]) {
+					backing.write(tags[frame] * blockSize, frames[frame], 0, blockSize);
+					writeBacks++;
+				}
+				index.remove(tags[frame]);
+				evictions++;
+				if (policy == Policy.LRU)
+					unlink(frame);
+			}
+			tags[frame] = block;
+			dirty[frame] = false;
+			index.put(block, frame);
+			if (policy == Policy.LRU)
+				pushMostRecent(frame);
+			else
+				referenced[frame] = true;
+			return frame;
+		}
+
+		private int victim() {
+			if (policy == Policy.LRU)
+				return leastRecent;
+			while (true) {
+				int frame = hand;
+				hand = (hand + 1) % frames.length;
+				if (!referenced[frame])
+					return frame;
+				referenced[frame] = false;
+			}
+		}
+
+		private void touch(int frame) {
+			if (policy == Policy.LRU) {
+				if (frame != mostRecent) {
+					unlink(frame);
+					pushMostRecent(frame);
+				}
+			} else {
+				referenced[frame] = true;
+			}
+		}
+
+		private void unlink(int frame) {
+			if (newer[frame] != -1)
+				older[newer[frame]] = older[frame];
+			else
+				mostRecent = older[frame];
+			if (older[frame] != -1)
+				newer[older[frame]] = newer[frame];
+			else
+				leastRecent = newer[frame];
+		}
+
+		private void pushMostRecent(int frame) {
+			newer[frame] = -1;
+			older[frame] = mostRecent;
+			if (mostRecent != -1)
+				newer[mostRecent] = frame;
+			mostRecent = frame;
+			if (leastRecent == -1)
+				leastRecent = frame;
+		}
+	}
+}
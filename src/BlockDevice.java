@@ -0,0 +1,93 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Represents the storage behind a virtual partition.
+ * Positions are absolute byte offsets into the partition file.
+ */
+public interface BlockDevice extends Closeable {
+	/**
+	 * Opens the storage of a partition file.
+	 *
+	 * @param file The partition file, which must already have its final length.
+	 * @param memoryMapped true to serve I/O from a memory mapping of the file, false to use file I/O.
+	 * @return The opened device.
+	 * @throws IOException If the file cannot be opened or mapped.
+	 */
+	static BlockDevice open(File file, boolean memoryMapped) throws IOException {
+		return memoryMapped ? new MappedBlockDevice(file) : new FileBlockDevice(file);
+	}
+
+	/**
+	 * Reads bytes from the device.
+	 *
+	 * @param position The offset of the first byte to read.
+	 * @param dest The array receiving the data.
+	 * @param offset The offset in {@code dest} where the data is stored.
+	 * @param length The number of bytes to read.
+	 * @throws IOException If there is an issue accessing the device.
+	 */
+	void read(long position, byte[] dest, int offset, int length) throws IOException;
+
+	/**
+	 * Writes bytes to the device.
+	 *
+	 * @param position The offset of the first byte to write.
+	 * @param src The array holding the data.
+	 * @param offset The offset in {@code src} of the first byte to write.
+	 * @param length The number of bytes to write.
+	 * @throws IOException If there is an issue accessing the device.
+	 */
+	void write(long position, byte[] src, int offset, int length) throws IOException;
+
+	/**
+	 * Reads bytes from the device without waiting for them. Devices without asynchronous I/O read them at once.
+	 *
+	 * @param position The offset of the first byte to read.
+	 * @param dest The array receiving the data, which must not be used until the read completes.
+	 * @param offset The offset in {@code dest} where the data is stored.
+	 * @param length The number of bytes to read.
+	 * @return A future completed once the data is in {@code dest}.
+	 */
+	default CompletableFuture<Void> readAsync(long position, byte[] dest, int offset, int length) {
+		try {
+			read(position, dest, offset, length);
+			return CompletableFuture.completedFuture(null);
+		} catch (IOException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+	}
+
+	/**
+	 * Writes bytes to the device without waiting for them. Devices without asynchronous I/O write them at once.
+	 * The write is made durable by a {@link #force()} called after it completed.
+	 *
+	 * @param position The offset of the first byte to write.
+	 * @param src The array holding the data, which must not be modified until the write completes.
+	 * @param offset The offset in {@code src} of the first byte to write.
+	 * @param length The number of bytes to write.
+	 * @return A future completed once the data is written.
+	 */
+	default CompletableFuture<Void> writeAsync(long position, byte[] src, int offset, int length) {
+		try {
+			write(position, src, offset, length);
+			return CompletableFuture.completedFuture(null);
+		} catch (IOException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+	}
+
+	/**
+	 * Makes every write issued so far durable.
+	 *
+	 * @throws IOException If there is an issue accessing the device.
+	 */
+	void force() throws IOException;
+
+	/**
+	 * @return The size of the device in bytes.
+	 */
+	long size();
+}
@@ -0,0 +1,88 @@
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Maps the blocks of a file, in file order, to their physical data blocks.
+ * <p>
+ * The map is filled lazily: looking up block K follows the file's chain (through its extents, or through
+ * the FAT for files written before extents were tracked) only as far as K and remembers every block seen,
+ * so later lookups up to K take constant time. An index describes the chain as it was when it was built;
+ * the file drops it whenever its chain changes (see {@link vFile#setExtents(List)}).
+ */
+public class BlockIndex {
+	private final FileAllocationTable fat;
+	private final List<Extent> extents;     // null if the chain is followed through the FAT
+	private int[] blocks;                   // physical block of each file block seen so far
+	private int known = 0;                  // number of entries of blocks filled
+	private int extent = 0, inExtent = 0;   // position in the extents of the next block to fill
+	private int next;                       // next block of the chain when following the FAT
+
+	/**
+	 * Creates an empty index over the chain of a file.
+	 *
+	 * @param fat The File Allocation Table of the partition.
+	 * @param file The file whose chain is indexed.
+	 */
+	public BlockIndex(FileAllocationTable fat, vFile file) {
+		this.fat = fat;
+		this.extents = file.getExtents();
+		this.blocks = new int[Math.max(1, file.getNumOfBlocks())];
+		this.next = file.getStartBlock();
+	}
+
+	/**
+	 * Gets the physical data block holding a block of the file.
+	 *
+	 * @param index The index of the block in the file.
+	 * @return The data block, or -1 if the chain is shorter.
+	 */
+	public int physical(int index) {
+		return fill(index) ? blocks[index] : -1;
+	}
+
+	/**
+	 * Counts the physically consecutive blocks starting at a block of the file, which can be accessed with one I/O.
+	 *
+	 * @param index The index of the first block in the file.
+	 * @param max The maximum count of interest.
+	 * @return The number of consecutive blocks, at most {@code max}; 0 if the chain is shorter than {@code index}.
+	 */
+	public int runLength(int index, int max) {
+		if (!fill(index))
+			return 0;
+		int length = 1;
+		while (length < max && fill(index + length) && blocks[index + length] == blocks[index] + length)
+			length++;
+		return length;
+	}
+
+	/**
+	 * Follows the chain until the given block of the file is known.
+	 *
+	 * @return false if the chain ends before it.
+	 */
+	private boolean fill(int index) {
+		while (known <= index) {
+			int block;
+			if (extents != null) {
+				if (extent == extents.size())
+					return false;
+				Extent run = extents.get(extent);
+				block = run.start() + inExtent;
+				if (++inExtent == run.length()) {
+					extent++;
+					inExtent = 0;
+				}
+			} else {
+				if (next < 0)
+					return false;
+				block = next;
+				next = fat.getNextBlock(block);
+			}
+			if (known == blocks.length)
+				blocks = Arrays.copyOf(blocks, blocks.length * 2);
+			blocks[known++] = block;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,21 @@
+import java.io.Serializable;
+
+/**
+ * Represents a run of physically contiguous data blocks.
+ *
+ * @param start  Index of the first block of the run (relative to the first data block).
+ * @param length Number of blocks in the run.
+ */
+public record Extent(int start, int length) implements Serializable {
+	public Extent {
+		if (start < 0 || length <= 0)
+			throw new IllegalArgumentException("Invalid extent [%d, +%d]".formatted(start, length));
+	}
+
+	/**
+	 * @return The index of the block following the last block of the run.
+	 */
+	public int end() {
+		return start + length;
+	}
+}
@@ -1,11 +1,68 @@
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
+import java.io.Serial;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * Represents the File Allocation Table (FAT) for tracking block allocation in a virtual partition.
  * The FAT is a data structure that keeps track of which blocks are allocated or free.
+ * <p>
+ * Chains are stored in a primitive {@code int[]} where every entry holds the index of the next block,
+ * {@link #END_OF_CHAIN} for the last block of a chain or {@link #FREE} for an unallocated block.
+ * Allocation state is mirrored in a word-packed bitmap that is scanned with a roving next-fit cursor,
+ * so allocating and deallocating a block are amortized O(1).
+ * <p>
+ * On disk, every entry is a fixed 4-byte little-endian slot at offset {@code 4 * blockIndex} of the FAT region,
+ * so a page of {@link #entriesPerPage} entries fills exactly one block and changed entries are written in place.
+ * Java serialization is only used to read the FAT of partitions written before this format.
+ * <p>
+ * A block may be shared by the chains of several files (reflink copies). Its extra references are counted
+ * in a sparse map, and releasing a shared block drops one reference instead of freeing it. The counts are
+ * stored in a chain of their own by the partition (see {@link #encodeReferences()}).
+ * <p>
+ * Freed data blocks may be retired instead of deallocated: their entry is freed at once, but they are only
+ * handed out again once a {@link TrimWorker} has zeroed them and returned them through {@link #reclaim(Extent)}.
+ * <p>
+ * The table is shared by every thread working on the partition: its methods are synchronized, except
+ * {@link #reclaim(Extent)}, which only queues the run for the next allocation.
  */
 public class FileAllocationTable implements Serializable {
-	public final Integer[] blocks;
+	@Serial
+	private static final long serialVersionUID = 414930208548359138L;
+	// Keep the on-disk form of existing partitions: a boxed array where null marks a free block
+	@Serial
+	private static final ObjectStreamField[] serialPersistentFields = {
+			new ObjectStreamField("blocks", Integer[].class)
+	};
+	// Sentinel values stored in the table
+	public static final int END_OF_CHAIN = -1;
+	public static final int FREE = -2;
+	// On-disk size of an entry, and number of entries per page (one block worth of entries)
+	public static final int bytesPerEntry = 4;
+	public static final int entriesPerPage = vPartition.blockSize / bytesPerEntry;
+	private int[] blocks;
+	transient private long[] usedMap;   // one bit per block, set when the block is allocated
+	transient private int freeBlocks;
+	transient private int cursor;       // next-fit position, where the next search starts
+	transient private BitSet dirtyPages; // pages holding entries changed since the last save
+	transient private HashMap<Integer, Integer> references;  // extra references of shared blocks
+	transient private boolean referencesDirty;
+	// Retired blocks: freed in the table but not allocatable until zeroed, and the zeroed runs not yet freed
+	transient private int retiredBlocks;
+	transient private ConcurrentLinkedQueue<Extent> reclaimed;
+	transient private Runnable reclaimer;
+	private static final int referencesMagic = 0x56524546;  // "VREF"
 
 	/**
 	 * Creates a new FileAllocationTable for a specified number of blocks.
@@ -14,7 +71,25 @@ public class FileAllocationTable implements Serializable {
 	 * @param numBlocks The number of blocks on the partition defined for data saving.
 	 */
 	public FileAllocationTable(int numBlocks) {
-		blocks = new Integer[numBlocks];
+		blocks = new int[numBlocks];
+		Arrays.fill(blocks, FREE);
+		rebuildFreeMap();
+		// A new table has never been saved
+		dirtyPages.set(0, Math.ceilDiv(numBlocks, entriesPerPage));
+	}
+
+	/**
+	 * Loads a FileAllocationTable from its on-disk binary form.
+	 *
+	 * @param region The content of the FAT region.
+	 * @param numBlocks The number of blocks on the partition defined for data saving.
+	 */
+	public FileAllocationTable(byte[] region, int numBlocks) {
+		if ((long) numBlocks * bytesPerEntry > region.length)
+			throw new IllegalArgumentException("FAT region too small for %d entries".formatted(numBlocks));
+		blocks = new int[numBlocks];
+		ByteBuffer.wrap(region).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(blocks);
+		rebuildFreeMap();
 	}
 
 	/**
@@ -24,46 +99,344 @@ public class FileAllocationTable implements Serializable {
 	 */
 	public FileAllocationTable(FileAllocationTable fat) {
 		this.blocks = fat.blocks;
+		this.usedMap = fat.usedMap;
+		this.freeBlocks = fat.freeBlocks;
+		this.cursor = fat.cursor;
+		this.dirtyPages = fat.dirtyPages;
+		this.references = fat.references;
+		this.referencesDirty = fat.referencesDirty;
+		this.retiredBlocks = fat.retiredBlocks;
+		this.reclaimed = fat.reclaimed;
 	}
 
 	/**
 	 * Allocates a new block in the FAT.
+	 * The search starts at the block following the last allocation and wraps around once.
 	 *
-	 * @return The index of the allocated block, or -1 if no block is available.
+	 * @return The index of the allocated block.
 	 * @throws RuntimeException: if no deallocated block is found.
 	 */
-	public int allocateBlock() {
-		for (int i = 0; i < blocks.length; i++) {
-			if (blocks[i] == null) {
-				blocks[i] = -1;
-				return i;
+	public synchronized int allocateBlock() {
+		ensureFree(1);
+		if (freeBlocks == 0)
+			throw new RuntimeException("Couldn't allocate more space. Partition is full.");
+
+		int words = usedMap.length;
+		int word = cursor >>> 6;
+		// Mask out the bits below the cursor in the first word, they're revisited after wrapping
+		long candidates = ~usedMap[word] & (-1L << (cursor & 63));
+		for (int i = 0; i <= words; i++) {
+			if (candidates != 0) {
+				int index = (word << 6) + Long.numberOfTrailingZeros(candidates);
+				if (index < blocks.length) {
+					markUsed(index);
+					set(index, END_OF_CHAIN);
+					cursor = index + 1 == blocks.length ? 0 : index + 1;
+					return index;
+				}
 			}
+			word = word + 1 == words ? 0 : word + 1;
+			candidates = ~usedMap[word];
 		}
 		throw new RuntimeException("Couldn't allocate more space. Partition is full.");
 	}
 
+	/**
+	 * Allocates enough blocks for a payload as a list of contiguous runs (extents).
+	 * A single run covering the whole request is preferred; when space is too fragmented for that,
+	 * the free runs following the cursor are taken one after another.
+	 * All allocated blocks are linked into one chain in the order of the returned extents.
+	 *
+	 * @param numBlocks The total number of blocks to allocate.
+	 * @return The allocated extents, in chain order.
+	 * @throws RuntimeException: if there are not enough free blocks.
+	 */
+	public synchronized List<Extent> allocateExtents(int numBlocks) {
+		if (numBlocks <= 0)
+			return List.of();
+		ensureFree(numBlocks);
+		if (numBlocks > freeBlocks)
+			throw new RuntimeException("Couldn't allocate more space. Partition is full.");
+
+		List<Extent> extents = new ArrayList<>();
+		int start = findRun(numBlocks);
+		if (start >= 0) {
+			extents.add(claimRun(start, numBlocks));
+		} else {
+			// Fragmented: chain the free runs in next-fit order
+			int remaining = numBlocks;
+			int position = cursor;
+			while (remaining > 0) {
+				int runStart = nextFree(position);
+				if (runStart == blocks.length)
+					runStart = nextFree(0);
+				int runLength = Math.min(remaining, nextUsed(runStart) - runStart);
+				extents.add(claimRun(runStart, runLength));
+				remaining -= runLength;
+				position = runStart + runLength;
+			}
+		}
+
+		// Link the extents together into a single chain
+		for (int i = 0; i < extents.size() - 1; i++)
+			set(extents.get(i).end() - 1, extents.get(i + 1).start());
+		return extents;
+	}
+
+	/**
+	 * Finds a free run of at least the given length, starting at the cursor and wrapping around once.
+	 *
+	 * @param length The required run length.
+	 * @return The first block of the run, or -1 if there is no such run.
+	 */
+	private int findRun(int length) {
+		int position = cursor;
+		boolean wrapped = false;
+		while (true) {
+			int runStart = nextFree(position);
+			if (runStart == blocks.length || (wrapped && runStart >= cursor)) {
+				if (wrapped)
+					return -1;
+				wrapped = true;
+				position = 0;
+				continue;
+			}
+			int runEnd = nextUsed(runStart);
+			if (runEnd - runStart >= length)
+				return runStart;
+			position = runEnd;
+		}
+	}
+
+	/**
+	 * Marks a run of free blocks as allocated and links it internally.
+	 */
+	private Extent claimRun(int start, int length) {
+		for (int i = start; i < start + length; i++) {
+			markUsed(i);
+			blocks[i] = i + 1;
+		}
+		blocks[start + length - 1] = END_OF_CHAIN;
+		dirtyPages.set(start / entriesPerPage, (start + length - 1) / entriesPerPage + 1);
+		cursor = start + length == blocks.length ? 0 : start + length;
+		return new Extent(start, length);
+	}
+
+	/**
+	 * @return The first free block at or after {@code from}, or the table length if there is none.
+	 */
+	private int nextFree(int from) {
+		if (from >= blocks.length)
+			return blocks.length;
+		int word = from >>> 6;
+		long candidates = ~usedMap[word] & (-1L << (from & 63));
+		while (candidates == 0) {
+			if (++word == usedMap.length)
+				return blocks.length;
+			candidates = ~usedMap[word];
+		}
+		return Math.min(blocks.length, (word << 6) + Long.numberOfTrailingZeros(candidates));
+	}
+
+	/**
+	 * @return The first allocated block at or after {@code from}, or the table length if there is none.
+	 */
+	private int nextUsed(int from) {
+		if (from >= blocks.length)
+			return blocks.length;
+		int word = from >>> 6;
+		long candidates = usedMap[word] & (-1L << (from & 63));
+		while (candidates == 0) {
+			if (++word == usedMap.length)
+				return blocks.length;
+			candidates = usedMap[word];
+		}
+		return Math.min(blocks.length, (word << 6) + Long.numberOfTrailingZeros(candidates));
+	}
+
 	/**
 	 * Deallocates a block in the FAT.
 	 *
 	 * @param blockIndex The index of the block to deallocate.
 	 */
-	public void deallocateBlock(int blockIndex) {
-		if (blockIndex >= 0 && blockIndex < blocks.length)
-			blocks[blockIndex] = null;
+	public synchronized void deallocateBlock(int blockIndex) {
+		if (blockIndex >= 0 && blockIndex < blocks.length && blocks[blockIndex] != FREE) {
+			set(blockIndex, FREE);
+			usedMap[blockIndex >>> 6] &= ~(1L << blockIndex);
+			freeBlocks++;
+		}
+	}
+
+	/**
+	 * Retires a block: its entry is freed, but the block isn't allocated again until it's zeroed and reclaimed.
+	 *
+	 * @param blockIndex The index of the block to retire.
+	 */
+	public synchronized void retireBlock(int blockIndex) {
+		if (blockIndex >= 0 && blockIndex < blocks.length && blocks[blockIndex] != FREE) {
+			set(blockIndex, FREE);
+			retiredBlocks++;
+		}
+	}
+
+	/**
+	 * Returns a run of retired blocks once they are zeroed; they become free with the next allocation.
+	 * May be called from any thread.
+	 *
+	 * @param run The zeroed blocks.
+	 */
+	public void reclaim(Extent run) {
+		reclaimed.add(run);
+	}
+
+	/**
+	 * Sets the action run when an allocation lacks free blocks while blocks are retired. It's expected to
+	 * zero the retired blocks and {@link #reclaim(Extent)} them before returning.
+	 *
+	 * @param reclaimer The action, or null to let such allocations fail.
+	 */
+	public synchronized void setReclaimer(Runnable reclaimer) {
+		this.reclaimer = reclaimer;
+	}
+
+	/**
+	 * @return The number of retired blocks not reclaimed yet.
+	 */
+	public synchronized int getRetiredBlocks() {
+		return retiredBlocks;
+	}
+
+	/**
+	 * Frees the reclaimed blocks, and waits for the retired ones if fewer than the given number of blocks are free.
+	 */
+	private void ensureFree(int numBlocks) {
+		drainReclaimed();
+		if (freeBlocks < numBlocks && retiredBlocks > 0 && reclaimer != null) {
+			reclaimer.run();
+			drainReclaimed();
+		}
+	}
+
+	private void drainReclaimed() {
+		Extent run;
+		while ((run = reclaimed.poll()) != null) {
+			for (int i = run.start(); i < run.end(); i++) {
+				usedMap[i >>> 6] &= ~(1L << i);
+				freeBlocks++;
+			}
+			retiredBlocks -= run.length();
+		}
+	}
+
+	/**
+	 * Adds a reference to a block, now shared by one more chain.
+	 *
+	 * @param blockIndex The index of the shared block.
+	 */
+	public synchronized void shareBlock(int blockIndex) {
+		if (!isAllocated(blockIndex))
+			throw new IllegalArgumentException("Block %d is not allocated".formatted(blockIndex));
+		references.merge(blockIndex, 1, Integer::sum);
+		referencesDirty = true;
+	}
+
+	/**
+	 * Drops a reference to a block: a shared block loses one reference, any other block is deallocated.
+	 *
+	 * @param blockIndex The index of the block.
+	 * @return true if the block was deallocated.
+	 */
+	public synchronized boolean releaseBlock(int blockIndex) {
+		Integer extra = references.get(blockIndex);
+		if (extra == null) {
+			deallocateBlock(blockIndex);
+			return true;
+		}
+		if (extra == 1)
+			references.remove(blockIndex);
+		else
+			references.put(blockIndex, extra - 1);
+		referencesDirty = true;
+		return false;
+	}
+
+	/**
+	 * @return true if the block belongs to more than one chain.
+	 */
+	public synchronized boolean isShared(int blockIndex) {
+		return references.containsKey(blockIndex);
+	}
+
+	/**
+	 * @return The number of blocks belonging to more than one chain.
+	 */
+	public synchronized int getSharedBlocks() {
+		return references.size();
+	}
+
+	/**
+	 * @return true if reference counts changed since the last call to {@link #encodeReferences()}.
+	 */
+	public synchronized boolean referencesChanged() {
+		return referencesDirty;
+	}
+
+	/**
+	 * Encodes the reference counts: a header (magic, length), then runs of consecutive blocks
+	 * sharing the same count, as (first block, length, extra references).
+	 *
+	 * @return The encoded counts.
+	 */
+	public synchronized byte[] encodeReferences() {
+		int[] shared = references.keySet().stream().mapToInt(Integer::intValue).sorted().toArray();
+		List<int[]> runs = new ArrayList<>();
+		for (int block : shared) {
+			int extra = references.get(block);
+			int[] last = runs.isEmpty() ? null : runs.get(runs.size() - 1);
+			if (last != null && last[0] + last[1] == block && last[2] == extra)
+				last[1]++;
+			else
+				runs.add(new int[]{block, 1, extra});
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(12 + 12 * runs.size());
+		buffer.putInt(referencesMagic).putInt(buffer.capacity()).putInt(runs.size());
+		for (int[] run : runs)
+			buffer.putInt(run[0]).putInt(run[1]).putInt(run[2]);
+		referencesDirty = false;
+		return buffer.array();
+	}
+
+	/**
+	 * Loads reference counts encoded by {@link #encodeReferences()}.
+	 *
+	 * @param image The encoded counts.
+	 * @throws IOException If the image doesn't hold reference counts.
+	 */
+	public synchronized void loadReferences(byte[] image) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(image);
+		if (buffer.getInt() != referencesMagic || buffer.getInt() > image.length)
+			throw new IOException("Corrupted reference counts");
+		int runs = buffer.getInt();
+		for (int i = 0; i < runs; i++) {
+			int start = buffer.getInt(), length = buffer.getInt(), extra = buffer.getInt();
+			for (int block = start; block < start + length; block++)
+				references.put(block, extra);
+		}
+		referencesDirty = false;
 	}
 
 	/**
 	 * Gets the index of the next block from the current block index.
 	 *
 	 * @param blockIndex The index of the current block.
-	 * @return The index of the next block, or null if not available.
+	 * @return The index of the next block, or {@link #END_OF_CHAIN} if there is none.
 	 */
-	public Integer getNextBlock(int blockIndex) {
-		if (blockIndex >= 0 && blockIndex < blocks.length) {
+	public synchronized int getNextBlock(int blockIndex) {
+		if (blockIndex >= 0 && blockIndex < blocks.length && blocks[blockIndex] != FREE) {
 			return blocks[blockIndex];
 		}
 
-		return null;
+		return END_OF_CHAIN;
 	}
 
 	/**
@@ -72,9 +445,124 @@ public class FileAllocationTable implements Serializable {
 	 * @param blockIndex The index of the current block.
 	 * @param nextBlock  The index of the block to be pointed to.
 	 */
-	public void setNextBlock(int blockIndex, int nextBlock) {
+	public synchronized void setNextBlock(int blockIndex, int nextBlock) {
 		if (blockIndex >= 0 && blockIndex < blocks.length) {
-			blocks[blockIndex] = nextBlock;
+			if (blocks[blockIndex] == FREE)
+				markUsed(blockIndex);
+			set(blockIndex, nextBlock);
+		}
+	}
+
+	/**
+	 * Checks whether a block is currently allocated.
+	 *
+	 * @param blockIndex The index of the block.
+	 * @return true if the block belongs to a chain.
+	 */
+	public synchronized boolean isAllocated(int blockIndex) {
+		return blockIndex >= 0 && blockIndex < blocks.length && (usedMap[blockIndex >>> 6] & (1L << blockIndex)) != 0;
+	}
+
+	public synchronized int getNumBlocks() {
+		return blocks.length;
+	}
+
+	public synchronized int getFreeBlocks() {
+		return freeBlocks;
+	}
+
+	/**
+	 * @return true if any entry changed since the last call to {@link #clearDirty()}.
+	 */
+	public synchronized boolean isDirty() {
+		return !dirtyPages.isEmpty();
+	}
+
+	/**
+	 * @return The pages (groups of {@link #entriesPerPage} entries) changed since the last save.
+	 */
+	public synchronized BitSet getDirtyPages() {
+		return (BitSet) dirtyPages.clone();
+	}
+
+	/**
+	 * Marks every entry as changed, so that the whole table is written by the next save.
+	 */
+	public synchronized void markAllDirty() {
+		dirtyPages.set(0, Math.ceilDiv(blocks.length, entriesPerPage));
+	}
+
+	/**
+	 * Encodes a page of entries in the on-disk binary form.
+	 *
+	 * @param page The index of the page.
+	 * @param dest The array receiving the page, one block long.
+	 * @param offset The offset in {@code dest} of the page.
+	 */
+	public synchronized void encodePage(int page, byte[] dest, int offset) {
+		int first = page * entriesPerPage;
+		int count = Math.max(0, Math.min(entriesPerPage, blocks.length - first));
+		ByteBuffer buffer = ByteBuffer.wrap(dest, offset, entriesPerPage * bytesPerEntry).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.asIntBuffer().put(blocks, first, count);
+	}
+
+	/**
+	 * Marks every entry as saved.
+	 */
+	public synchronized void clearDirty() {
+		dirtyPages.clear();
+	}
+
+	private void set(int blockIndex, int value) {
+		blocks[blockIndex] = value;
+		dirtyPages.set(blockIndex / entriesPerPage);
+	}
+
+	private void markUsed(int blockIndex) {
+		usedMap[blockIndex >>> 6] |= 1L << blockIndex;
+		freeBlocks--;
+	}
+
+	/**
+	 * Rebuilds the free-space bitmap and counters from the table.
+	 */
+	private void rebuildFreeMap() {
+		usedMap = new long[Math.max(1, Math.ceilDiv(blocks.length, 64))];
+		freeBlocks = 0;
+		for (int i = 0; i < blocks.length; i++) {
+			if (blocks[i] == FREE)
+				freeBlocks++;
+			else
+				usedMap[i >>> 6] |= 1L << i;
 		}
+		// Blocks past the end of the table are never handed out
+		for (int i = blocks.length; i < usedMap.length * 64; i++)
+			usedMap[i >>> 6] |= 1L << i;
+		cursor = 0;
+		dirtyPages = new BitSet();
+		references = new HashMap<>();
+		retiredBlocks = 0;
+		reclaimed = new ConcurrentLinkedQueue<>();
+	}
+
+	@Serial
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		Integer[] boxed = new Integer[blocks.length];
+		for (int i = 0; i < blocks.length; i++)
+			boxed[i] = blocks[i] == FREE ? null : blocks[i];
+		out.putFields().put("blocks", boxed);
+		out.writeFields();
+	}
+
+	@Serial
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		Integer[] boxed = (Integer[]) in.readFields().get("blocks", null);
+		if (boxed == null)
+			throw new InvalidObjectException("Missing FAT entries");
+		int[] table = new int[boxed.length];
+		for (int i = 0; i < boxed.length; i++)
+			table[i] = boxed[i] == null ? FREE : boxed[i];
+		blocks = table;
+		rebuildFreeMap();
 	}
 }
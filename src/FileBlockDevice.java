@@ -0,0 +1,126 @@
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Block device backed by plain file I/O: every access is a positional read or write call on the file's channel.
+ * Positional calls don't share a file pointer, so threads access the device concurrently.
+ * Asynchronous requests are issued on an {@link AsynchronousFileChannel} of the same file, so many of them can be
+ * in flight without a waiting thread each.
+ */
+public class FileBlockDevice implements BlockDevice {
+	private final FileChannel channel;
+	private final AsynchronousFileChannel asyncChannel;
+
+	/**
+	 * Opens a partition file for reading and writing.
+	 *
+	 * @param file The partition file.
+	 * @throws IOException If the file cannot be opened.
+	 */
+	public FileBlockDevice(File file) throws IOException {
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+		this.asyncChannel = AsynchronousFileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+	}
+
+	@Override
+	public void read(long position, byte[] dest, int offset, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(dest, offset, length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position() - offset) < 0)
+				throw new EOFException("Access beyond the end of the partition (offset %d, length %d)".formatted(position, length));
+		}
+	}
+
+	@Override
+	public void write(long position, byte[] src, int offset, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(src, offset, length);
+		while (buffer.hasRemaining())
+			channel.write(buffer, position + buffer.position() - offset);
+	}
+
+	@Override
+	public CompletableFuture<Void> readAsync(long position, byte[] dest, int offset, int length) {
+		Transfer read = new Transfer(ByteBuffer.wrap(dest, offset, length), position - offset, false);
+		read.next();
+		return read.done;
+	}
+
+	@Override
+	public CompletableFuture<Void> writeAsync(long position, byte[] src, int offset, int length) {
+		Transfer write = new Transfer(ByteBuffer.wrap(src, offset, length), position - offset, true);
+		write.next();
+		return write.done;
+	}
+
+	@Override
+	public void force() throws IOException {
+		// Both channels write to the same file, syncing it covers the completed asynchronous writes too
+		channel.force(false);
+	}
+
+	@Override
+	public long size() {
+		try {
+			return channel.size();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		try (asyncChannel) {
+			channel.close();
+		}
+	}
+
+	/**
+	 * An asynchronous read or write, reissued for the rest of the buffer until it's all transferred.
+	 */
+	private final class Transfer implements CompletionHandler<Integer, Void> {
+		private final ByteBuffer buffer;
+		private final long base;  // position in the file of the first byte of the buffer's array
+		private final boolean write;
+		private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+		Transfer(ByteBuffer buffer, long base, boolean write) {
+			this.buffer = buffer;
+			this.base = base;
+			this.write = write;
+		}
+
+		void next() {
+			try {
+				if (write)
+					asyncChannel.write(buffer, base + buffer.position(), null, this);
+				else
+					asyncChannel.read(buffer, base + buffer.position(), null, this);
+			} catch (RuntimeException e) {
+				done.completeExceptionally(e);
+			}
+		}
+
+		@Override
+		public void completed(Integer transferred, Void attachment) {
+			if (transferred < 0)
+				done.completeExceptionally(new EOFException("Access beyond the end of the partition (offset %d, length %d)"
+						.formatted(base + buffer.position(), buffer.remaining())));
+			else if (buffer.hasRemaining())
+				next();
+			else
+				done.complete(null);
+		}
+
+		@Override
+		public void failed(Throwable e, Void attachment) {
+			done.completeExceptionally(e);
+		}
+	}
+}
@@ -0,0 +1,519 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead journal of metadata changes, kept in a dedicated region of the partition.
+ * <p>
+ * The first block of the region is the journal superblock; the remaining blocks form a circular log.
+ * Every metadata change is a compact redo record (block, offset, bytes). Records are committed in
+ * transactions: concurrent committers are grouped so that a single transaction and a single
+ * {@link BlockDevice#force()} make all of them durable. Once committed, the changes are written to
+ * their home blocks, and a background checkpoint makes those writes durable and releases the log space.
+ * On mount, the committed transactions that weren't checkpointed are replayed.
+ */
+public class Journal {
+	private static final int superMagic = 0x564A4E4C;   // "VJNL"
+	private static final int txMagic = 0x564A5458;      // "VJTX"
+	private static final int version = 1;
+	private static final int txHeaderSize = 20;         // magic, sequence, payload length, checksum
+
+	/**
+	 * A metadata change: new content for a range of bytes inside a block.
+	 *
+	 * @param block The absolute block number.
+	 * @param offset The offset of the range inside the block.
+	 * @param bytes The new content of the range.
+	 */
+	public record Change(int block, int offset, byte[] bytes) {
+	}
+
+	/**
+	 * A group of commit requests whose transaction failed: the requests after {@code from} up to {@code upTo}.
+	 */
+	private static final class Failure {
+		final long from, upTo;
+		final IOException cause;
+		long unreported;
+
+		Failure(long from, long upTo, IOException cause) {
+			this.from = from;
+			this.upTo = upTo;
+			this.cause = cause;
+			this.unreported = upTo - from;
+		}
+	}
+
+	private BlockDevice device;
+	private final int blockSize;
+	private final long superblock;      // byte offset of the superblock
+	private final long logStart;        // byte offset of the log
+	private final long logSize;         // size of the log in bytes
+	// Log positions grow monotonically; the physical offset is logStart + position % logSize
+	private long head;                  // oldest transaction not checkpointed
+	private long headSeq;               // sequence number of the transaction at head
+	private long tail;                  // where the next transaction is written
+	private long nextSeq;
+	private long appliedTail;           // end of the last transaction whose changes reached their home blocks
+	private long appliedSeq;            // sequence number following that transaction
+
+	// Group commit state
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition flushed = lock.newCondition();
+	private List<Change> pending = new ArrayList<>();
+	private long requested = 0;         // commit requests received
+	private long durable = 0;           // commit requests made durable
+	private boolean flushing = false;
+	private final List<Failure> failures = new ArrayList<>();   // failed groups not reported to all their committers yet
+
+	private final ExecutorService checkpointer = Executors.newSingleThreadExecutor(r -> {
+		Thread thread = new Thread(r, "journal-checkpoint");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private Future<?> checkpoint;
+	private long commits, transactions;
+
+	/**
+	 * Opens the journal stored in a region of a partition.
+	 * An unformatted region is formatted as an empty journal.
+	 *
+	 * @param device The device of the partition.
+	 * @param blockSize The size of a block in bytes.
+	 * @param firstBlock The first block of the journal region.
+	 * @param numBlocks The number of blocks of the journal region.
+	 * @throws IOException If the region cannot be read.
+	 */
+	public Journal(BlockDevice device, int blockSize, int firstBlock, int numBlocks) throws IOException {
+		if (numBlocks < 2)
+			throw new IllegalArgumentException("A journal needs at least 2 blocks");
+		this.device = device;
+		this.blockSize = blockSize;
+		this.superblock = (long) firstBlock * blockSize;
+		this.logStart = superblock + blockSize;
+		this.logSize = (long) (numBlocks - 1) * blockSize;
+
+		byte[] data = new byte[blockSize];
+		device.read(superblock, data, 0, blockSize);
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		if (buffer.getInt() == superMagic && buffer.getInt() == version) {
+			head = buffer.getLong();
+			headSeq = buffer.getLong();
+		} else {
+			head = 0;
+			headSeq = 1;
+			writeSuperblock(head, headSeq);
+			device.force();
+		}
+		tail = appliedTail = head;
+		nextSeq = appliedSeq = headSeq;
+	}
+
+	/**
+	 * Re-applies the transactions committed since the last checkpoint to their home blocks
+	 * and checkpoints them. Must be called before the metadata regions are read.
+	 *
+	 * @return The number of replayed transactions.
+	 * @throws IOException If there is an issue accessing the device.
+	 */
+	public int replay() throws IOException {
+		int replayed = 0;
+		List<Change> changes;
+		while ((changes = readTransaction(tail, nextSeq)) != null) {
+			apply(changes);
+			tail += transactionSize(changes);
+			nextSeq++;
+			replayed++;
+		}
+		appliedTail = tail;
+		appliedSeq = nextSeq;
+		if (replayed > 0)
+			checkpointNow();
+		return replayed;
+	}
+
+	/**
+	 * Commits metadata changes and writes them to their home blocks.
+	 * Returns once the changes are durable; changes committed concurrently share a single transaction.
+	 *
+	 * @param changes The changes, in the order they must be applied.
+	 * @throws IOException If there is an issue accessing the device.
+	 */
+	public void commit(List<Change> changes) throws IOException {
+		if (!changes.isEmpty())
+			await(submit(changes));
+	}
+
+	/**
+	 * Queues metadata changes for the next transaction, after the changes submitted before them.
+	 * The caller makes them durable with {@link #await}; changes submitted meanwhile join the same transaction.
+	 *
+	 * @param changes The changes, in the order they must be applied.
+	 * @return The ticket of the request.
+	 */
+	public long submit(List<Change> changes) {
+		lock.lock();
+		try {
+			pending.addAll(changes);
+			commits++;
+			return ++requested;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until submitted changes are durable and written to their home blocks.
+	 * The first waiter writes the transaction of every request submitted so far; the others wait for it.
+	 *
+	 * @param ticket The ticket returned by {@link #submit}.
+	 * @throws IOException If the transaction holding the changes failed.
+	 */
+	public void await(long ticket) throws IOException {
+		lock.lock();
+		try {
+			flush(ticket);
+			reportFailure(ticket);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Writes every submitted change to its home blocks, before they are read or the device changes.
+	 * A failure is reported to the submitters of the changes only.
+	 */
+	public void sync() {
+		lock.lock();
+		try {
+			flush(requested);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Writes groups of pending changes until a request is settled. Called with the lock held.
+	 */
+	private void flush(long ticket) {
+		while (durable < ticket) {
+			if (flushing) {
+				flushed.awaitUninterruptibly();
+				continue;
+			}
+			// Become the leader of the next group
+			flushing = true;
+			List<Change> batch = pending;
+			pending = new ArrayList<>();
+			long upTo = requested;
+			IOException error = null;
+			lock.unlock();
+			try {
+				writeGroup(batch);
+			} catch (IOException e) {
+				error = e;
+			} catch (RuntimeException e) {
+				error = new IOException(e);
+			} finally {
+				lock.lock();
+				// The requests of the group are settled either way; each of them reports the failure
+				if (error != null)
+					failures.add(new Failure(durable, upTo, error));
+				durable = upTo;
+				flushing = false;
+				flushed.signalAll();
+			}
+		}
+	}
+
+	/**
+	 * Throws the failure of the group a commit request was part of, if its transaction failed.
+	 */
+	private void reportFailure(long ticket) throws IOException {
+		for (Iterator<Failure> it = failures.iterator(); it.hasNext(); ) {
+			Failure failure = it.next();
+			if (ticket > failure.from && ticket <= failure.upTo) {
+				if (--failure.unreported == 0)
+					it.remove();
+				throw new IOException("Journal commit failed", failure.cause);
+			}
+		}
+	}
+
+	/**
+	 * Makes every committed change durable in its home block and empties the log.
+	 * Waits for a running background checkpoint first.
+	 *
+	 * @throws IOException If there is an issue accessing the device.
+	 */
+	public void checkpointNow() throws IOException {
+		awaitCheckpoint();
+		checkpoint();
+	}
+
+	/**
+	 * Empties the log without replaying it, before the metadata is written in place. A transaction of a failed
+	 * commit may still be in the log, whether or not it was applied; replayed on the next mount, it would
+	 * overwrite the newer content written meanwhile.
+	 *
+	 * @throws IOException If there is an issue accessing the device.
+	 */
+	public void discard() throws IOException {
+		sync();
+		awaitCheckpoint();
+		// The applied transactions are durable in their home blocks
+		device.force();
+		synchronized (this) {
+			// A transaction left at the tail holds the next sequence number, replay stops there once it's skipped
+			nextSeq++;
+			head = appliedTail = tail;
+			headSeq = appliedSeq = nextSeq;
+			writeSuperblock(head, headSeq);
+		}
+		device.force();
+	}
+
+	/**
+	 * Checkpoints the transactions applied so far.
+	 */
+	private void checkpoint() throws IOException {
+		long toTail, toSeq;
+		synchronized (this) {
+			toTail = appliedTail;
+			toSeq = appliedSeq;
+		}
+		device.force();
+		synchronized (this) {
+			head = toTail;
+			headSeq = toSeq;
+			writeSuperblock(head, headSeq);
+		}
+		device.force();
+	}
+
+	/**
+	 * Checkpoints the log and stops the background checkpoint thread.
+	 *
+	 * @throws IOException If there is an issue accessing the device.
+	 */
+	public void close() throws IOException {
+		sync();
+		checkpointNow();
+		checkpointer.shutdown();
+	}
+
+	/**
+	 * Switches the device the journal writes to (e.g. when the block cache of the partition is replaced).
+	 * The journal must have been checkpointed.
+	 *
+	 * @param device The new device, holding the same partition.
+	 */
+	public synchronized void setDevice(BlockDevice device) {
+		this.device = device;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "Journal: %d/%d bytes in use, %d commits in %d transactions"
+				.formatted(tail - head, logSize, commits, transactions);
+	}
+
+	/**
+	 * Writes a group of changes as one transaction, then to their home blocks.
+	 * A group too large for the log is written directly after a checkpoint.
+	 */
+	private void writeGroup(List<Change> batch) throws IOException {
+		byte[] payload = encode(batch);
+		long size = pad(txHeaderSize + payload.length);
+		if (size > logSize) {
+			// Cannot be journaled: write it in place and make it durable right away
+			checkpointNow();
+			apply(batch);
+			device.force();
+			return;
+		}
+
+		// Only the group leader writes to the log, so tail and nextSeq are stable here
+		long position, seq, oldest;
+		synchronized (this) {
+			position = tail;
+			seq = nextSeq;
+			oldest = head;
+		}
+		if (position + size - oldest > logSize) {
+			// Log full: release the space of the applied transactions first
+			checkpointNow();
+		}
+
+		ByteBuffer tx = ByteBuffer.allocate((int) size);
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		tx.putInt(txMagic).putLong(seq).putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+		writeLog(position, tx.array());
+		device.force();
+
+		synchronized (this) {
+			tail = position + size;
+			nextSeq = seq + 1;
+			transactions++;
+		}
+		apply(batch);
+		synchronized (this) {
+			appliedTail = tail;
+			appliedSeq = nextSeq;
+			// Release log space in the background once half of it is in use
+			if (tail - head > logSize / 2 && (checkpoint == null || checkpoint.isDone()))
+				checkpoint = checkpointer.submit(() -> {
+					checkpoint();
+					return null;
+				});
+		}
+	}
+
+	private void awaitCheckpoint() throws IOException {
+		Future<?> running;
+		synchronized (this) {
+			running = checkpoint;
+		}
+		if (running == null)
+			return;
+		try {
+			running.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			throw new IOException("Journal checkpoint failed", e.getCause());
+		}
+	}
+
+	private void apply(List<Change> changes) throws IOException {
+		writeHome(device, blockSize, changes);
+	}
+
+	/**
+	 * Writes changes to their home blocks, in order. Changes following each other on the device, like
+	 * consecutive pages of the FAT or the blocks of a directory chain, are merged into a single write.
+	 *
+	 * @param device The device holding the home blocks.
+	 * @param blockSize The size of a block in bytes.
+	 * @param changes The changes, in the order they were made.
+	 * @throws IOException If there is an issue accessing the device.
+	 */
+	static void writeHome(BlockDevice device, int blockSize, List<Change> changes) throws IOException {
+		int i = 0;
+		while (i < changes.size()) {
+			Change first = changes.get(i);
+			long start = (long) first.block() * blockSize + first.offset();
+			long end = start + first.bytes().length;
+			int j = i + 1;
+			while (j < changes.size() && (long) changes.get(j).block() * blockSize + changes.get(j).offset() == end) {
+				end += changes.get(j).bytes().length;
+				j++;
+			}
+			if (j == i + 1) {
+				device.write(start, first.bytes(), 0, first.bytes().length);
+			} else {
+				byte[] run = new byte[(int) (end - start)];
+				int offset = 0;
+				for (int k = i; k < j; k++) {
+					byte[] bytes = changes.get(k).bytes();
+					System.arraycopy(bytes, 0, run, offset, bytes.length);
+					offset += bytes.length;
+				}
+				device.write(start, run, 0, run.length);
+			}
+			i = j;
+		}
+	}
+
+	private byte[] encode(List<Change> changes) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(baos);
+		for (Change change : changes) {
+			out.writeInt(change.block());
+			out.writeShort(change.offset());
+			out.writeShort(change.bytes().length);
+			out.write(change.bytes());
+		}
+		return baos.toByteArray();
+	}
+
+	private long transactionSize(List<Change> changes) {
+		long payload = 0;
+		for (Change change : changes)
+			payload += 8 + change.bytes().length;
+		return pad(txHeaderSize + payload);
+	}
+
+	/**
+	 * Reads and validates the transaction at a log position.
+	 *
+	 * @return Its changes, or null if there is no valid transaction with the expected sequence number.
+	 */
+	private List<Change> readTransaction(long position, long expectedSeq) throws IOException {
+		byte[] first = new byte[blockSize];
+		readLog(position, first);
+		ByteBuffer header = ByteBuffer.wrap(first);
+		if (header.getInt() != txMagic || header.getLong() != expectedSeq)
+			return null;
+		int payloadLength = header.getInt();
+		int checksum = header.getInt();
+		if (payloadLength < 0 || pad(txHeaderSize + (long) payloadLength) > logSize)
+			return null;
+
+		byte[] tx = new byte[(int) pad(txHeaderSize + (long) payloadLength)];
+		readLog(position, tx);
+		CRC32 crc = new CRC32();
+		crc.update(tx, txHeaderSize, payloadLength);
+		if ((int) crc.getValue() != checksum)
+			return null; // torn transaction, never committed
+
+		List<Change> changes = new ArrayList<>();
+		ByteBuffer payload = ByteBuffer.wrap(tx, txHeaderSize, payloadLength);
+		while (payload.hasRemaining()) {
+			int block = payload.getInt();
+			int offset = Short.toUnsignedInt(payload.getShort());
+			byte[] bytes = new byte[Short.toUnsignedInt(payload.getShort())];
+			payload.get(bytes);
+			changes.add(new Change(block, offset, bytes));
+		}
+		return changes;
+	}
+
+	private void writeLog(long position, byte[] data) throws IOException {
+		long physical = position % logSize;
+		int first = (int) Math.min(data.length, logSize - physical);
+		device.write(logStart + physical, data, 0, first);
+		if (first < data.length)
+			device.write(logStart, data, first, data.length - first);
+	}
+
+	private void readLog(long position, byte[] data) throws IOException {
+		long physical = position % logSize;
+		int first = (int) Math.min(data.length, logSize - physical);
+		device.read(logStart + physical, data, 0, first);
+		if (first < data.length)
+			device.read(logStart, data, first, data.length - first);
+	}
+
+	private void writeSuperblock(long head, long headSeq) throws IOException {
+		ByteBuffer data = ByteBuffer.allocate(blockSize);
+		data.putInt(superMagic).putInt(version).putLong(head).putLong(headSeq);
+		device.write(superblock, data.array(), 0, blockSize);
+	}
+
+	private long pad(long length) {
+		return Math.ceilDiv(length, blockSize) * (long) blockSize;
+	}
+}
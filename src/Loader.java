@@ -1,19 +1,122 @@
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class Loader {
 	// Creating a Scanner object for user input
 	static Scanner scanner = new Scanner(System.in);
-	// Using a Hashtable to store virtual partitions, mapping partition labels to vPartition instances
-	static Hashtable<Character, vPartition> vPartitions = new Hashtable<>();
+	// Using a Hashtable to store virtual partitions, mapping partition labels to partitions mounted on first use
+	static Hashtable<Character, PartitionEntry> vPartitions = new Hashtable<>();
+	// Whether existing partitions are mounted with the memory-mapped backend (--mmap)
+	static boolean memoryMapped = false;
+	// Block cache size and policy for every partition (--cache=<blocks>[:clock|lru]), negative keeps the default
+	static int cacheBlocks = -1;
+	static BlockCache.Policy cachePolicy = BlockCache.Policy.CLOCK;
+	// Number of threads mounting every partition in the background at startup (--warm[=<threads>]), 0 mounts on first use
+	static int warmThreads = 0;
+	// Whether deletes zero the freed blocks before returning (--secure-delete) rather than in the background
+	static boolean secureDelete = false;
+	// Port of the server giving local clients access to the partitions (--serve[=<port>]), 0 doesn't serve
+	static int servePort = 0;
+	// Whether commands are read from a script (--batch[=<file>]): no prompts are shown and saves are deferred
+	static boolean batch = false;
+	// Number of commands between saves of a partition (--checkpoint=<n>), 0 saves only when leaving it
+	static int checkpointInterval = 1;
+	private static boolean checkpointSet = false;
+
+	/**
+	 * A partition found on disk. Only its label is read at startup; it's mounted on first use.
+	 */
+	static final class PartitionEntry {
+		private final String uuid;
+		private final char label;
+		private vPartition partition;
+
+		PartitionEntry(String uuid, char label) {
+			this.uuid = uuid;
+			this.label = label;
+		}
+
+		PartitionEntry(vPartition partition) {
+			this(partition.getUuid().toString(), partition.getPartitionLabel());
+			this.partition = partition;
+		}
+
+		/**
+		 * Mounts the partition unless it's already mounted. Waits for a mount in progress on another thread.
+		 * @return the mounted partition
+		 */
+		synchronized vPartition mount() throws IOException, ClassNotFoundException {
+			if (partition == null) {
+				partition = new vPartition(uuid, memoryMapped);
+				configure(partition);
+			}
+			return partition;
+		}
+
+		/**
+		 * @return the partition if it's mounted, otherwise null (waits for a mount in progress)
+		 */
+		synchronized vPartition mounted() {
+			return partition;
+		}
+	}
 
 	/**
 	 * Entry point of the virtual file system application
+	 * @param options: `--mmap` mounts existing partitions with the memory-mapped backend,
+	 *                 `--cache=<blocks>[:clock|lru]` sizes the block cache of every partition (0 disables it),
+	 *                 `--warm[=<threads>]` mounts every partition in parallel in the background instead of on first use,
+	 *                 `--secure-delete` zeroes the blocks of deleted files before the command returns,
+	 *                 `--serve[=<port>]` lets PartitionClient sessions use the partitions alongside the shell,
+	 *                 `--batch[=<file>]` runs the commands of a file (or of the standard input) without prompts,
+	 *                 saving each partition when leaving it unless `--checkpoint=<n>` saves every n commands too
  	 */
-	public static void main(String[] __) throws Exception {
-		System.out.println("Starting virtual file system (experimental):");
+	public static void main(String[] options) throws Exception {
+		for (String option : options) {
+			if (option.equals("--mmap")) {
+				memoryMapped = true;
+			} else if (option.startsWith("--cache=")) {
+				String[] arr = option.substring("--cache=".length()).split(":", 2);
+				cacheBlocks = Integer.parseInt(arr[0]);
+				if (arr.length > 1)
+					cachePolicy = BlockCache.Policy.valueOf(arr[1].toUpperCase());
+			} else if (option.equals("--warm")) {
+				warmThreads = Runtime.getRuntime().availableProcessors();
+			} else if (option.startsWith("--warm=")) {
+				warmThreads = Integer.parseInt(option.substring("--warm=".length()));
+			} else if (option.equals("--secure-delete")) {
+				secureDelete = true;
+			} else if (option.equals("--serve")) {
+				servePort = PartitionServer.defaultPort;
+			} else if (option.startsWith("--serve=")) {
+				servePort = Integer.parseInt(option.substring("--serve=".length()));
+			} else if (option.equals("--batch")) {
+				batch = true;
+			} else if (option.startsWith("--batch=")) {
+				batch = true;
+				scanner = new Scanner(new File(option.substring("--batch=".length())), StandardCharsets.UTF_8);
+			} else if (option.startsWith("--checkpoint=")) {
+				checkpointInterval = Integer.parseInt(option.substring("--checkpoint=".length()));
+				checkpointSet = true;
+			}
+		}
+		if (batch) {
+			// Scripts save at the checkpoints only, and their output is written in large chunks rather than per line
+			if (!checkpointSet)
+				checkpointInterval = 0;
+			System.setOut(new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16), false, StandardCharsets.UTF_8));
+		} else {
+			System.out.println("Starting virtual file system (experimental):");
+		}
 		File directory = new File(".");
 
 		// Check if the specified path is a directory
@@ -22,28 +125,54 @@ public class Loader {
 			System.exit(1);
 		}
 
-		// Initialize virtual partitions based on existing .vpar files in the current directory
+		// Register the existing .vpar files in the current directory by the label in their header
 		for (File file : Objects.requireNonNull(directory.listFiles())) {
 			if (file.isFile() && file.getName().endsWith(".vpar")) {
 				String part_name = file.getName().replaceFirst("[.][^.]+$", "");
-				vPartition partition = new vPartition(part_name);
-				vPartitions.put(partition.getPartitionLabel(), partition);
+				char label = vPartition.readLabel(part_name);
+				vPartitions.put(label, new PartitionEntry(part_name, label));
+			}
+		}
+
+		// Optionally mount them all in parallel while the prompt is already available
+		if (warmThreads > 0 && !vPartitions.isEmpty()) {
+			ExecutorService pool = Executors.newFixedThreadPool(Math.min(warmThreads, vPartitions.size()));
+			for (PartitionEntry entry : vPartitions.values()) {
+				pool.execute(() -> {
+					try {
+						entry.mount();
+					} catch (Exception e) {
+						System.err.printf("Couldn't mount partition %c: %s\n", entry.label, e.getMessage());
+					}
+				});
 			}
+			pool.shutdown();
+		}
+
+		// Optionally serve the partitions to local clients, each session on its own virtual thread
+		if (servePort > 0) {
+			PartitionServer server = new PartitionServer(servePort, label -> {
+				PartitionEntry entry = vPartitions.get(label);
+				return entry == null ? null : entry.mount();
+			});
+			server.start();
+			System.out.printf("Serving partitions on port %d%n", server.getPort());
 		}
 
 		// Main command loop for user interaction
 		while (true) {
-			System.out.print("FS > ");
-
-			// Read user input
-			String[] args = scanner.nextLine().split(" +");
+			// Read user input, the end of the input exits
+			String line = readLine("FS > ");
+			if (line == null)
+				line = "exit";
+			String[] args = line.split(" +");
 
 			// Process user input
 			switch (args[0]) {
 				case "create":
 					// Handle the creation of a new virtual partition
 					if (args.length < 3)
-						System.out.println("Usage: create <partition label> <partition size in bytes>.");
+						System.out.println("Usage: create <partition label> <partition size in bytes> [mmap].");
 					else if (args[1].length() != 1)
 						System.out.println("Partition label must be a single letter.");
 					else if (vPartitions.containsKey(args[1].toUpperCase().charAt(0)))
@@ -53,7 +182,10 @@ public class Loader {
 					else {
 						char label = args[1].toUpperCase().charAt(0);
 						long size = Long.parseLong(args[2]);
-						vPartitions.put(label, new vPartition(label, size));
+						boolean mapped = args.length > 3 && args[3].equals("mmap");
+						vPartition partition = new vPartition(label, size, mapped);
+						configure(partition);
+						vPartitions.put(label, new PartitionEntry(partition));
 						System.out.printf("Partition %c created successfully\n", label);
 					}
 					break;
@@ -65,8 +197,16 @@ public class Loader {
 						System.out.println("Partition label must be a single letter.");
 					else if (!vPartitions.containsKey(args[1].toUpperCase().charAt(0)))
 						System.out.println("Partition doesn't exists.");
-					else
-						partitionLooper(vPartitions.get(args[1].toUpperCase().charAt(0)));
+					else {
+						vPartition partition;
+						try {
+							partition = vPartitions.get(args[1].toUpperCase().charAt(0)).mount();
+						} catch (IOException | ClassNotFoundException e) {
+							System.out.println("Couldn't mount partition: " + e.getMessage());
+							break;
+						}
+						partitionLooper(partition);
+					}
 					break;
 				case "delete":
 					// Handle the deletion of an existing virtual partition
@@ -78,16 +218,20 @@ public class Loader {
 						System.out.println("Partition doesn't exists.");
 					else {
 						char label = args[1].toUpperCase().charAt(0);
-						vPartition partition = vPartitions.remove(label);
-						partition.forceUnmount(); // Force unmount the partition to ensure proper cleanup
-						File file = new File(partition.getUuid().toString() + ".vpar");
+						PartitionEntry entry = vPartitions.remove(label);
+						vPartition partition = entry.mounted();
+						if (partition != null)
+							partition.forceUnmount(); // Force unmount the partition to ensure proper cleanup
+						File file = new File(entry.uuid + ".vpar");
 						if (file.delete()) // Attempt to delete the .vpar file
 							System.out.printf("Partition %c deleted.\n", label);
 					}
 					break;
 				case "exit":
 					// Handle the application exit
-					System.out.println("Bye!");
+					if (!batch)
+						System.out.println("Bye!");
+					System.out.flush();
 					scanner.close();
 					System.exit(0);
 					return;
@@ -108,15 +252,24 @@ public class Loader {
 	public static void partitionLooper(vPartition partition) throws IOException {
 		char label = partition.getPartitionLabel(); // Get the label of the current partition
 		vFolder current_folder = partition.getRoot(); // Set the current folder to the root of the partition
-		System.out.printf("Partition %c selected%n", label);
+		if (partition.getSnapshotName() == null)
+			System.out.printf("Partition %c selected%n", label);
+		else
+			System.out.printf("Snapshot %s of partition %c selected (read-only)%n", partition.getSnapshotName(), label);
+
+		int unsaved = 0; // Commands run since the last save
 
 		// Main loop for user interaction within the partition
 		super_loop:
 		while (true) {
-			// Display the current path as prompt
-			System.out.printf("%s> ", partition.getPathString(current_folder));
-			// Read user input
-			String[] args = scanner.nextLine().split(" +");
+			// Read user input, displaying the current path as prompt; the end of the input leaves the partition
+			String line = readLine(partition.getPathString(current_folder) + "> ");
+			if (line == null) {
+				if (unsaved > 0)
+					partition.save();
+				return;
+			}
+			String[] args = line.split(" +");
 			try {
 				// Process user commands
 				switch (args[0]) {
@@ -176,8 +329,15 @@ public class Loader {
 							vFile file = getFile(current_folder, partition, args[1]);
 							if (file == null)
 								System.out.printf("File %s doesn't exist\n", args[1]);
-							else
-								System.out.println(new String(partition.getFileData(file.getLocation(), file), StandardCharsets.UTF_8));
+							else {
+								// Stream the content to the console rather than loading the whole file
+								try (vFileInputStream in = partition.openInputStream(file.getLocation(), file)) {
+									in.transferTo(System.out);
+								} catch (IOException e) {
+									throw new RuntimeException("Error reading file data.", e);
+								}
+								System.out.println();
+							}
 						}
 						break;
 					case "write":
@@ -191,12 +351,35 @@ public class Loader {
 							if (file == null)
 								System.out.printf("File %s doesn't exist\n", args[1]);
 							else {
-								System.out.println("Type the content you'd like to enter:");
-								String content = scanner.nextLine();
+								String content = readLine("Type the content you'd like to enter:\n");
+								if (content == null)
+									throw new IllegalArgumentException("No content given");
 								partition.saveFileData(file.getLocation(), file, content.getBytes(StandardCharsets.UTF_8));
 							}
 						}
 						break;
+					case "append":
+						// Handle appending content to a file within the current folder
+						if (args.length != 2)
+							System.out.println("Usage: append <file_name>");
+						else if (!args[1].contains("."))
+							System.out.println("Currently, you must provide provide type to all your files. `<file_name>.<file_type>`");
+						else {
+							vFile file = getFile(current_folder, partition, args[1]);
+							if (file == null)
+								System.out.printf("File %s doesn't exist\n", args[1]);
+							else {
+								String content = readLine("Type the content you'd like to append:\n");
+								if (content == null)
+									throw new IllegalArgumentException("No content given");
+								try (vFileOutputStream out = partition.openOutputStream(file.getLocation(), file, true)) {
+									out.write(content.getBytes(StandardCharsets.UTF_8));
+								} catch (IOException e) {
+									throw new RuntimeException("Error appending file data.", e);
+								}
+							}
+						}
+						break;
 					case "cd":
 						// Handle changing the current folder
 						if (args.length != 2) {
@@ -208,7 +391,7 @@ public class Loader {
 							}
 							try {
 								vFolder folder = current_folder.getSubFolderByName(args[1]);
-								folder = folder == null && args[1].matches("^/.*$")? partition.getFolderByPath(args[1]) : folder;
+								folder = folder == null && args[1].startsWith("/") ? partition.getFolderByPath(args[1]) : folder;
 								if (folder == null)
 									System.out.println("Folder doesn't exist");
 								else
@@ -269,8 +452,56 @@ public class Loader {
 						System.out.println(current_folder);
 						break;
 					case "ls":
-						// List all files in the current folder
-						current_folder.printAllFiles();
+						// List all files in the current folder, or with -R everything below it
+						if (args.length == 2 && args[1].equals("-R")) {
+							for (String entry : partition.listTree(current_folder))
+								System.out.println(entry);
+						} else {
+							current_folder.printAllFiles();
+						}
+						break;
+					case "du":
+						// Summarize the size of the current folder, or of the given folder, with everything below it
+						if (args.length > 2) {
+							System.out.println("Usage: du [folder_path]");
+						} else {
+							vFolder folder = args.length == 1 ? current_folder
+									: args[1].startsWith("/") ? partition.getFolderByPath(args[1]) : current_folder.getSubFolderByName(args[1]);
+							if (folder == null) {
+								System.out.println("Folder doesn't exist");
+							} else {
+								vPartition.TreeStats stats = partition.getTreeStats(folder);
+								System.out.printf("%d files, %d folders, %d bytes in %d blocks%n", stats.files(), stats.folders(), stats.bytes(), stats.blocks());
+							}
+						}
+						break;
+					case "import":
+						// Copy a host directory tree into a folder of the partition
+						if (args.length != 3) {
+							System.out.println("Usage: import <host_dir> <folder_path>");
+						} else {
+							vFolder folder = args[2].startsWith("/") ? partition.getFolderByPath(args[2]) : current_folder.getSubFolderByName(args[2]);
+							if (folder == null) {
+								System.out.println("Folder doesn't exist");
+							} else {
+								vPartition.TreeStats stats = partition.importTree(Path.of(args[1]), folder);
+								System.out.printf("Imported %d files, %d folders, %d bytes%n", stats.files(), stats.folders(), stats.bytes());
+							}
+						}
+						break;
+					case "export":
+						// Copy a folder of the partition and everything below it into a host directory
+						if (args.length != 3) {
+							System.out.println("Usage: export <folder_path> <host_dir>");
+						} else {
+							vFolder folder = args[1].startsWith("/") ? partition.getFolderByPath(args[1]) : current_folder.getSubFolderByName(args[1]);
+							if (folder == null) {
+								System.out.println("Folder doesn't exist");
+							} else {
+								vPartition.TreeStats stats = partition.exportTree(folder, Path.of(args[2]));
+								System.out.printf("Exported %d files, %d folders, %d bytes%n", stats.files(), stats.folders(), stats.bytes());
+							}
+						}
 						break;
 					case "show":
 						// Display detailed information about a specific file
@@ -316,20 +547,54 @@ public class Loader {
 									}
 								}
 								permissionCommands.forEach(Runnable::run);
+								partition.markDirty(file);
 								System.out.printf("Permissions for %s updated\n", fileName);
 							}
 						}
 						break;
 					// Search for files containing a specific value within the current folder
 					case "search":
-						if (args.length != 2)
-							System.out.println("Usage: search <value>");
+						if (args.length == 3 && args[1].equals("-r")) {
+							// Search the whole partition through its name index, ^ anchors the value at the start of names
+							List<String> found = args[2].startsWith("^") ? partition.searchNamePrefix(args[2].substring(1))
+									: partition.searchNames(args[2]);
+							if (found.isEmpty())
+								System.out.println("No files match the search criteria.");
+							for (String path : found)
+								System.out.println(path);
+						} else if (args.length != 2)
+							System.out.println("Usage: search [-r] <value>, or search -r ^<prefix>");
 						else
 							current_folder.printSomeFiles(args[1]);
 						break;
+					case "snapshot":
+						// Take, list, browse or delete snapshots of the partition
+						if (args.length == 2 && args[1].equals("list")) {
+							for (vPartition.Snapshot snapshot : partition.getSnapshots())
+								System.out.printf("%-20s %s%n", snapshot.name(), snapshot.creationTime());
+						} else if (args.length != 3) {
+							System.out.println("Usage: snapshot create|mount|delete <name> | snapshot list");
+						} else {
+							switch (args[1]) {
+								case "create" -> {
+									partition.createSnapshot(args[2]);
+									System.out.printf("Snapshot %s created%n", args[2]);
+								}
+								case "mount" -> partitionLooper(partition.openSnapshot(args[2]));
+								case "delete" -> {
+									partition.deleteSnapshot(args[2]);
+									System.out.printf("Snapshot %s deleted%n", args[2]);
+								}
+								default -> System.out.println("Usage: snapshot create|mount|delete <name> | snapshot list");
+							}
+						}
+						break;
 					case "exit":
 						// Exit to the File System
-						System.out.println("Exiting to File System");
+						if (unsaved > 0)
+							partition.save();
+						if (!batch)
+							System.out.println("Exiting to File System");
 						return;
 					case "info":
 						// Display information about the current partition
@@ -348,11 +613,37 @@ public class Loader {
 				// Handle runtime exceptions and display an error message
 				System.out.println(e.getMessage());
 			}
-			// Save the state of the partition after each command
-			partition.save();
+			// Save the state of the partition after each command, or every `checkpointInterval` commands
+			if (++unsaved >= checkpointInterval && checkpointInterval > 0) {
+				partition.save();
+				unsaved = 0;
+			}
 		}
 	}
 
+	/**
+	 * Reads the next line of input, showing a prompt first unless running a script.
+	 * @param prompt: text displayed before reading
+	 * @return the line read, or null at the end of the input
+	 */
+	private static String readLine(String prompt) {
+		if (!batch)
+			System.out.print(prompt);
+		if (!scanner.hasNextLine())
+			return null;
+		return scanner.nextLine();
+	}
+
+	/**
+	 * Applies the command line options to a newly mounted or created partition.
+	 * @param partition: virtual partition instance
+	 */
+	private static void configure(vPartition partition) throws IOException {
+		if (cacheBlocks >= 0)
+			partition.setBlockCache(cacheBlocks, cachePolicy);
+		partition.setSecureDelete(secureDelete);
+	}
+
 	/**
 	 * Retrieve a vFile object based on the provided path within the current folder and partition
 	 * @param currentFolder: The current working directory within the partition
@@ -360,23 +651,17 @@ public class Loader {
 	 * @param path: The path of the file to retrieve
 	 * @return vFile object corresponding to the specified path, or null if not found
 	 */
-	private static vFile getFile(vFolder currentFolder, vPartition partition, String path) {
+	static vFile getFile(vFolder currentFolder, vPartition partition, String path) {
 		// Initialize a variable to hold the resulting vFile object
 		vFile file = null;
 
 		// Check if the path is an absolute path
-		if (!path.matches("^/.*$")) {
+		if (!path.startsWith("/")) {
 			// If the path is not absolute, directly retrieve the file from the current folder
 			file = currentFolder.getFileByFullName(path);
 		} else {
-			// If the path is absolute, extract the directory and file name
-			vFolder directory = getFolder(currentFolder, partition, path);
-			// Check if the directory exists
-			if (directory != null) {
-				// Retrieve the file from the specified directory
-				String file_name = path.substring(path.lastIndexOf("/") + 1);
-				file = directory.getFileByFullName(file_name);
-			}
+			// If the path is absolute, resolve it through the partition's path cache
+			file = partition.getFileByPath(path);
 		}
 		return file;
 	}
@@ -388,15 +673,15 @@ public class Loader {
 	 * @param path: The path of the directory to retrieve
 	 * @return vDirectory object corresponding to the specified path, or the current folder if the path is not absolute
 	 */
-	private static vFolder getFolder(vFolder currentFolder, vPartition partition, String path) {
+	static vFolder getFolder(vFolder currentFolder, vPartition partition, String path) {
 		// Check if the path is not absolute
-		if (!path.matches("^/.*$")) {
+		if (!path.startsWith("/")) {
 			// If the path is not absolute, return the current folder
 			return currentFolder;
 		} else {
 			// Retrieve the directory from the specified path in the partition
 			String dir_name = path.substring(0, path.lastIndexOf("/"));
-			return partition.getFolderByPath(dir_name);
+			return partition.getFolderByPath(dir_name.isEmpty() ? "/" : dir_name);
 		}
 	}
 }
\ No newline at end of file
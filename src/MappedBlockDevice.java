@@ -0,0 +1,85 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Block device that maps the partition file into memory.
+ * Reads and writes are plain buffer copies, with no system call per block; changes reach the file
+ * when the operating system flushes the mapping or when {@link #force()} is called.
+ * The file is mapped in segments so partitions larger than 2 GB can be served.
+ */
+public class MappedBlockDevice implements BlockDevice {
+	// Segment size, a multiple of the block size so that a block never spans two segments
+	private static final int segmentSize = 1 << 30;
+	private final FileChannel channel;
+	private final MappedByteBuffer[] segments;
+	private final long size;
+
+	/**
+	 * Maps a partition file for reading and writing.
+	 *
+	 * @param file The partition file, which must already have its final length.
+	 * @throws IOException If the file cannot be opened or mapped.
+	 */
+	public MappedBlockDevice(File file) throws IOException {
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		this.size = channel.size();
+		this.segments = new MappedByteBuffer[(int) Math.ceilDiv(size, segmentSize)];
+		for (int i = 0; i < segments.length; i++) {
+			long start = (long) i * segmentSize;
+			segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, Math.min(segmentSize, size - start));
+		}
+	}
+
+	@Override
+	public void read(long position, byte[] dest, int offset, int length) throws IOException {
+		checkBounds(position, length);
+		while (length > 0) {
+			MappedByteBuffer segment = segments[(int) (position / segmentSize)];
+			int index = (int) (position % segmentSize);
+			int chunk = Math.min(length, segment.capacity() - index);
+			segment.get(index, dest, offset, chunk);
+			position += chunk;
+			offset += chunk;
+			length -= chunk;
+		}
+	}
+
+	@Override
+	public void write(long position, byte[] src, int offset, int length) throws IOException {
+		checkBounds(position, length);
+		while (length > 0) {
+			MappedByteBuffer segment = segments[(int) (position / segmentSize)];
+			int index = (int) (position % segmentSize);
+			int chunk = Math.min(length, segment.capacity() - index);
+			segment.put(index, src, offset, chunk);
+			position += chunk;
+			offset += chunk;
+			length -= chunk;
+		}
+	}
+
+	@Override
+	public void force() {
+		for (MappedByteBuffer segment : segments)
+			segment.force();
+	}
+
+	@Override
+	public long size() {
+		return size;
+	}
+
+	@Override
+	public void close() throws IOException {
+		force();
+		channel.close();
+	}
+
+	private void checkBounds(long position, int length) throws IOException {
+		if (position < 0 || position + length > size)
+			throw new IOException("Access beyond the end of the partition (offset %d, length %d)".formatted(position, length));
+	}
+}
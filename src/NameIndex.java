@@ -0,0 +1,142 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * An index of the full names of every file and folder of a partition, answering substring and prefix queries
+ * without walking the tree.
+ * <p>
+ * Every substring of one to three characters (gram) of a name maps to the paths of the entries holding it.
+ * A query of up to three characters is a single gram, whose paths are exactly the matches; a longer query
+ * intersects the paths of its trigrams, starting with the rarest, and checks the few remaining candidates.
+ * Prefix queries use the names in sorted order. Entries are identified by their normalized absolute path,
+ * so the index stays valid when folders are evicted from memory and reloaded.
+ * The index is shared by the threads of a partition, its methods are synchronized.
+ */
+public class NameIndex {
+	private static final int gramLength = 3;
+	private final Map<String, Set<String>> grams = new HashMap<>();        // gram -> paths of the names holding it
+	private final TreeMap<String, String> paths = new TreeMap<>();         // path -> full name
+	private final TreeMap<String, Set<String>> names = new TreeMap<>();    // full name -> paths
+
+	/**
+	 * Adds an entry.
+	 *
+	 * @param path The normalized absolute path of the file or folder.
+	 * @param fullName Its full name (name and type).
+	 */
+	public synchronized void add(String path, String fullName) {
+		if (paths.put(path, fullName) != null)
+			return;
+		names.computeIfAbsent(fullName, k -> new HashSet<>()).add(path);
+		for (String gram : gramsOf(fullName))
+			grams.computeIfAbsent(gram, k -> new HashSet<>()).add(path);
+	}
+
+	/**
+	 * Removes an entry.
+	 *
+	 * @param path The normalized absolute path of the file or folder.
+	 */
+	public synchronized void remove(String path) {
+		String fullName = paths.remove(path);
+		if (fullName == null)
+			return;
+		Set<String> named = names.get(fullName);
+		named.remove(path);
+		if (named.isEmpty())
+			names.remove(fullName);
+		for (String gram : gramsOf(fullName)) {
+			Set<String> holders = grams.get(gram);
+			holders.remove(path);
+			if (holders.isEmpty())
+				grams.remove(gram);
+		}
+	}
+
+	/**
+	 * Removes a folder and every entry below it.
+	 *
+	 * @param path The normalized absolute path of the folder.
+	 */
+	public synchronized void removeTree(String path) {
+		String prefix = path.endsWith("/") ? path : path + "/";
+		for (String below : new ArrayList<>(paths.subMap(prefix, prefix + Character.MAX_VALUE).keySet()))
+			remove(below);
+		remove(path);
+	}
+
+	/**
+	 * Finds the entries whose full name contains a string.
+	 *
+	 * @param query The string to look for.
+	 * @return The paths of the matching entries, sorted.
+	 */
+	public synchronized List<String> findContaining(String query) {
+		if (query.isEmpty())
+			return new ArrayList<>(paths.keySet());
+		if (query.length() <= gramLength)
+			return sorted(grams.getOrDefault(query, Set.of()));
+
+		// Intersect the paths of the query's trigrams, the rarest first
+		List<Set<String>> postings = new ArrayList<>();
+		for (int i = 0; i + gramLength <= query.length(); i++) {
+			Set<String> holders = grams.get(query.substring(i, i + gramLength));
+			if (holders == null)
+				return List.of();
+			postings.add(holders);
+		}
+		postings.sort((a, b) -> Integer.compare(a.size(), b.size()));
+		List<String> found = new ArrayList<>();
+		candidates:
+		for (String path : postings.get(0)) {
+			for (int i = 1; i < postings.size(); i++)
+				if (!postings.get(i).contains(path))
+					continue candidates;
+			if (paths.get(path).contains(query))
+				found.add(path);
+		}
+		Collections.sort(found);
+		return found;
+	}
+
+	/**
+	 * Finds the entries whose full name starts with a string.
+	 *
+	 * @param prefix The start of the names.
+	 * @return The paths of the matching entries, sorted.
+	 */
+	public synchronized List<String> findStartingWith(String prefix) {
+		TreeSet<String> found = new TreeSet<>();
+		for (Set<String> named : names.subMap(prefix, prefix + Character.MAX_VALUE).values())
+			found.addAll(named);
+		return new ArrayList<>(found);
+	}
+
+	/**
+	 * @return The number of indexed entries.
+	 */
+	public synchronized int size() {
+		return paths.size();
+	}
+
+	private static Set<String> gramsOf(String name) {
+		Set<String> result = new HashSet<>();
+		for (int length = 1; length <= gramLength; length++)
+			for (int i = 0; i + length <= name.length(); i++)
+				result.add(name.substring(i, i + length));
+		return result;
+	}
+
+	private static List<String> sorted(Set<String> paths) {
+		List<String> result = new ArrayList<>(paths);
+		Collections.sort(result);
+		return result;
+	}
+}
@@ -0,0 +1,197 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Client of a {@link PartitionServer}.
+ * <p>
+ * Requests are pipelined: {@link #send(String, byte[])} writes a request and returns at once with a future of
+ * its response, so many requests can be in flight on one connection. A background thread reads the responses,
+ * which arrive in request order, and completes the futures.
+ */
+public class PartitionClient implements Closeable {
+	/**
+	 * The response to a request.
+	 * @param ok true if the command succeeded.
+	 * @param body The output of the command (the content of the file for {@code read}), or the error message.
+	 */
+	public record Response(boolean ok, byte[] body) {
+		/**
+		 * @return The body as text.
+		 */
+		public String text() {
+			return new String(body, StandardCharsets.UTF_8);
+		}
+	}
+
+	private record Pending(int id, CompletableFuture<Response> response) {
+	}
+
+	private final Socket socket;
+	private final DataOutputStream out;
+	private final DataInputStream in;
+	private final Queue<Pending> pending = new ConcurrentLinkedQueue<>();  // Sent requests, in order
+	private int nextId;
+	private IOException failure;  // Why the connection broke, the following requests fail with it
+
+	/**
+	 * Connects to a server on this machine.
+	 *
+	 * @param port The port of the server.
+	 * @throws IOException If the connection fails.
+	 */
+	public PartitionClient(int port) throws IOException {
+		this.socket = new Socket(InetAddress.getLoopbackAddress(), port);
+		socket.setTcpNoDelay(true);
+		this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		Thread.ofVirtual().name("partition-client").start(this::receive);
+	}
+
+	/**
+	 * Sends a request without waiting for the previous ones to be answered.
+	 *
+	 * @param command The command line, e.g. "touch a.txt".
+	 * @param payload The content of {@code write} and {@code append}, empty otherwise.
+	 * @return The future response.
+	 */
+	public synchronized CompletableFuture<Response> send(String command, byte[] payload) {
+		CompletableFuture<Response> response = new CompletableFuture<>();
+		if (failure != null) {
+			response.completeExceptionally(failure);
+			return response;
+		}
+		int id = nextId++;
+		pending.add(new Pending(id, response));
+		try {
+			out.writeInt(id);
+			out.writeUTF(command);
+			out.writeInt(payload.length);
+			out.write(payload);
+		} catch (IOException e) {
+			fail(e);
+		}
+		return response;
+	}
+
+	/**
+	 * Sends the buffered requests. Waiting for a response flushes them too.
+	 *
+	 * @throws IOException If the connection is broken.
+	 */
+	public synchronized void flush() throws IOException {
+		out.flush();
+	}
+
+	/**
+	 * Sends a request and waits for its response.
+	 *
+	 * @param command The command line.
+	 * @return The response.
+	 * @throws IOException If the connection is broken.
+	 */
+	public Response execute(String command) throws IOException {
+		return execute(command, new byte[0]);
+	}
+
+	/**
+	 * Sends a request with a payload and waits for its response.
+	 *
+	 * @param command The command line.
+	 * @param payload The content of {@code write} and {@code append}.
+	 * @return The response.
+	 * @throws IOException If the connection is broken.
+	 */
+	public Response execute(String command, byte[] payload) throws IOException {
+		CompletableFuture<Response> response = send(command, payload);
+		flush();
+		try {
+			return response.join();
+		} catch (RuntimeException e) {
+			throw new IOException("Request failed", e.getCause());
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		socket.close();
+	}
+
+	private void receive() {
+		try {
+			while (true) {
+				int id = in.readInt();
+				boolean ok = in.readByte() == PartitionServer.OK;
+				byte[] body = in.readNBytes(in.readInt());
+				// Not under the lock of the senders, which may be blocked writing until responses are read
+				Pending next = pending.poll();
+				if (next == null || next.id() != id)
+					throw new IOException("Unexpected response " + id);
+				next.response().complete(new Response(ok, body));
+			}
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	private synchronized void fail(IOException e) {
+		if (failure == null)
+			failure = e;
+		Pending request;
+		while ((request = pending.poll()) != null)
+			request.response().completeExceptionally(failure);
+	}
+
+	/**
+	 * Sends the commands read from the standard input to a server and prints the responses.
+	 * The line following {@code write} or {@code append} is sent as the content. Commands are sent as they are
+	 * read, without waiting for the previous responses, so a script piped to the client is pipelined.
+	 * @param args [port], {@link PartitionServer#defaultPort} by default
+	 */
+	public static void main(String[] args) throws IOException {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : PartitionServer.defaultPort;
+		try (PartitionClient client = new PartitionClient(port); Scanner scanner = new Scanner(System.in)) {
+			CompletableFuture<Void> last = CompletableFuture.completedFuture(null);
+			while (scanner.hasNextLine()) {
+				String line = scanner.nextLine().trim();
+				if (line.isEmpty())
+					continue;
+				if (line.equals("exit"))
+					break;
+				String command = line.split(" +")[0];
+				byte[] payload = new byte[0];
+				if ((command.equals("write") || command.equals("append")) && scanner.hasNextLine())
+					payload = scanner.nextLine().getBytes(StandardCharsets.UTF_8);
+
+				// Print the responses in order, as they arrive
+				CompletableFuture<Response> response = client.send(line, payload);
+				last = last.thenCombine(response, (done, r) -> {
+					String text = r.text();
+					if (!r.ok())
+						System.out.println("Error: " + text);
+					else if (!text.isEmpty())
+						System.out.print(text.endsWith("\n") ? text : text + "\n");
+					return null;
+				});
+				// Send the pending requests when the user is waiting for their answers
+				if (System.in.available() == 0)
+					client.flush();
+			}
+			client.flush();
+			last.join();
+		} catch (CompletionException e) {
+			System.out.println("Connection lost: " + e.getCause().getMessage());
+		}
+	}
+}
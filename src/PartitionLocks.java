@@ -0,0 +1,116 @@
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The locks letting several threads work on a partition.
+ * <p>
+ * A partition-wide read/write lock is taken shared by every operation, and exclusively by those spanning the
+ * whole partition or a whole subtree (saving, deleting a folder, snapshots). Inside it, namespace operations
+ * lock the folders they read or change (see {@link vFolder#getLock()}), and data operations also lock the
+ * file they read or write. File locks are striped by folder and name: the vFile objects of a folder are
+ * recreated when it's reloaded, but the folder and the name of a file stay the same.
+ * <p>
+ * Locks are always taken in this order: the partition, folders (by path), the file, then the monitor of
+ * the FAT. Every method returns the held locks, released by closing them (try-with-resources).
+ */
+public class PartitionLocks {
+	private static final int fileStripes = 64;
+	private final ReentrantReadWriteLock partition = new ReentrantReadWriteLock();
+	private final ReentrantReadWriteLock[] files = new ReentrantReadWriteLock[fileStripes];
+
+	/**
+	 * Locks held by an operation.
+	 */
+	public interface Held extends AutoCloseable {
+		/**
+		 * Releases the locks.
+		 */
+		@Override
+		void close();
+	}
+
+	public PartitionLocks() {
+		for (int i = 0; i < fileStripes; i++)
+			files[i] = new ReentrantReadWriteLock();
+	}
+
+	/**
+	 * Locks the whole partition, waiting for every running operation.
+	 *
+	 * @return The held lock.
+	 */
+	public Held exclusive() {
+		return hold(partition.writeLock());
+	}
+
+	/**
+	 * Locks the partition against exclusive operations only.
+	 *
+	 * @return The held lock.
+	 */
+	public Held shared() {
+		return hold(partition.readLock());
+	}
+
+	/**
+	 * Locks a folder, to read its entries or to change them.
+	 *
+	 * @param folder The folder.
+	 * @param write true to change its entries.
+	 * @return The held locks.
+	 */
+	public Held folder(vFolder folder, boolean write) {
+		ReentrantReadWriteLock lock = folder.getLock();
+		return hold(partition.readLock(), write ? lock.writeLock() : lock.readLock());
+	}
+
+	/**
+	 * Locks two folders to change their entries (e.g. moving a file from one to the other).
+	 *
+	 * @param first A folder.
+	 * @param second Another folder, or the same one.
+	 * @return The held locks.
+	 */
+	public Held folders(vFolder first, vFolder second) {
+		if (first == second)
+			return folder(first, true);
+		// Take them in path order, so two threads locking the same folders can't deadlock
+		if (vPartition.pathOf(first).compareTo(vPartition.pathOf(second)) > 0) {
+			vFolder swap = first;
+			first = second;
+			second = swap;
+		}
+		return hold(partition.readLock(), first.getLock().writeLock(), second.getLock().writeLock());
+	}
+
+	/**
+	 * Locks a file to read or write its content. Its folder is locked for reading, so the file stays in it.
+	 *
+	 * @param folder The folder holding the file.
+	 * @param file The file.
+	 * @param write true to write its content.
+	 * @return The held locks.
+	 */
+	public Held file(vFolder folder, vFile file, boolean write) {
+		int hash = 31 * System.identityHashCode(folder) + file.getFullName().hashCode();
+		ReentrantReadWriteLock lock = files[Math.floorMod(hash, fileStripes)];
+		return hold(partition.readLock(), folder.getLock().readLock(), write ? lock.writeLock() : lock.readLock());
+	}
+
+	private static Held hold(Lock... locks) {
+		for (int i = 0; i < locks.length; i++) {
+			try {
+				locks[i].lock();
+			} catch (RuntimeException | Error e) {
+				release(locks, i);
+				throw e;
+			}
+		}
+		return () -> release(locks, locks.length);
+	}
+
+	private static void release(Lock[] locks, int count) {
+		for (int i = count - 1; i >= 0; i--)
+			locks[i].unlock();
+	}
+}
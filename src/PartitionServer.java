@@ -0,0 +1,327 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves the partition commands to local clients over TCP (see {@link PartitionClient}).
+ * <p>
+ * Every connection is a session with its own selected partition and current folder, handled on its own
+ * virtual thread, so thousands of mostly idle clients cost little. The partitions are shared by all the
+ * sessions (and the shell), which is safe since they lock what each operation uses.
+ * <p>
+ * The protocol is a sequence of binary frames. A request is its id (int), the command line (modified UTF-8,
+ * as written by {@link DataOutputStream#writeUTF(String)}) and a payload (int length, then the bytes), which
+ * holds the content of {@code write} and {@code append}. A response is the id of its request, a status
+ * ({@link #OK} or {@link #ERROR}) and a body (int length, then the bytes): the output of the command,
+ * the content of a file for {@code read}, or an error message.
+ * <p>
+ * Requests are pipelined: a client may send many requests without waiting. They are executed in order and
+ * answered in order; responses are buffered and only flushed when no further request is waiting, so a
+ * pipelined batch costs a few writes rather than one per request.
+ */
+public class PartitionServer implements Closeable {
+	public static final int defaultPort = 7070;
+	public static final byte OK = 0;
+	public static final byte ERROR = 1;
+	static final int maxPayload = 16 << 20;  // Largest request payload accepted (16MB)
+
+	/**
+	 * Mounts the partitions selected by the sessions.
+	 */
+	public interface Mounter {
+		/**
+		 * @param label The label of the partition.
+		 * @return The mounted partition, or null if there is no partition with that label.
+		 * @throws Exception If mounting fails.
+		 */
+		vPartition mount(char label) throws Exception;
+	}
+
+	private final ServerSocket server;
+	private final Mounter mounter;
+	private final ExecutorService sessions = Executors.newVirtualThreadPerTaskExecutor();
+
+	/**
+	 * Listens on the loopback interface. Connections are accepted once {@link #start()} is called.
+	 *
+	 * @param port The port to listen on, 0 for any free port.
+	 * @param mounter Mounts the partitions used by the sessions.
+	 * @throws IOException If the port cannot be bound.
+	 */
+	public PartitionServer(int port, Mounter mounter) throws IOException {
+		this.server = new ServerSocket(port, 128, InetAddress.getLoopbackAddress());
+		this.mounter = mounter;
+	}
+
+	/**
+	 * Starts accepting connections in the background.
+	 */
+	public void start() {
+		Thread.ofVirtual().name("partition-server").start(() -> {
+			while (!server.isClosed()) {
+				try {
+					Socket client = server.accept();
+					sessions.execute(() -> serve(client));
+				} catch (SocketException e) {
+					return; // Closed
+				} catch (IOException e) {
+					System.err.println("Partition server: " + e.getMessage());
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return The port the server listens on.
+	 */
+	public int getPort() {
+		return server.getLocalPort();
+	}
+
+	/**
+	 * Stops accepting connections. Open sessions end when their client disconnects.
+	 */
+	@Override
+	public void close() throws IOException {
+		server.close();
+		sessions.shutdown();
+	}
+
+	private void serve(Socket client) {
+		try (client) {
+			client.setTcpNoDelay(true);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(client.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(client.getOutputStream()));
+			Session session = new Session();
+			while (true) {
+				int id;
+				try {
+					id = in.readInt();
+				} catch (EOFException e) {
+					return; // Client disconnected
+				}
+				String command = in.readUTF();
+				int length = in.readInt();
+				if (length < 0 || length > maxPayload)
+					throw new IOException("Invalid payload length " + length);
+				byte[] payload = in.readNBytes(length);
+
+				ByteArrayOutputStream body = new ByteArrayOutputStream();
+				byte status = session.execute(command, payload, body);
+				out.writeInt(id);
+				out.writeByte(status);
+				out.writeInt(body.size());
+				body.writeTo(out);
+				// Answer a pipelined batch at once: flush when the client is waiting for us
+				if (in.available() == 0)
+					out.flush();
+			}
+		} catch (IOException e) {
+			System.err.println("Partition server: session ended: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * The state of a connection: the selected partition and the current folder.
+	 */
+	private final class Session {
+		private vPartition partition;
+		private vFolder current;
+
+		/**
+		 * Executes a command.
+		 *
+		 * @param line The command line.
+		 * @param payload The content of {@code write} and {@code append}.
+		 * @param body Receives the output of the command or the error message.
+		 * @return The status of the response.
+		 */
+		byte execute(String line, byte[] payload, ByteArrayOutputStream body) {
+			PrintStream out = new PrintStream(body, false, StandardCharsets.UTF_8);
+			String[] args = line.trim().split(" +");
+			try {
+				if (args[0].equals("use")) {
+					use(args, out);
+				} else if (partition == null) {
+					throw new IllegalStateException("No partition selected. Usage: use <partition label>");
+				} else if (run(args, payload, body, out)) {
+					// Make the change durable before answering, like the shell
+					partition.save();
+				}
+				out.flush();
+				return OK;
+			} catch (Exception e) {
+				body.reset();
+				body.writeBytes(String.valueOf(e.getMessage()).getBytes(StandardCharsets.UTF_8));
+				return ERROR;
+			}
+		}
+
+		private void use(String[] args, PrintStream out) throws Exception {
+			if (args.length != 2 || args[1].length() != 1)
+				throw new IllegalArgumentException("Usage: use <partition label>");
+			char label = Character.toUpperCase(args[1].charAt(0));
+			vPartition mounted = mounter.mount(label);
+			if (mounted == null)
+				throw new IllegalArgumentException("Partition doesn't exists.");
+			partition = mounted;
+			current = partition.getRoot();
+			out.printf("Partition %c selected%n", label);
+		}
+
+		/**
+		 * Runs a command on the selected partition.
+		 *
+		 * @return true if the command changed the partition.
+		 */
+		private boolean run(String[] args, byte[] payload, ByteArrayOutputStream body, PrintStream out) throws IOException {
+			switch (args[0]) {
+				case "touch" -> {
+					usage(args.length >= 2, "touch <file_name>..");
+					for (int i = 1; i < args.length; i++) {
+						String[] arr = fullName(args[i]);
+						partition.createFile(current, arr[0], arr[1]);
+					}
+					return true;
+				}
+				case "rm" -> {
+					usage(args.length >= 2, "rm <file_name>..");
+					for (int i = 1; i < args.length; i++) {
+						vFile file = file(args[i]);
+						partition.deleteFile(file.getLocation(), file);
+					}
+					return true;
+				}
+				case "mkdir" -> {
+					usage(args.length == 2, "mkdir <folder_name>");
+					partition.createFolder(current, args[1]);
+					return true;
+				}
+				case "rmdir" -> {
+					usage(args.length == 2, "rmdir <folder_name>");
+					partition.deleteFolder(current, args[1]);
+					return true;
+				}
+				case "read" -> {
+					usage(args.length == 2, "read <file_name>");
+					vFile file = file(args[1]);
+					try (vFileInputStream in = partition.openInputStream(file.getLocation(), file)) {
+						in.transferTo(body);
+					}
+					return false;
+				}
+				case "write" -> {
+					usage(args.length == 2, "write <file_name> (content as payload)");
+					vFile file = file(args[1]);
+					partition.saveFileData(file.getLocation(), file, payload);
+					return true;
+				}
+				case "append" -> {
+					usage(args.length == 2, "append <file_name> (content as payload)");
+					vFile file = file(args[1]);
+					try (vFileOutputStream stream = partition.openOutputStream(file.getLocation(), file, true)) {
+						stream.write(payload);
+					}
+					return true;
+				}
+				case "cd" -> {
+					usage(args.length == 2, "cd <folder_name>");
+					vFolder folder = args[1].equals("~") ? partition.getRoot() : current.getSubFolderByName(args[1]);
+					folder = folder == null && args[1].startsWith("/") ? partition.getFolderByPath(args[1]) : folder;
+					if (folder == null)
+						throw new IllegalArgumentException("Folder doesn't exist");
+					current = folder;
+					return false;
+				}
+				case "pwd" -> {
+					out.println(partition.getPathString(current));
+					return false;
+				}
+				case "mv", "cp" -> {
+					usage(args.length == 3, args[0] + " <source_file> <destination_file>");
+					vFile source = file(args[1]);
+					vFolder destination = Loader.getFolder(current, partition, args[2]);
+					if (destination == null)
+						throw new IllegalArgumentException("Folder %s doesn't exist".formatted(args[2]));
+					String destFile = args[2].substring(args[2].lastIndexOf("/") + 1);
+					if (args[0].equals("mv"))
+						partition.moveFile(source.getLocation(), source, destination, destFile);
+					else
+						partition.copyFile(source.getLocation(), source, destination, destFile);
+					return true;
+				}
+				case "ls" -> {
+					if (args.length == 2 && args[1].equals("-R")) {
+						for (String entry : partition.listTree(current))
+							out.println(entry);
+					} else {
+						List<vFile> entries = new ArrayList<>(current.getFiles());
+						entries.sort(Comparator.comparing(vFile::getFullName));
+						for (vFile entry : entries)
+							out.println(vFolder.describe(entry));
+					}
+					return false;
+				}
+				case "du" -> {
+					vPartition.TreeStats stats = partition.getTreeStats(current);
+					out.printf("%d files, %d folders, %d bytes in %d blocks%n", stats.files(), stats.folders(), stats.bytes(), stats.blocks());
+					return false;
+				}
+				case "show" -> {
+					usage(args.length == 2, "show <file_name>");
+					out.println(file(args[1]));
+					return false;
+				}
+				case "search" -> {
+					usage(args.length == 2, "search <value>, or search ^<prefix>");
+					List<String> found = args[1].startsWith("^") ? partition.searchNamePrefix(args[1].substring(1))
+							: partition.searchNames(args[1]);
+					for (String path : found)
+						out.println(path);
+					return false;
+				}
+				case "info" -> {
+					out.print(partition);
+					return false;
+				}
+				default -> throw new IllegalArgumentException("Invalid command " + args[0]);
+			}
+		}
+
+		private vFile file(String path) {
+			fullName(path);
+			vFile file = Loader.getFile(current, partition, path);
+			if (file == null)
+				throw new IllegalArgumentException("File %s doesn't exist".formatted(path));
+			return file;
+		}
+
+		private static String[] fullName(String name) {
+			String[] arr = name.substring(name.lastIndexOf('/') + 1).split("\\.", 2);
+			if (arr.length < 2)
+				throw new IllegalArgumentException("Currently, you must provide provide type to all your files. `<file_name>.<file_type>`");
+			return arr;
+		}
+
+		private static void usage(boolean valid, String usage) {
+			if (!valid)
+				throw new IllegalArgumentException("Usage: " + usage);
+		}
+	}
+}
@@ -0,0 +1,136 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A bounded cache of resolved paths, mapping normalized absolute paths ("/docs/a.txt") to their folder or file.
+ * <p>
+ * Entries are kept in least recently used order and the eldest is dropped once the capacity is reached.
+ * A sorted copy of the keys lets a folder and everything below it be invalidated with one range removal,
+ * so renaming, moving or deleting a folder drops exactly the paths that went through it.
+ * Only successful lookups are cached; a path that doesn't resolve is never remembered.
+ * The cache is shared by the threads of a partition, its methods are synchronized. A lookup resolved while paths
+ * were invalidated may be stale, so it's only cached if no invalidation happened since it started (see {@link #stamp()}).
+ */
+public class PathCache {
+	private final int capacity;
+	private final LinkedHashMap<String, vFile> entries;
+	private final TreeMap<String, vFile> sorted = new TreeMap<>();
+	private long hits, misses, invalidations;
+	private long generation;  // incremented by every invalidation
+
+	/**
+	 * Creates an empty cache.
+	 *
+	 * @param capacity The maximum number of cached paths, 0 to disable caching.
+	 */
+	public PathCache(int capacity) {
+		if (capacity < 0)
+			throw new IllegalArgumentException("Capacity must be non-negative");
+		this.capacity = capacity;
+		this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, vFile> eldest) {
+				if (size() <= PathCache.this.capacity)
+					return false;
+				sorted.remove(eldest.getKey());
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Looks up a path.
+	 *
+	 * @param path A normalized absolute path.
+	 * @return The cached folder or file, or null if the path isn't cached.
+	 */
+	public synchronized vFile get(String path) {
+		vFile file = entries.get(path);
+		if (file != null)
+			hits++;
+		else
+			misses++;
+		return file;
+	}
+
+	/**
+	 * @return The stamp to cache a path with, taken before the path is resolved.
+	 */
+	public synchronized long stamp() {
+		return generation;
+	}
+
+	/**
+	 * Caches a resolved path, unless paths were invalidated since it was resolved.
+	 *
+	 * @param path A normalized absolute path.
+	 * @param file The folder or file it resolves to.
+	 * @param stamp The stamp taken before resolving the path.
+	 */
+	public synchronized void put(String path, vFile file, long stamp) {
+		if (capacity == 0 || stamp != generation)
+			return;
+		entries.put(path, file);
+		sorted.put(path, file);
+	}
+
+	/**
+	 * Drops a path and every cached path below it.
+	 *
+	 * @param path A normalized absolute path.
+	 */
+	public synchronized void invalidate(String path) {
+		generation++;
+		if (entries.isEmpty())
+			return;
+		String prefix = path.endsWith("/") ? path : path + "/";
+		List<String> dropped = new ArrayList<>(sorted.subMap(prefix, prefix + Character.MAX_VALUE).keySet());
+		if (sorted.containsKey(path))
+			dropped.add(path);
+		for (String key : dropped) {
+			entries.remove(key);
+			sorted.remove(key);
+		}
+		invalidations += dropped.size();
+	}
+
+	/**
+	 * Drops every cached path.
+	 */
+	public synchronized void clear() {
+		generation++;
+		invalidations += entries.size();
+		entries.clear();
+		sorted.clear();
+	}
+
+	/**
+	 * Normalizes an absolute path: empty components and "." are dropped, ".." goes up one folder
+	 * (staying at the root), and there is no trailing slash.
+	 *
+	 * @param path An absolute path, starting with '/'.
+	 * @return The normalized path, "/" for the root folder.
+	 */
+	public static String normalize(String path) {
+		List<String> names = new ArrayList<>();
+		for (String name : path.split("/")) {
+			if (name.isEmpty() || name.equals("."))
+				continue;
+			if (name.equals("..")) {
+				if (!names.isEmpty())
+					names.remove(names.size() - 1);
+			} else {
+				names.add(name);
+			}
+		}
+		return "/" + String.join("/", names);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "Path cache (%d entries): %d hits, %d misses, %d invalidations".formatted(entries.size(), hits, misses, invalidations);
+	}
+}
@@ -0,0 +1,94 @@
+import java.io.Serial;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiFunction;
+import java.util.function.BinaryOperator;
+
+/**
+ * Walks a folder tree in parallel on a {@link ForkJoinPool}.
+ * <p>
+ * Every folder is visited by its own task, which forks one task per sub-folder, so folders on different
+ * branches are read and visited on different cores. The result of a folder is combined with the results of
+ * its sub-folders in name order, so a walk gives the same result as a sequential pre-order traversal.
+ * Visits must only read the tree: structural changes are applied by the caller once the walk is done.
+ * Each folder is listed and visited under its read lock, so it can't change during its visit.
+ */
+public class TreeWalker {
+	private final ForkJoinPool pool;
+
+	/**
+	 * Creates a walker running on the common pool.
+	 */
+	public TreeWalker() {
+		this(ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Creates a walker running on a given pool.
+	 *
+	 * @param pool The pool running the tasks.
+	 */
+	public TreeWalker(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Walks a tree.
+	 *
+	 * @param root The folder at the top of the tree.
+	 * @param path The absolute path of that folder ("" for the root folder of a partition).
+	 * @param visit Computes the result of one folder from the folder and its path.
+	 * @param combine Combines the result of a folder with the result of one of its sub-folders.
+	 * @return The result of the whole tree.
+	 * @param <R> The type of the results.
+	 */
+	public <R> R walk(vFolder root, String path, BiFunction<vFolder, String, R> visit, BinaryOperator<R> combine) {
+		return pool.invoke(new FolderTask<>(root, path, visit, combine));
+	}
+
+	private static final class FolderTask<R> extends RecursiveTask<R> {
+		@Serial
+		private static final long serialVersionUID = 199472968627658327L;
+		// Tasks are serializable through ForkJoinTask but never serialized
+		private final transient vFolder folder;
+		private final transient String path;
+		private final transient BiFunction<vFolder, String, R> visit;
+		private final transient BinaryOperator<R> combine;
+
+		FolderTask(vFolder folder, String path, BiFunction<vFolder, String, R> visit, BinaryOperator<R> combine) {
+			this.folder = folder;
+			this.path = path;
+			this.visit = visit;
+			this.combine = combine;
+		}
+
+		@Override
+		protected R compute() {
+			List<FolderTask<R>> tasks = new ArrayList<>();
+			R result;
+			folder.getLock().readLock().lock();
+			try {
+				// Fork the sub-folders first, so they're read while this folder is visited
+				List<vFolder> subFolders = new ArrayList<>();
+				for (vFile file : folder.getFiles())
+					if (file instanceof vFolder sub)
+						subFolders.add(sub);
+				subFolders.sort(Comparator.comparing(vFile::getName));
+				for (vFolder sub : subFolders) {
+					FolderTask<R> task = new FolderTask<>(sub, path + "/" + sub.getName(), visit, combine);
+					task.fork();
+					tasks.add(task);
+				}
+				result = visit.apply(folder, path);
+			} finally {
+				folder.getLock().readLock().unlock();
+			}
+			for (FolderTask<R> task : tasks)
+				result = combine.apply(result, task.join());
+			return result;
+		}
+	}
+}
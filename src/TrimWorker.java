@@ -0,0 +1,151 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Zeroes freed data blocks in the background.
+ * <p>
+ * Deleting a file only unlinks its chain: the freed blocks are retired in the FAT (see
+ * {@link FileAllocationTable#retireBlock(int)}) and, once the deletion is saved, handed to this worker.
+ * A partition file can't discard blocks, so the worker trims them by overwriting them with zeros, one write
+ * per run of consecutive blocks, and then returns them to the FAT, which allocates them again.
+ * Until then, the retired blocks are never handed out, so the zeros can't overwrite new data.
+ */
+public class TrimWorker {
+	private static final int zeroBlocks = 64;  // Blocks zeroed per write (32KB)
+
+	private volatile BlockDevice device;
+	private final FileAllocationTable fat;
+	private final long dataStart;       // byte offset of the first data block
+	private final int blockSize;
+	private final byte[] zeros;
+
+	private final ExecutorService trimmer = Executors.newSingleThreadExecutor(r -> {
+		Thread thread = new Thread(r, "block-trim");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private Future<?> last;             // last submitted batch, the batches run in order
+	private long trimmedBlocks, trimmedRuns, pendingBlocks;
+
+	/**
+	 * Creates a worker zeroing the data blocks of a partition.
+	 *
+	 * @param device The device of the partition.
+	 * @param fat The File Allocation Table receiving the zeroed blocks.
+	 * @param firstDataBlock The first data block of the partition.
+	 * @param blockSize The size of a block in bytes.
+	 */
+	public TrimWorker(BlockDevice device, FileAllocationTable fat, int firstDataBlock, int blockSize) {
+		this.device = device;
+		this.fat = fat;
+		this.dataStart = (long) firstDataBlock * blockSize;
+		this.blockSize = blockSize;
+		this.zeros = new byte[zeroBlocks * blockSize];
+	}
+
+	/**
+	 * Queues retired blocks for zeroing. Adjacent runs are merged so that each is zeroed with as few writes as possible.
+	 *
+	 * @param runs The retired blocks, as runs of consecutive data blocks.
+	 */
+	public synchronized void submit(List<Extent> runs) {
+		// Once closed with its partition, the blocks stay retired until the next mount
+		if (runs.isEmpty() || trimmer.isShutdown())
+			return;
+		List<Extent> batch = coalesce(runs);
+		for (Extent run : batch)
+			pendingBlocks += run.length();
+		last = trimmer.submit(() -> {
+			for (Extent run : batch) {
+				zero(run);
+				fat.reclaim(run);
+				synchronized (this) {
+					pendingBlocks -= run.length();
+					trimmedBlocks += run.length();
+					trimmedRuns++;
+				}
+			}
+			return null;
+		});
+	}
+
+	/**
+	 * Waits until every queued block is zeroed and returned to the FAT.
+	 *
+	 * @throws IOException If zeroing failed; the blocks that weren't zeroed stay retired until the next mount.
+	 */
+	public void drain() throws IOException {
+		Future<?> running;
+		synchronized (this) {
+			running = last;
+		}
+		if (running == null)
+			return;
+		try {
+			running.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			throw new IOException("Block trim failed", e.getCause());
+		}
+	}
+
+	/**
+	 * Zeroes the queued blocks and stops the background thread.
+	 *
+	 * @throws IOException If zeroing failed.
+	 */
+	public void close() throws IOException {
+		try {
+			drain();
+		} finally {
+			trimmer.shutdown();
+		}
+	}
+
+	/**
+	 * Switches the device the worker writes to (e.g. when the block cache of the partition is replaced).
+	 * The worker must have been drained.
+	 *
+	 * @param device The new device, holding the same partition.
+	 */
+	public void setDevice(BlockDevice device) {
+		this.device = device;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "Trim: %d blocks zeroed in %d runs, %d pending".formatted(trimmedBlocks, trimmedRuns, pendingBlocks);
+	}
+
+	private void zero(Extent run) throws IOException {
+		long position = dataStart + (long) run.start() * blockSize;
+		long remaining = (long) run.length() * blockSize;
+		while (remaining > 0) {
+			int chunk = (int) Math.min(remaining, zeros.length);
+			device.write(position, zeros, 0, chunk);
+			position += chunk;
+			remaining -= chunk;
+		}
+	}
+
+	private static List<Extent> coalesce(List<Extent> runs) {
+		List<Extent> sorted = new ArrayList<>(runs);
+		sorted.sort(Comparator.comparingInt(Extent::start));
+		List<Extent> merged = new ArrayList<>();
+		for (Extent run : sorted) {
+			Extent previous = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+			if (previous != null && previous.end() == run.start())
+				merged.set(merged.size() - 1, new Extent(previous.start(), previous.length() + run.length()));
+			else
+				merged.add(run);
+		}
+		return merged;
+	}
+}
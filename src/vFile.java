@@ -1,12 +1,21 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serial;
 import java.io.Serializable;
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
 
 /**
  * Represents a virtual file in the file system.
  */
 public class vFile implements Serializable {
+	@Serial
+	private static final long serialVersionUID = 7827535203691085320L;
 	// Date and time formatter for consistent formatting
 	public static final DateTimeFormatter dateFormat = DateTimeFormatter.ofPattern("dd-MM-yyyy HH:mm:ss");
 	// Constants for permission levels
@@ -19,19 +28,22 @@ public class vFile implements Serializable {
 	private long size;
 	private int startBlock;
 	private int numOfBlocks;
+	private ArrayList<Extent> extents;  // contiguous runs of the chain, null if unknown
+	transient private BlockIndex blockIndex;  // block lookups into the chain, dropped when the chain changes
 	private byte protection;
 	private final LocalDateTime creationTime;
 	private LocalDateTime modificationTime;
 	private LocalDateTime accessTime;
 
-	// Static method to calculate a hash based on name and type
-	public static int hash(String name, String type) {
-		String uniqueKey = name  + type;
-		return uniqueKey.hashCode();
-	}
-
 	// Constructor
 	public vFile(String name, String type, vFolder location) {
+		this(name, type, location, LocalDateTime.now());
+	}
+
+	/**
+	 * Constructor for a file created at a given time (e.g. an entry read from a directory block).
+	 */
+	protected vFile(String name, String type, vFolder location, LocalDateTime creationTime) {
 		setName(name);
 		setType(type);
 		setLocation(location);
@@ -39,7 +51,7 @@ public class vFile implements Serializable {
 		this.startBlock = -1;
 		this.numOfBlocks = 0;
 		this.protection = READ_PERMISSION + WRITE_PERMISSION;
-		this.creationTime = LocalDateTime.now();
+		this.creationTime = creationTime;
 		this.modificationTime = this.creationTime;
 		this.accessTime = this.creationTime;
 	}
@@ -126,6 +138,21 @@ public class vFile implements Serializable {
 
 	public void setStartBlock(int startBlock) {
 		this.startBlock = startBlock;
+		this.blockIndex = null;
+	}
+
+	/**
+	 * Records the physical layout of the file's chain as contiguous runs.
+	 * Every change of the chain goes through here, so the block index of the file is dropped.
+	 * @param extents the runs in chain order, or null if the layout is unknown.
+	 */
+	public void setExtents(List<Extent> extents) {
+		this.extents = extents == null ? null : new ArrayList<>(extents);
+		this.blockIndex = null;
+	}
+
+	public void setBlockIndex(BlockIndex blockIndex) {
+		this.blockIndex = blockIndex;
 	}
 
 	// Getters
@@ -133,6 +160,10 @@ public class vFile implements Serializable {
 		return name;
 	}
 
+	public String getType() {
+		return type;
+	}
+
 	public vFolder getLocation() {
 		return location;
 	}
@@ -182,10 +213,100 @@ public class vFile implements Serializable {
 		return startBlock;
 	}
 
+	public int getNumOfBlocks() {
+		return numOfBlocks;
+	}
+
+	/**
+	 * @return the contiguous runs of the file's chain, or null if they weren't recorded
+	 *         (files written before extents were tracked).
+	 */
+	public List<Extent> getExtents() {
+		return extents;
+	}
+
+	/**
+	 * @return the block index of the file's chain, or null if none was built since the chain last changed.
+	 */
+	public BlockIndex getBlockIndex() {
+		return blockIndex;
+	}
+
 	public String getFullName() {
 		return name + (type == null ? "" : "." + type);
 	}
 
+	/**
+	 * Writes the entry of this file or folder as stored in the directory blocks of its folder.
+	 *
+	 * @param out The stream receiving the entry.
+	 * @throws IOException If writing to the stream fails.
+	 */
+	public void writeEntry(DataOutput out) throws IOException {
+		out.writeBoolean(this instanceof vFolder);
+		out.writeUTF(name);
+		out.writeBoolean(type != null);
+		if (type != null)
+			out.writeUTF(type);
+		out.writeLong(size);
+		out.writeInt(startBlock);
+		out.writeInt(numOfBlocks);
+		out.writeByte(protection);
+		writeTime(out, creationTime);
+		writeTime(out, modificationTime);
+		writeTime(out, accessTime);
+		out.writeInt(extents == null ? -1 : extents.size());
+		if (extents != null) {
+			for (Extent extent : extents) {
+				out.writeInt(extent.start());
+				out.writeInt(extent.length());
+			}
+		}
+	}
+
+	/**
+	 * Reads an entry written by {@link #writeEntry(DataOutput)}.
+	 * A folder entry yields a folder whose own entries are not loaded yet.
+	 *
+	 * @param in The stream holding the entry.
+	 * @param location The folder holding the entry.
+	 * @return The file or folder described by the entry.
+	 * @throws IOException If reading from the stream fails.
+	 */
+	public static vFile readEntry(DataInput in, vFolder location) throws IOException {
+		boolean folder = in.readBoolean();
+		String name = in.readUTF();
+		String type = in.readBoolean() ? in.readUTF() : null;
+		long size = in.readLong();
+		int startBlock = in.readInt();
+		int numOfBlocks = in.readInt();
+		byte protection = in.readByte();
+		LocalDateTime creationTime = readTime(in);
+		vFile file = folder ? new vFolder(name, location, creationTime) : new vFile(name, type, location, creationTime);
+		file.size = size;
+		file.startBlock = startBlock;
+		file.numOfBlocks = numOfBlocks;
+		file.protection = protection;
+		file.modificationTime = readTime(in);
+		file.accessTime = readTime(in);
+		int numOfExtents = in.readInt();
+		if (numOfExtents >= 0) {
+			file.extents = new ArrayList<>(numOfExtents);
+			for (int i = 0; i < numOfExtents; i++)
+				file.extents.add(new Extent(in.readInt(), in.readInt()));
+		}
+		return file;
+	}
+
+	private static void writeTime(DataOutput out, LocalDateTime time) throws IOException {
+		out.writeLong(time.toEpochSecond(ZoneOffset.UTC));
+		out.writeInt(time.getNano());
+	}
+
+	private static LocalDateTime readTime(DataInput in) throws IOException {
+		return LocalDateTime.ofEpochSecond(in.readLong(), in.readInt(), ZoneOffset.UTC);
+	}
+
 	// Override toString, equals, and hashCode methods...
 	@Override
 	public String toString() {
@@ -206,13 +327,11 @@ public class vFile implements Serializable {
 		if (obj == null || getClass() != obj.getClass())
 			return false;
 		vFile file = (vFile) obj;
-		if (this.hashCode() == obj.hashCode())
-			return true;
 		return Objects.equals(this.name, file.name) && Objects.equals(this.type, file.type) && Objects.equals(this.location, file.location);
 	}
 
 	@Override
 	public int hashCode() {
-		return hash(name, type);
+		return Objects.hash(name, type);
 	}
 }
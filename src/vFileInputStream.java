@@ -0,0 +1,149 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Streams the content of a file from its chain of data blocks.
+ * <p>
+ * The chain is followed run by run (its recorded extents, or consecutive blocks found in the FAT for files
+ * written before extents were tracked), and every read goes from the device straight into the caller's
+ * buffer, so reading a file needs no memory proportional to its size. The end of the file is given by its
+ * recorded size. Reads go through the current device of the partition, so they see the blocks a replaced cache
+ * wrote back. Obtained from {@link vPartition#openInputStream(vFolder, vFile)}.
+ */
+public class vFileInputStream extends InputStream implements ReadableByteChannel {
+	private final vPartition partition;
+	private final FileAllocationTable fat;
+	private final long dataStart;           // byte offset of the first data block
+	private final int blockSize;
+	private final Iterator<Extent> extents; // null if the chain is followed through the FAT
+	private int nextBlock;                  // next block of the chain when following the FAT
+	private long runPosition;               // byte offset of the rest of the current run
+	private long runRemaining;              // bytes left in the current run
+	private long remaining;                 // bytes left in the file
+	private boolean open = true;
+
+	/**
+	 * Opens a stream over the chain of a file.
+	 *
+	 * @param partition The partition holding the file.
+	 * @param fat The File Allocation Table of the partition.
+	 * @param firstDataBlock The first data block of the partition.
+	 * @param blockSize The size of a block in bytes.
+	 * @param file The file to read.
+	 */
+	vFileInputStream(vPartition partition, FileAllocationTable fat, int firstDataBlock, int blockSize, vFile file) {
+		this.partition = partition;
+		this.fat = fat;
+		this.dataStart = (long) firstDataBlock * blockSize;
+		this.blockSize = blockSize;
+		List<Extent> list = file.getExtents();
+		this.extents = list == null ? null : list.iterator();
+		this.nextBlock = file.getStartBlock();
+		this.remaining = file.getStartBlock() == -1 ? 0 : file.getSize();
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] one = new byte[1];
+		return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (!open)
+			throw new ClosedChannelException();
+		if (len == 0)
+			return 0;
+		if (remaining == 0 || (runRemaining == 0 && !nextRun()))
+			return -1;
+
+		// Read within the current run of consecutive blocks with a single I/O
+		int chunk = (int) Math.min(len, Math.min(runRemaining, remaining));
+		partition.readData(runPosition, b, off, chunk);
+		runPosition += chunk;
+		runRemaining -= chunk;
+		remaining -= chunk;
+		return chunk;
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		if (!dst.hasRemaining())
+			return 0;
+		if (dst.hasArray()) {
+			int n = read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+			if (n > 0)
+				dst.position(dst.position() + n);
+			return n;
+		}
+		byte[] buffer = new byte[Math.min(dst.remaining(), 16 * blockSize)];
+		int n = read(buffer, 0, buffer.length);
+		if (n > 0)
+			dst.put(buffer, 0, n);
+		return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long skipped = 0;
+		while (n > 0 && remaining > 0 && (runRemaining > 0 || nextRun())) {
+			long step = Math.min(n, Math.min(runRemaining, remaining));
+			runPosition += step;
+			runRemaining -= step;
+			remaining -= step;
+			skipped += step;
+			n -= step;
+		}
+		return skipped;
+	}
+
+	@Override
+	public int available() {
+		return (int) Math.min(remaining, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	@Override
+	public void close() {
+		open = false;
+	}
+
+	/**
+	 * Moves to the next run of consecutive blocks of the chain.
+	 *
+	 * @return false if the chain has no more blocks.
+	 */
+	private boolean nextRun() {
+		int start, length;
+		if (extents != null) {
+			if (!extents.hasNext())
+				return false;
+			Extent extent = extents.next();
+			start = extent.start();
+			length = extent.length();
+		} else {
+			if (nextBlock == FileAllocationTable.END_OF_CHAIN || nextBlock < 0)
+				return false;
+			start = nextBlock;
+			length = 1;
+			int next = fat.getNextBlock(start);
+			while (next == start + length) {
+				length++;
+				next = fat.getNextBlock(next);
+			}
+			nextBlock = next;
+		}
+		runPosition = dataStart + (long) start * blockSize;
+		runRemaining = (long) length * blockSize;
+		return true;
+	}
+}
@@ -0,0 +1,155 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+
+/**
+ * Appends to the content of a file without rewriting it.
+ * <p>
+ * Writes first fill the unused part of the file's last block, then new blocks are allocated and linked onto
+ * the end of the file's chain as they are needed. The size, blocks and extents of the file are updated as data
+ * is written; they reach the disk with the next {@link vPartition#save()}.
+ * Each write locks the file, and first copies the blocks a copy or a snapshot made since the previous write shares.
+ * It goes through the current device of the partition, and the object the folder currently holds for the file,
+ * which is a new one once the folder was evicted and reloaded.
+ * Obtained from {@link vPartition#openOutputStream(vFolder, vFile, boolean)}.
+ */
+public class vFileOutputStream extends OutputStream implements WritableByteChannel {
+	private final vPartition partition;
+	private final long dataStart;       // byte offset of the first data block
+	private final int blockSize;
+	private vFile file;
+	private final ArrayDeque<Extent> allocated = new ArrayDeque<>();  // allocated runs not written yet
+	private long runPosition;           // byte offset where the next byte of the current run is written
+	private long runRemaining;          // bytes left in the current run
+	private boolean open = true;
+
+	/**
+	 * Opens a stream appending to a file.
+	 *
+	 * @param partition The partition holding the file, which allocates its new blocks.
+	 * @param firstDataBlock The first data block of the partition.
+	 * @param blockSize The size of a block in bytes.
+	 * @param file The file to append to; its extents must be known.
+	 */
+	vFileOutputStream(vPartition partition, int firstDataBlock, int blockSize, vFile file) {
+		this.partition = partition;
+		this.dataStart = (long) firstDataBlock * blockSize;
+		this.blockSize = blockSize;
+		this.file = file;
+		position();
+	}
+
+	/**
+	 * Finds where the next bytes are written from the file's extents: the current run starts at the end of the
+	 * content, in the unused part of its last block, and blocks allocated beyond it follow.
+	 */
+	private void position() {
+		allocated.clear();
+		runRemaining = 0;
+		if (file.getStartBlock() == -1)
+			return;
+		long offset = 0;
+		boolean first = true;
+		for (Extent extent : file.getExtents()) {
+			long length = (long) extent.length() * blockSize;
+			if (offset + length > file.getSize()) {
+				if (first) {
+					long used = Math.max(0, file.getSize() - offset);
+					runPosition = dataStart + (long) extent.start() * blockSize + used;
+					runRemaining = length - used;
+					first = false;
+				} else {
+					allocated.add(extent);
+				}
+			}
+			offset += length;
+		}
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[]{(byte) b}, 0, 1);
+	}
+
+	@Override
+	@SuppressWarnings("try")
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (!open)
+			throw new ClosedChannelException();
+		if (len == 0)
+			return;
+
+		try (PartitionLocks.Held held = partition.lockFile(file)) {
+			// Deleting the folder of the file released the blocks of the stream
+			if (file.getLocation().isDeleted())
+				throw new IOException("The folder of %s was deleted".formatted(file.getFullName()));
+			// Once the folder was evicted, the stream's object is orphaned: its changes would never be saved
+			vFile current = partition.currentEntry(file);
+			if (current == null)
+				throw new IOException("%s was deleted".formatted(file.getFullName()));
+			if (current != file) {
+				file = current;
+				position();
+			}
+			// The blocks written next must not be shared, they moved if they were
+			if (partition.unshareTail(file))
+				position();
+			append(partition.device(), b, off, len);
+		}
+	}
+
+	private void append(BlockDevice device, byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (runRemaining == 0) {
+				// Extend the chain with enough blocks for the rest of this write
+				if (allocated.isEmpty())
+					allocated.addAll(partition.extendFileData(file, Math.ceilDiv(len, blockSize)));
+				Extent extent = allocated.poll();
+				runPosition = dataStart + (long) extent.start() * blockSize;
+				runRemaining = (long) extent.length() * blockSize;
+			}
+
+			// Write within the current run of consecutive blocks with a single I/O
+			int chunk = (int) Math.min(len, runRemaining);
+			device.write(runPosition, b, off, chunk);
+			runPosition += chunk;
+			runRemaining -= chunk;
+			off += chunk;
+			len -= chunk;
+			file.setSize(file.getSize() + chunk);
+		}
+		file.setModificationTime(LocalDateTime.now());
+		partition.markDirty(file);
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		int n = src.remaining();
+		if (src.hasArray()) {
+			write(src.array(), src.arrayOffset() + src.position(), n);
+			src.position(src.position() + n);
+		} else {
+			byte[] buffer = new byte[Math.min(n, 16 * blockSize)];
+			while (src.hasRemaining()) {
+				int chunk = Math.min(buffer.length, src.remaining());
+				src.get(buffer, 0, chunk);
+				write(buffer, 0, chunk);
+			}
+		}
+		return n;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	@Override
+	public void close() {
+		open = false;
+	}
+}
@@ -1,14 +1,57 @@
-import java.io.Serializable;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Represents a virtual folder in the file system.
+ * <p>
+ * The entries of a folder are stored in its own chain of directory blocks (see {@link #encode()}).
+ * They are read on first access, and a folder that hasn't changed may drop them again
+ * ({@link #evict()}) to be reloaded later.
+ * <p>
+ * Loaded entries are indexed by their exact (name, type) key, sub-folders having no type,
+ * so looking up a file or a sub-folder takes constant time.
+ * <p>
+ * Every folder has a read/write lock guarding its entries: lookups and listings take the read lock,
+ * creating and deleting entries take the write lock. {@link vPartition} holds the lock across operations
+ * spanning several calls; {@link #getFiles()} returns a copy, which may be iterated while the folder changes.
  */
 public class vFolder extends vFile implements Serializable {
-	private final HashSet<vFile> files;
+	@Serial
+	private static final long serialVersionUID = 2844046668013342047L;
+	private static final int directoryMagic = 0x56444952;  // "VDIR"
+	private static final int treeMagic = 0x56545245;       // "VTRE"
+	// Keep the serialized form of the trees of legacy partitions: the entries as a set
+	@Serial
+	private static final ObjectStreamField[] serialPersistentFields = {
+			new ObjectStreamField("files", HashSet.class)
+	};
+	private volatile HashMap<EntryKey, vFile> files;  // null while the entries aren't loaded
+	transient private ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	transient private vPartition partition;       // loads the entries on first access
+	transient private byte[] diskImage;           // directory blocks as last read or written, null if unknown
+	transient private HashMap<String, vFolder> shells;  // sub-folders kept across an eviction, reused on reload
+	transient private long lastAccess;
+	transient private boolean deleted;            // set once deleted, for callers still holding the folder
+
+	/**
+	 * The key of an entry in its folder.
+	 * @param name Name of the entry
+	 * @param type Type of a file, null for a sub-folder
+	 */
+	private record EntryKey(String name, String type) {
+		static EntryKey of(vFile file) {
+			return new EntryKey(file.getName(), file instanceof vFolder ? null : file.getType());
+		}
+	}
+
 	/**
 	 * Constructor for creating a new vFolder.
 	 * @param name Name of the folder
@@ -18,7 +61,9 @@ public class vFolder extends vFile implements Serializable {
 		super(name, null, location);
 		if (Objects.equals(name, ".") || Objects.equals(name, ".."))
 			System.out.println();
-		this.files = new HashSet<>();
+		this.files = new HashMap<>();
+		if (location != null)
+			this.partition = location.partition;
 	}
 
 	/**
@@ -28,6 +73,243 @@ public class vFolder extends vFile implements Serializable {
 	public vFolder(vFolder folder) {
 		super(folder.getName(), null, folder.getLocation());
 		this.files = folder.files;
+		this.partition = folder.partition;
+	}
+
+	/**
+	 * Constructor for a folder read from a directory entry. Its entries are loaded on first access.
+	 * @param name Name of the folder
+	 * @param location Parent folder
+	 * @param creationTime Creation time of the folder
+	 */
+	vFolder(String name, vFolder location, LocalDateTime creationTime) {
+		super(name, null, location, creationTime);
+		this.files = null;
+		if (location != null)
+			this.partition = location.partition;
+	}
+
+	/**
+	 * Reads the root folder of a partition from its directory blocks.
+	 * @param image Content of the directory blocks
+	 * @param partition Partition holding the folder
+	 * @return The root folder, with its entries loaded
+	 * @throws IOException if the blocks don't hold a directory
+	 */
+	public static vFolder readRoot(byte[] image, vPartition partition) throws IOException {
+		DataInputStream in = open(image, directoryMagic);
+		vFolder root = (vFolder) readEntry(in, null);
+		root.partition = partition;
+		root.readEntries(in, image);
+		return root;
+	}
+
+	/**
+	 * Encodes the folder with its whole subtree (e.g. for a snapshot): a header (magic, length), then the
+	 * folder's entry, its number of entries, and each entry, followed by its own entries for a sub-folder.
+	 * Sub-folders that aren't loaded are loaded first.
+	 * @return The encoded tree
+	 * @throws IOException if encoding fails
+	 */
+	public byte[] encodeTree() throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(baos);
+		out.writeInt(treeMagic);
+		out.writeInt(0); // Length, filled in below
+		writeTree(out);
+		byte[] image = baos.toByteArray();
+		ByteBuffer.wrap(image).putInt(4, image.length);
+		return image;
+	}
+
+	private void writeTree(DataOutputStream out) throws IOException {
+		writeEntry(out);
+		for (vFile file : getEntries(out)) {
+			if (file instanceof vFolder folder)
+				folder.writeTree(out);
+			else
+				file.writeEntry(out);
+		}
+	}
+
+	/**
+	 * Writes the number of entries and returns them, as a consistent copy.
+	 */
+	private List<vFile> getEntries(DataOutputStream out) throws IOException {
+		lock.readLock().lock();
+		try {
+			List<vFile> entries = List.copyOf(entries().values());
+			out.writeInt(entries.size());
+			return entries;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Reads a tree encoded by {@link #encodeTree()}. Every folder of the tree is loaded.
+	 * @param image The encoded tree
+	 * @param partition Partition the folders are attached to
+	 * @return The root of the tree
+	 * @throws IOException if the image doesn't hold a tree
+	 */
+	public static vFolder readTree(byte[] image, vPartition partition) throws IOException {
+		DataInputStream in = open(image, treeMagic);
+		vFolder root = (vFolder) readEntry(in, null);
+		root.partition = partition;
+		root.readSubtree(in);
+		return root;
+	}
+
+	private void readSubtree(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		files = HashMap.newHashMap(count);
+		for (int i = 0; i < count; i++) {
+			vFile file = readEntry(in, this);
+			if (file instanceof vFolder folder) {
+				folder.partition = partition;
+				folder.readSubtree(in);
+			}
+			files.put(EntryKey.of(file), file);
+		}
+	}
+
+	/**
+	 * Loads the entries of the folder from its directory blocks.
+	 * Sub-folders kept since the last eviction are reused rather than read again.
+	 * @param image Content of the directory blocks
+	 * @throws IOException if the blocks don't hold a directory
+	 */
+	public void load(byte[] image) throws IOException {
+		DataInputStream in = open(image, directoryMagic);
+		readEntry(in, null); // The folder's own entry, its parent's copy is authoritative
+		readEntries(in, image);
+	}
+
+	private static DataInputStream open(byte[] image, int magic) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(image));
+		if (in.readInt() != magic)
+			throw new IOException(magic == directoryMagic ? "Not a directory block" : "Not a folder tree");
+		int length = in.readInt();
+		if (length < 8 || length > image.length)
+			throw new IOException("Corrupted directory (%d bytes)".formatted(length));
+		return new DataInputStream(new ByteArrayInputStream(image, 8, length - 8));
+	}
+
+	private void readEntries(DataInputStream in, byte[] image) throws IOException {
+		int count = in.readInt();
+		HashMap<EntryKey, vFile> entries = HashMap.newHashMap(count);
+		for (int i = 0; i < count; i++) {
+			vFile file = readEntry(in, this);
+			if (file instanceof vFolder folder) {
+				folder.partition = partition;
+				vFolder shell = shells == null ? null : shells.get(folder.getName());
+				if (shell != null)
+					file = shell;
+			}
+			entries.put(EntryKey.of(file), file);
+		}
+		this.files = entries;
+		this.shells = null;
+		this.diskImage = image;
+	}
+
+	/**
+	 * Encodes the folder as stored in its directory blocks: a header (magic, length),
+	 * the folder's own entry, then the number of entries followed by the entries.
+	 * @return The encoded folder
+	 * @throws IOException if encoding fails
+	 */
+	public byte[] encode() throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(baos);
+		out.writeInt(directoryMagic);
+		out.writeInt(0); // Length, filled in below
+		writeEntry(out);
+		for (vFile file : getEntries(out))
+			file.writeEntry(out);
+		byte[] image = baos.toByteArray();
+		ByteBuffer.wrap(image).putInt(4, image.length);
+		return image;
+	}
+
+	/**
+	 * Drops the loaded entries of the folder; they're read again from its directory blocks on next access.
+	 * Only a folder whose changes were saved can be evicted. Sub-folders are kept, so that references
+	 * to them remain valid.
+	 */
+	public void evict() {
+		if (files == null)
+			return;
+		shells = new HashMap<>();
+		for (vFile file : files.values())
+			if (file instanceof vFolder folder)
+				shells.put(folder.getName(), folder);
+		files = null;
+	}
+
+	/**
+	 * Attaches the folder to the partition that loads its entries.
+	 * @param partition Partition holding the folder
+	 */
+	public void setPartition(vPartition partition) {
+		this.partition = partition;
+	}
+
+	/**
+	 * @return the lock guarding the entries of the folder.
+	 */
+	public ReentrantReadWriteLock getLock() {
+		return lock;
+	}
+
+	public boolean isLoaded() {
+		return files != null;
+	}
+
+	public long getLastAccess() {
+		return lastAccess;
+	}
+
+	/**
+	 * Marks the folder as deleted, so that callers still holding it (e.g. the current folder of a session)
+	 * can't add entries to it anymore.
+	 */
+	public void markDeleted() {
+		this.deleted = true;
+	}
+
+	public boolean isDeleted() {
+		return deleted;
+	}
+
+	/**
+	 * @return the content of the directory blocks as last read or written, null if they were never written.
+	 */
+	public byte[] getDiskImage() {
+		return diskImage;
+	}
+
+	public void setDiskImage(byte[] diskImage) {
+		this.diskImage = diskImage;
+	}
+
+	/**
+	 * @return the entries of the folder, loading them first if needed. Readers holding the read lock
+	 *         may call it together, the first one loads the entries.
+	 */
+	private HashMap<EntryKey, vFile> entries() {
+		HashMap<EntryKey, vFile> entries = files;
+		// A lookup outside of the partition's operations may see a save evict the folder again right after loading it
+		while (entries == null) {
+			synchronized (this) {
+				if (files == null)
+					partition.loadFolder(this);
+				entries = files;
+			}
+		}
+		lastAccess = System.nanoTime();
+		return entries;
 	}
 
 	/**
@@ -36,8 +318,13 @@ public class vFolder extends vFile implements Serializable {
 	 * @param startBlock Starting block index for files (set to -1 for directories)
 	 */
 	public void createEntry(vFile file, int startBlock) {
-		file.setStartBlock(startBlock);
-		this.files.add(file);
+		lock.writeLock().lock();
+		try {
+			file.setStartBlock(startBlock);
+			entries().putIfAbsent(EntryKey.of(file), file);
+		} finally {
+			lock.writeLock().unlock();
+		}
 	}
 
 	/**
@@ -46,11 +333,18 @@ public class vFolder extends vFile implements Serializable {
 	 * @return Starting block index of the file or null if not found
 	 */
 	public Integer getFileStartBlock(vFile file) {
-		for (vFile f: files) {
-			if (f.equals(file))
-				return f.getStartBlock();
-		}
-		return null;
+		vFile entry = lookup(EntryKey.of(file));
+		return entry == null ? null : entry.getStartBlock();
+	}
+
+	/**
+	 * Gets the entry with the same name and type as a file: the file itself, or the object read in its place
+	 * if the folder was evicted and reloaded since the file was looked up.
+	 * @param file vFile instance
+	 * @return The entry, or null if not found
+	 */
+	public vFile getEntry(vFile file) {
+		return lookup(EntryKey.of(file));
 	}
 
 	/**
@@ -58,7 +352,33 @@ public class vFolder extends vFile implements Serializable {
 	 * @param file vFile instance to delete
 	 */
 	public void deleteEntry(vFile file) {
-		this.files.remove(file);
+		lock.writeLock().lock();
+		try {
+			entries().remove(EntryKey.of(file));
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Deletes every entry of the folder.
+	 */
+	public void clearEntries() {
+		lock.writeLock().lock();
+		try {
+			entries().clear();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private vFile lookup(EntryKey key) {
+		lock.readLock().lock();
+		try {
+			return entries().get(key);
+		} finally {
+			lock.readLock().unlock();
+		}
 	}
 
 	/**
@@ -67,8 +387,8 @@ public class vFolder extends vFile implements Serializable {
 	 * @return vFile instance or null if not found
 	 */
 	public vFile getFileByFullName(String fullName) {
-		String[] arr = fullName.split("\\.");
-		return getFileByNameAndType(arr[0], arr[1]);
+		String[] arr = fullName.split("\\.", 2);
+		return arr.length < 2 ? null : getFileByNameAndType(arr[0], arr[1]);
 	}
 
 	/**
@@ -78,12 +398,9 @@ public class vFolder extends vFile implements Serializable {
 	 * @return vFile instance or null if not found
 	 */
 	public vFile getFileByNameAndType(String name, String type) {
-		int res = hash(name, type);
-		for (vFile key: files) {
-			if (key.hashCode() == res)
-				return key;
-		}
-		return null;
+		if (type == null)
+			return null;
+		return lookup(new EntryKey(name, type));
 	}
 
 	/**
@@ -97,17 +414,12 @@ public class vFolder extends vFile implements Serializable {
 			return this;
 		if (Objects.equals(name, ".."))
 			return getLocation() == null ? this : getLocation();
-		int res = hash(name, null);
-		for (vFile key: files) {
-			if (key instanceof vFolder && key.hashCode() == res)
-				return (vFolder) key;
-		}
-		return null;
+		return lookup(new EntryKey(name, null)) instanceof vFolder folder ? folder : null;
 	}
 
 	public String toString() {
 		long size = 0;
-		for (vFile file: files)
+		for (vFile file: getFiles())
 			size += file.getSize();
 		return "Folder: " + getName() + "\n" +
 				String.format("Size: %d bytes\n", size) +
@@ -122,12 +434,19 @@ public class vFolder extends vFile implements Serializable {
 	 */
 	public void printAllFiles() {
 		System.out.println("Files in " + this.getName() + " folder:");
-		for (vFile file : files) {
-			if (file instanceof vFolder)
-				System.out.printf("%s\t\t%s\t\t%s\t\t%s\t\t%s\n", file.getPermissionString(), file.getModificationTime(), "<DIR>", "", file.getFullName());
-			else
-				System.out.printf("%s\t\t%s\t\t%s\t\t%d\t\t%s\n", file.getPermissionString(), file.getModificationTime(), "     ", file.getSize(), file.getFullName());
-		}
+		for (vFile file : getFiles())
+			System.out.println(describe(file));
+	}
+
+	/**
+	 * Formats an entry as listed by {@link #printAllFiles()}: permissions, modification time, size and name.
+	 * @param file The file or sub-folder
+	 * @return The line describing the entry
+	 */
+	public static String describe(vFile file) {
+		if (file instanceof vFolder)
+			return "%s\t\t%s\t\t%s\t\t%s\t\t%s".formatted(file.getPermissionString(), file.getModificationTime(), "<DIR>", "", file.getFullName());
+		return "%s\t\t%s\t\t%s\t\t%d\t\t%s".formatted(file.getPermissionString(), file.getModificationTime(), "     ", file.getSize(), file.getFullName());
 	}
 
 	/**
@@ -140,7 +459,7 @@ public class vFolder extends vFile implements Serializable {
 		List<vFile> found = new LinkedList<>();
 
 		// Iterate through files to find matches
-		for (vFile file : files) {
+		for (vFile file : getFiles()) {
 			if (file.getFullName().contains(search))
 				found.add(file);
 		}
@@ -150,16 +469,39 @@ public class vFolder extends vFile implements Serializable {
 			System.out.println("No files match the search criteria.");
 		else {
 			// Print information about matching files
-			for (vFile file : found) {
-				if (file instanceof vFolder)
-					System.out.printf("%s\t\t%s\t\t%s\t\t%s\t\t%s\n", file.getPermissionString(), file.getModificationTime(), "<DIR>", "", file.getFullName());
-				else
-					System.out.printf("%s\t\t%s\t\t%s\t\t%d\t\t%s\n", file.getPermissionString(), file.getModificationTime(), "     ", file.getSize(), file.getFullName());
-			}
+			for (vFile file : found)
+				System.out.println(describe(file));
 		}
 	}
 
-	public HashSet<vFile> getFiles() {
-		return files;
+	/**
+	 * @return a copy of the entries (files and sub-folders) of the folder.
+	 */
+	public Collection<vFile> getFiles() {
+		lock.readLock().lock();
+		try {
+			return List.copyOf(entries().values());
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Serial
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.putFields().put("files", files == null ? null : new HashSet<>(files.values()));
+		out.writeFields();
+	}
+
+	@Serial
+	@SuppressWarnings("unchecked")
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		HashSet<vFile> entries = (HashSet<vFile>) in.readFields().get("files", null);
+		if (entries == null)
+			throw new InvalidObjectException("Missing folder entries");
+		HashMap<EntryKey, vFile> loaded = HashMap.newHashMap(entries.size());
+		for (vFile file : entries)
+			loaded.put(EntryKey.of(file), file);
+		files = loaded;
+		lock = new ReentrantReadWriteLock();
 	}
 }
@@ -1,26 +1,117 @@
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
 
 /**
  * Represents a virtual partition with a file system.
+ * <p>
+ * A partition may be used by several threads at once. Operations lock what they read or change through
+ * {@link PartitionLocks}: the folders whose entries they use, and the file whose content they read or write,
+ * so readers of different files (or of the same file) proceed in parallel. Saving, deleting a folder and
+ * snapshots lock the whole partition. The FAT, the caches and the device are safe to share between threads.
  */
+// Operations hold their locks with try-with-resources without referring to them (see PartitionLocks.Held)
+@SuppressWarnings("try")
 public class vPartition implements Serializable {
+	@Serial
+	private static final long serialVersionUID = 6145540449112223988L;
 	public static final int blockSize = 512;  // (4096 bits)
 	public static final int bootSize = 1;
+	public static final int defaultCacheBlocks = 256;  // Blocks cached in front of the file backend (128KB)
+	public static final int defaultJournalBlocks = 128;  // Size of the journal of new partitions (64KB)
+	// FAT formats: a Java-serialized object (partitions created before the binary format, read only),
+	// and fixed 4-byte little-endian slots
+	public static final int legacyFatFormat = 0;
+	public static final int binaryFatFormat = 1;
+	// Directory formats: the whole tree Java-serialized in the root region (read only),
+	// and one chain of directory blocks per folder allocated through the FAT
+	public static final int legacyDirectoryFormat = 0;
+	public static final int blockDirectoryFormat = 1;
+	public static final int defaultLoadedFolders = 1024;  // Folders whose entries stay in memory after a save
+	public static final int streamBufferBlocks = 64;  // Size of the buffer used to copy file content (32KB)
+	public static final int transferThreads = Runtime.getRuntime().availableProcessors();  // Workers copying files to or from the host
+	public static final int defaultPathCacheEntries = 4096;  // Resolved paths remembered by getFolderByPath/getFileByPath
 	private final char partitionLabel;
 	private final UUID uuid;
 	private final long partitionSize;
 	private long usedSpace;
 	private long freeSpace;
 	private final int blocksPerFat = 191;  // Number of blocks for the File Allocation Table
-	private final int blocksPerRoot = 64;  // Number of blocks for the root folder
-	transient private final RandomAccessFile partitionHead;
+	private final int blocksPerRoot = 64;  // Number of blocks for the root folder (legacy directory format only)
+	private final int blocksPerJournal;    // Number of blocks for the metadata journal, 0 on partitions created without one
+	private int fatFormat;                 // On-disk format of the FAT, see legacyFatFormat and binaryFatFormat
+	private int directoryFormat;           // On-disk format of the folders, see legacyDirectoryFormat and blockDirectoryFormat
+	private int rootDirectoryBlock;        // First directory block of the root folder
+	private int referenceTableBlock;       // Absolute first block of the reference counts of shared blocks, 0 if none
+	private int snapshotCatalogBlock;      // Absolute first block of the snapshot catalog, 0 if none
+	transient private BlockDevice device;
 	transient private final FileAllocationTable fat;
 	transient private final vFolder rootFolder;
+	transient private boolean contiguousAllocation = true;  // allocate files as extents rather than block by block
+	transient private Journal journal;
+	// Zeroing of freed data blocks: in the background, or synchronously on delete in secure mode
+	transient private TrimWorker trimWorker;
+	transient private boolean secureDelete = false;
+	transient private final List<Extent> retiredRuns = new ArrayList<>();  // blocks freed since the last save, zeroed once it's durable
+	transient private final Map<Long, Commit> committing = new HashMap<>();  // saves being committed, by journal ticket
+	// Folders whose entries are in memory, and how many of them are kept after a save
+	transient private final Set<vFolder> loadedFolders = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+	transient private int maxLoadedFolders = defaultLoadedFolders;
+	transient private final PathCache pathCache = new PathCache(defaultPathCacheEntries);
+	transient private volatile NameIndex nameIndex;  // names of every file and folder, built by the first search
+	transient private final TreeWalker treeWalker = new TreeWalker();
+	transient private final PartitionLocks locks = new PartitionLocks();
+	transient private final Set<CompletableFuture<Void>> asyncWrites = ConcurrentHashMap.newKeySet();  // file writes in flight
+	// Changes not yet saved: the header, the folders whose entries changed, and the on-disk images of the
+	// header and FAT regions used to write only the changed bytes (null until first written, or after a failed save)
+	transient private boolean headerDirty;
+	transient private final Set<vFolder> dirtyFolders = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+	transient private byte[] headerImage;
+	transient private byte[] fatImage;
+	transient private byte[] referenceImage;
+	// Snapshots of the partition, the trees of those not saved yet (by first tree block) and the catalog as on disk
+	transient private List<Snapshot> snapshots = new ArrayList<>();
+	transient private Map<Integer, byte[]> pendingTrees = new HashMap<>();
+	transient private boolean snapshotsDirty;
+	transient private byte[] snapshotImage;
+	transient private String snapshotName;  // Name of the snapshot shown by a read-only view, null for the partition itself
+	private static final int snapshotMagic = 0x56534e50;  // "VSNP"
 
 	/**
-	 * Constructor for loading an existing vPartition.
+	 * A save being committed: the blocks it released, zeroed once it is durable, and the folders and snapshot
+	 * trees it wrote, written again in full by the next save if the commit fails.
+	 */
+	private record Commit(List<Extent> released, List<vFolder> folders, Map<Integer, byte[]> trees) {
+	}
+
+	/**
+	 * A named, frozen copy of the folder tree of a partition.
+	 * Its files keep a reference on each of their data blocks, so the live files copy shared blocks before
+	 * modifying them and the snapshot's content never changes.
+	 *
+	 * @param name The name of the snapshot.
+	 * @param creationTime When the snapshot was taken.
+	 * @param treeBlock The first block of the chain holding the encoded folder tree.
+	 */
+	public record Snapshot(String name, LocalDateTime creationTime, int treeBlock) {
+	}
+
+	/**
+	 * Constructor for loading an existing vPartition using file I/O.
 	 *
 	 * @param uuid_string UUID of the partition
 	 * @throws IOException if an I/O error occurs during file operations
@@ -28,6 +119,19 @@ public class vPartition implements Serializable {
 	 * @throws FileNotFoundException if the partition file is not found
 	 */
 	public vPartition(String uuid_string) throws IOException, ClassNotFoundException {
+		this(uuid_string, false);
+	}
+
+	/**
+	 * Constructor for loading an existing vPartition.
+	 *
+	 * @param uuid_string UUID of the partition
+	 * @param memoryMapped true to serve block I/O from a memory mapping of the partition file
+	 * @throws IOException if an I/O error occurs during file operations
+	 * @throws ClassNotFoundException if the class of a serialized object cannot be found
+	 * @throws FileNotFoundException if the partition file is not found
+	 */
+	public vPartition(String uuid_string, boolean memoryMapped) throws IOException, ClassNotFoundException {
 		// Build the file path based on the UUID
 		String filePath = "%s.vpar".formatted(uuid_string);
 		File file = new File(filePath);
@@ -36,34 +140,119 @@ public class vPartition implements Serializable {
 		if (!file.isFile())
 			throw new FileNotFoundException(filePath);
 
-		// Open a RandomAccessFile for reading and writing the partition file
-		this.partitionHead = new RandomAccessFile(file, "rw");
+		// Open the partition file for reading and writing
+		this.device = openDevice(file, memoryMapped);
 
 		// Deserialize the vPartition object from the first block of the partition
-		try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(readBlock(0)))) {
-			vPartition deserialized = (vPartition) ois.readObject();
+		this.headerImage = readBlock(0);
+		vPartition deserialized = (vPartition) deserialize(headerImage);
+
+		// Replay the metadata committed to the journal but not yet checkpointed, then reload the header
+		this.blocksPerJournal = deserialized.blocksPerJournal;
+		if (blocksPerJournal > 0) {
+			this.journal = new Journal(device, blockSize, journalStart(), blocksPerJournal);
+			if (journal.replay() > 0) {
+				this.headerImage = readBlock(0);
+				deserialized = (vPartition) deserialize(headerImage);
+			}
+		}
+
+		// Copy relevant fields from the deserialized object
+		this.uuid = deserialized.uuid;
+		this.partitionLabel = deserialized.partitionLabel;
+		this.partitionSize = deserialized.partitionSize;
+		this.usedSpace = deserialized.usedSpace;
+		this.freeSpace = deserialized.freeSpace;
+		this.fatFormat = deserialized.fatFormat;
+		this.directoryFormat = deserialized.directoryFormat;
+		this.rootDirectoryBlock = deserialized.rootDirectoryBlock;
+		this.referenceTableBlock = deserialized.referenceTableBlock;
+		this.snapshotCatalogBlock = deserialized.snapshotCatalogBlock;
+
+		// Load the File Allocation Table (FAT), migrating a serialized one to the binary format
+		this.fatImage = readRegion(bootSize, blocksPerFat);
+		boolean migrate = fatFormat == legacyFatFormat;
+		if (migrate) {
+			this.fat = new FileAllocationTable((FileAllocationTable) deserialize(fatImage));
+			fat.markAllDirty();
+			this.fatFormat = binaryFatFormat;
+			this.headerDirty = true;
+		} else if (fatFormat == binaryFatFormat) {
+			this.fat = new FileAllocationTable(fatImage, dataBlocks());
+		} else {
+			throw new IOException("Unsupported FAT format %d".formatted(fatFormat));
+		}
+		startTrimWorker();
 
-			// Copy relevant fields from the deserialized object
-			this.uuid = deserialized.uuid;
-			this.partitionLabel = deserialized.partitionLabel;
-			this.partitionSize = deserialized.partitionSize;
-			this.usedSpace = deserialized.usedSpace;
-			this.freeSpace = deserialized.freeSpace;
+		// Load the reference counts of the blocks shared by copies
+		if (referenceTableBlock != 0) {
+			this.referenceImage = readMetadataChain(referenceTableBlock - firstDataBlock());
+			fat.loadReferences(referenceImage);
 		}
 
-		// Deserialize the File Allocation Table (FAT) and the root folder
-		this.fat = new FileAllocationTable(deserializeFat());
-		this.rootFolder = new vFolder(deserializeRoot());
+		// Load the snapshot catalog; the tree of a snapshot is read when it's mounted or deleted
+		if (snapshotCatalogBlock != 0) {
+			this.snapshotImage = readMetadataChain(snapshotCatalogBlock - firstDataBlock());
+			this.snapshots = decodeSnapshots(snapshotImage);
+		}
+
+		// Read the root folder; its sub-folders are read on first access
+		if (directoryFormat == blockDirectoryFormat) {
+			this.rootFolder = vFolder.readRoot(readMetadataChain(rootDirectoryBlock), this);
+			loadedFolders.add(rootFolder);
+		} else if (directoryFormat == legacyDirectoryFormat) {
+			// Move the serialized tree to directory blocks, every folder gets its own chain
+			this.rootFolder = (vFolder) deserialize(readRegion(bootSize + blocksPerFat, blocksPerRoot));
+			adoptTree(rootFolder);
+			this.directoryFormat = blockDirectoryFormat;
+			this.headerDirty = true;
+			migrate = true;
+		} else {
+			throw new IOException("Unsupported directory format %d".formatted(directoryFormat));
+		}
+
+		// Persist the migrated sections before the header switches to the new formats
+		if (migrate)
+			save();
 	}
 
 	/**
-	 * Constructor for creating a new vPartition.
+	 * Reads the label of an existing partition from its header, without mounting it.
+	 * The label never changes, so the header is read as is, without replaying the journal.
+	 *
+	 * @param uuid_string UUID of the partition
+	 * @return The label of the partition
+	 * @throws IOException if an I/O error occurs while reading the header
+	 * @throws ClassNotFoundException if the class of a serialized object cannot be found
+	 */
+	public static char readLabel(String uuid_string) throws IOException, ClassNotFoundException {
+		try (RandomAccessFile raf = new RandomAccessFile("%s.vpar".formatted(uuid_string), "r")) {
+			byte[] header = new byte[bootSize * blockSize];
+			raf.readFully(header);
+			return ((vPartition) deserialize(header)).partitionLabel;
+		}
+	}
+
+	/**
+	 * Constructor for creating a new vPartition using file I/O.
 	 *
 	 * @param driveLabel Unique character representing the partition label
 	 * @param partitionSize Size of the partition in bytes
 	 * @throws Exception if an error occurs during partition creation
 	 */
 	public vPartition(char driveLabel, long partitionSize) throws Exception {
+		this(driveLabel, partitionSize, false);
+	}
+
+	/**
+	 * Constructor for creating a new vPartition.
+	 *
+	 * @param driveLabel Unique character representing the partition label
+	 * @param partitionSize Size of the partition in bytes
+	 * @param memoryMapped true to serve block I/O from a memory mapping of the partition file
+	 * @throws Exception if an error occurs during partition creation
+	 */
+	public vPartition(char driveLabel, long partitionSize, boolean memoryMapped) throws Exception {
 		// Generate a random UUID for the partition
 		this.uuid = UUID.randomUUID();
 		String filePath = "%s.vpar".formatted(this.uuid);
@@ -73,71 +262,574 @@ public class vPartition implements Serializable {
 		if (partitionSize <= 262144)
 			throw new Exception("A partition must have at least 256KB of total space");
 
-		// Initialize a RandomAccessFile for reading and writing the partition file
-		this.partitionHead = new RandomAccessFile(file, "rw");
-		this.partitionHead.setLength(partitionSize);
+		// Allocate the partition file, then open it for reading and writing
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(partitionSize);
+		}
+		this.device = openDevice(file, memoryMapped);
 
 		// Set partition label and size
 		this.partitionLabel = driveLabel >= 97 ? (char) (driveLabel - 32) : driveLabel;
 		this.partitionSize = partitionSize;
 
-		// Initialize File Allocation Table (FAT) and root folder
-		this.fat = new FileAllocationTable((int) Math.ceilDiv(partitionSize, blockSize) - firstDataBlock());
+		// Initialize the journal, File Allocation Table (FAT) and root folder
+		this.blocksPerJournal = defaultJournalBlocks;
+		this.journal = new Journal(device, blockSize, journalStart(), blocksPerJournal);
+		if ((long) dataBlocks() * FileAllocationTable.bytesPerEntry > (long) blocksPerFat * blockSize)
+			throw new Exception("A partition can have at most %d data blocks".formatted(blocksPerFat * FileAllocationTable.entriesPerPage));
+		this.fatFormat = binaryFatFormat;
+		this.fat = new FileAllocationTable(dataBlocks());
+		startTrimWorker();
+		this.directoryFormat = blockDirectoryFormat;
 		this.rootFolder = new vFolder("~", null);
+		rootFolder.setPartition(this);
+		loadedFolders.add(rootFolder);
 
 		// Calculate and set used and free space
 		this.usedSpace = (long) firstDataBlock() * blockSize;
 		this.freeSpace = partitionSize - this.usedSpace;
+		this.headerDirty = true;
+		markDirty(rootFolder);
 
 		// Save the newly created partition
 		save();
 	}
 
+	/**
+	 * Constructor for a read-only view of a snapshot, sharing the device and FAT of the partition.
+	 *
+	 * @param live The partition holding the snapshot.
+	 * @param snapshot The snapshot to view.
+	 * @param tree The encoded folder tree of the snapshot.
+	 * @throws IOException if the tree cannot be decoded
+	 */
+	private vPartition(vPartition live, Snapshot snapshot, byte[] tree) throws IOException {
+		this.partitionLabel = live.partitionLabel;
+		this.uuid = live.uuid;
+		this.partitionSize = live.partitionSize;
+		this.usedSpace = live.usedSpace;
+		this.freeSpace = live.freeSpace;
+		this.blocksPerJournal = live.blocksPerJournal;
+		this.device = live.device;
+		this.fat = live.fat;
+		this.snapshotName = snapshot.name();
+		this.rootFolder = vFolder.readTree(tree, this);
+	}
 
 	/**
-	 * Saves the current state of vPartition to the disk.
+	 * Saves the changes made since the last save to the disk.
+	 * Only the sections holding changes are serialized, and only the bytes that differ from what is
+	 * already on disk are written. Nothing is written if nothing changed.
+	 * On partitions with a journal, the changes are committed to the journal before reaching their blocks,
+	 * so a crash never leaves a half-written FAT or folder behind. The changes are computed under the partition's
+	 * exclusive lock, but committed once it's released: operations go on during the fsync, and the saves made
+	 * meanwhile share the next transaction.
+	 * Once saved, the entries of the least recently used folders are dropped from memory if more than
+	 * the configured number of folders are loaded.
 	 *
 	 * @throws IOException: if an error occurs during serialization or writing to the disk
 	 */
 	public void save() throws IOException {
-		// Serialize and save vPartition
-		try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		     ObjectOutputStream oos = new ObjectOutputStream(baos)) {
-			oos.writeObject(this);
-			writeBlock(0, baos.toByteArray());
+		long ticket = 0;
+		try (PartitionLocks.Held held = locks.exclusive()) {
+			// A snapshot is never modified
+			if (snapshotName != null)
+				return;
+			// The metadata saved must not refer to data still being written
+			awaitAsyncWrites();
+			List<Journal.Change> changes = new ArrayList<>();
+			// Sections whose on-disk content is unknown (a new partition) are written in full, bypassing the journal
+			boolean direct = journal == null || headerImage == null || fatImage == null;
+
+			// Save the changed folders, snapshots and reference counts to their chains, first since it may allocate blocks in the FAT
+			List<vFolder> savedFolders = new ArrayList<>();
+			if (!dirtyFolders.isEmpty()) {
+				saveFolders(changes);
+				savedFolders.addAll(dirtyFolders);
+				dirtyFolders.clear();
+			}
+			Map<Integer, byte[]> savedTrees = new HashMap<>(pendingTrees);
+			if (snapshotsDirty)
+				saveSnapshots(changes);
+			if (fat.referencesChanged() || (referenceTableBlock != 0 && referenceImage == null))
+				saveReferences(changes);
+
+			// Save the changed pages of the File Allocation Table (FAT) in place
+			if (fat.isDirty()) {
+				boolean known = fatImage != null;
+				if (!known)
+					fatImage = new byte[blocksPerFat * blockSize];
+				BitSet pages = fat.getDirtyPages();
+				byte[] page = new byte[blockSize];
+				for (int i = pages.nextSetBit(0); i >= 0; i = pages.nextSetBit(i + 1)) {
+					fat.encodePage(i, page, 0);
+					if (known)
+						diffBlock(page, fatImage, i * blockSize, bootSize + i, changes);
+					else
+						replaceBlock(page, fatImage, i * blockSize, bootSize + i, changes);
+				}
+				fat.clearDirty();
+			}
+
+			// Serialize and save vPartition last, it describes the state of the other sections
+			if (headerDirty) {
+				headerImage = diffRegion(serialize(this), headerImage, 0, bootSize, changes);
+				headerDirty = false;
+			}
+
+			if (!changes.isEmpty()) {
+				if (direct) {
+					try {
+						// A transaction of a failed save left in the log would undo these writes when replayed
+						if (journal != null)
+							journal.discard();
+						writeDirect(changes);
+					} catch (IOException | RuntimeException e) {
+						forgetSaved(new Commit(List.of(), savedFolders, savedTrees));
+						throw e;
+					}
+				} else {
+					ticket = journal.submit(changes);
+				}
+			}
+
+			if (ticket == 0) {
+				// The release of the freed blocks is durable, they can be zeroed
+				submitRetired();
+			} else {
+				// They can be zeroed once the commit is durable
+				synchronized (retiredRuns) {
+					committing.put(ticket, new Commit(new ArrayList<>(retiredRuns), savedFolders, savedTrees));
+					retiredRuns.clear();
+				}
+			}
+			evictColdFolders();
 		}
+		if (ticket == 0)
+			return;
 
-		// Serialize and save File Allocation Table (FAT)
-		try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		     ObjectOutputStream oos = new ObjectOutputStream(baos)) {
-			oos.writeObject(this.fat);
+		Commit commit;
+		try {
+			journal.await(ticket);
+		} catch (IOException e) {
+			try (PartitionLocks.Held held = locks.exclusive()) {
+				synchronized (retiredRuns) {
+					commit = committing.remove(ticket);
+				}
+				forgetSaved(commit);
+			}
+			throw e;
+		}
+		synchronized (retiredRuns) {
+			commit = committing.remove(ticket);
+		}
+		try (PartitionLocks.Held held = locks.shared()) {
+			trimWorker.submit(commit.released());
+		}
+	}
+
+	/**
+	 * Forgets the on-disk content of the metadata after a failed save, which may have written it in part.
+	 * The next save writes the header, the FAT and what the failed save wrote again in full, bypassing the journal.
+	 * Called with the partition locked exclusively.
+	 *
+	 * @param commit The failed save.
+	 */
+	private void forgetSaved(Commit commit) {
+		headerImage = null;
+		fatImage = null;
+		referenceImage = null;
+		snapshotImage = null;
+		headerDirty = true;
+		fat.markAllDirty();
+		snapshotsDirty |= snapshotCatalogBlock != 0;
+		for (Map.Entry<Integer, byte[]> tree : commit.trees().entrySet())
+			if (snapshots.stream().anyMatch(snapshot -> snapshot.treeBlock() == tree.getKey()))
+				pendingTrees.putIfAbsent(tree.getKey(), tree.getValue());
+		for (vFolder folder : commit.folders()) {
+			if (folder.isDeleted())
+				continue;
+			// A folder evicted since is loaded first, from the content the failed save gave it
+			synchronized (folder) {
+				if (!folder.isLoaded())
+					loadFolder(folder);
+			}
+			folder.setDiskImage(null);
+			dirtyFolders.add(folder);
+		}
+		// The blocks stay retired until a save makes their release durable
+		synchronized (retiredRuns) {
+			retiredRuns.addAll(commit.released());
+		}
+	}
+
+	/**
+	 * Writes saved changes in place, without a journal.
+	 */
+	private void writeDirect(List<Journal.Change> changes) throws IOException {
+		// Without a journal, the other sections must be durable before the header refers to them
+		List<Journal.Change> header = new ArrayList<>();
+		List<Journal.Change> sections = new ArrayList<>();
+		for (Journal.Change change : changes)
+			(change.block() == 0 ? header : sections).add(change);
+		Journal.writeHome(device, blockSize, sections);
+		if (!header.isEmpty()) {
+			device.force();
+			Journal.writeHome(device, blockSize, header);
+		}
+		// Make the saved state durable
+		device.force();
+	}
+
+	/**
+	 * Computes the changes saving the dirty folders to their directory blocks.
+	 * A new folder gets its first directory block here; its parent records that block, so it's saved too.
+	 * The chain of a folder grows or shrinks with its entries, and only the changed bytes are written.
+	 *
+	 * @param changes The list receiving the changes.
+	 * @throws IOException If a folder cannot be encoded.
+	 */
+	private void saveFolders(List<Journal.Change> changes) throws IOException {
+		boolean placed;
+		do {
+			placed = false;
+			for (vFolder folder : new ArrayList<>(dirtyFolders)) {
+				if (folder.getStartBlock() != -1)
+					continue;
+				folder.setStartBlock(fat.allocateBlock());
+				folder.setDiskImage(null);
+				adjustSpace(1);
+				if (folder == rootFolder)
+					rootDirectoryBlock = folder.getStartBlock();
+				else
+					placed |= dirtyFolders.add(folder.getLocation());
+			}
+		} while (placed);
+
+		for (vFolder folder : new ArrayList<>(dirtyFolders))
+			folder.setDiskImage(writeMetadataChain(folder.getStartBlock(), folder.encode(), folder.getDiskImage(), changes));
+	}
+
+	/**
+	 * Saves the reference counts of shared blocks to their chain, created on first use.
+	 *
+	 * @param changes The list receiving the changes.
+	 */
+	private void saveReferences(List<Journal.Change> changes) {
+		if (referenceTableBlock == 0) {
+			referenceTableBlock = firstDataBlock() + fat.allocateBlock();
+			referenceImage = null;
+			adjustSpace(1);
+		}
+		referenceImage = writeMetadataChain(referenceTableBlock - firstDataBlock(), fat.encodeReferences(), referenceImage, changes);
+	}
+
+	/**
+	 * Saves the trees of the new snapshots and the snapshot catalog to their chains, the catalog being created on first use.
+	 * The catalog holds the number of snapshots, then the name, creation time and first tree block of each.
+	 *
+	 * @param changes The list receiving the changes.
+	 * @throws IOException If the catalog cannot be encoded.
+	 */
+	private void saveSnapshots(List<Journal.Change> changes) throws IOException {
+		for (Map.Entry<Integer, byte[]> tree : pendingTrees.entrySet())
+			writeMetadataChain(tree.getKey(), tree.getValue(), null, changes);
+		pendingTrees.clear();
+
+		if (snapshotCatalogBlock == 0) {
+			snapshotCatalogBlock = firstDataBlock() + fat.allocateBlock();
+			snapshotImage = null;
+			adjustSpace(1);
+		}
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(baos);
+		out.writeInt(snapshotMagic);
+		out.writeInt(snapshots.size());
+		for (Snapshot snapshot : snapshots) {
+			Instant created = snapshot.creationTime().toInstant(ZoneOffset.UTC);
+			out.writeUTF(snapshot.name());
+			out.writeLong(created.getEpochSecond());
+			out.writeInt(created.getNano());
+			out.writeInt(snapshot.treeBlock());
+		}
+		snapshotImage = writeMetadataChain(snapshotCatalogBlock - firstDataBlock(), baos.toByteArray(), snapshotImage, changes);
+		snapshotsDirty = false;
+	}
+
+	private static List<Snapshot> decodeSnapshots(byte[] image) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(image));
+		if (in.readInt() != snapshotMagic)
+			throw new IOException("Corrupted snapshot catalog");
+		int count = in.readInt();
+		List<Snapshot> snapshots = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			String name = in.readUTF();
+			LocalDateTime created = LocalDateTime.ofEpochSecond(in.readLong(), in.readInt(), ZoneOffset.UTC);
+			snapshots.add(new Snapshot(name, created, in.readInt()));
+		}
+		return snapshots;
+	}
 
-			byte[] serializedData = baos.toByteArray();
+	/**
+	 * Computes the changes storing metadata (a folder, the reference counts) in its chain of blocks.
+	 * The chain grows or shrinks to fit the metadata, and only the changed bytes are written.
+	 *
+	 * @param startBlock The first block of the chain, which always remains.
+	 * @param image The encoded metadata.
+	 * @param onDisk The content of the chain as last read or written, or null if unknown.
+	 * @param changes The list receiving the changes.
+	 * @return The content of the chain once the changes are written.
+	 */
+	private byte[] writeMetadataChain(int startBlock, byte[] image, byte[] onDisk, List<Journal.Change> changes) {
+		int needed = Math.ceilDiv(image.length, blockSize);
+
+		// Fit the chain to the metadata
+		List<Integer> chain = chainBlocks(startBlock);
+		while (chain.size() < needed) {
+			int block = fat.allocateBlock();
+			fat.setNextBlock(chain.get(chain.size() - 1), block);
+			chain.add(block);
+			adjustSpace(1);
+		}
+		while (chain.size() > needed) {
+			// Retired rather than freed: the block isn't reused before the save dropping it is durable
+			int block = chain.remove(chain.size() - 1);
+			fat.retireBlock(block);
+			synchronized (retiredRuns) {
+				appendBlock(retiredRuns, block);
+			}
+			fat.setNextBlock(chain.get(chain.size() - 1), FileAllocationTable.END_OF_CHAIN);
+			adjustSpace(-1);
+		}
 
-			// Write FAT to multiple blocks
-			for (int i = 0; i < Math.ceilDiv(serializedData.length, blockSize); i++) {
-				byte[] chunk = new byte[blockSize];
-				int startIdx = (i * blockSize);
-				int endIdx = Math.min((i + 1) * blockSize, serializedData.length);
-				System.arraycopy(serializedData, startIdx, chunk, 0, endIdx - startIdx);
-				writeBlock(i + bootSize, chunk);
+		// Write the blocks that changed; blocks never written with this metadata are written in full
+		int known = onDisk == null ? 0 : Math.min(onDisk.length / blockSize, needed);
+		byte[] region = Arrays.copyOf(onDisk == null ? new byte[0] : onDisk, needed * blockSize);
+		byte[] padded = Arrays.copyOf(image, needed * blockSize);
+		for (int i = 0; i < needed; i++) {
+			int block = firstDataBlock() + chain.get(i);
+			if (i < known) {
+				diffBlock(Arrays.copyOfRange(padded, i * blockSize, (i + 1) * blockSize), region, i * blockSize, block, changes);
+			} else {
+				replaceBlock(Arrays.copyOfRange(padded, i * blockSize, (i + 1) * blockSize), region, i * blockSize, block, changes);
 			}
 		}
+		return region;
+	}
+
+	/**
+	 * Loads the entries of a folder from its directory blocks. Called by the folder on first access,
+	 * possibly from the threads of a tree walk, each loading different folders.
+	 *
+	 * @param folder The folder to load.
+	 * @throws RuntimeException If the directory blocks cannot be read.
+	 */
+	public void loadFolder(vFolder folder) {
+		try {
+			// A folder evicted by a save is decoded from the content the save gave its blocks,
+			// which the journal may not have written yet
+			byte[] image = folder.getDiskImage();
+			folder.load(image != null ? image : readMetadataChain(folder.getStartBlock()));
+		} catch (IOException e) {
+			throw new RuntimeException("Error reading folder " + folder.getName(), e);
+		}
+		loadedFolders.add(folder);
+	}
+
+	/**
+	 * Drops the entries of the least recently used folders while more than {@code maxLoadedFolders}
+	 * are loaded. Must be called right after a save, so that every loaded folder is clean.
+	 */
+	private void evictColdFolders() {
+		if (loadedFolders.size() <= maxLoadedFolders)
+			return;
+		// Folders may be loaded meanwhile by lookups outside of the partition's operations
+		List<vFolder> cold = new ArrayList<>(loadedFolders);
+		cold.remove(rootFolder);
+		cold.sort(Comparator.comparingLong(vFolder::getLastAccess));
+		for (int i = 0; i < cold.size() && loadedFolders.size() > maxLoadedFolders; i++) {
+			// Its files are read again as new objects, the cached paths to them would be stale
+			pathCache.invalidate(pathOf(cold.get(i)));
+			cold.get(i).evict();
+			loadedFolders.remove(cold.get(i));
+		}
+	}
+
+	/**
+	 * Reads a chain of metadata blocks (a folder, the reference counts), one I/O per run of consecutive blocks.
+	 *
+	 * @param startBlock The first block of the chain.
+	 * @return The content of the chain.
+	 * @throws IOException If there is an issue accessing the partition.
+	 */
+	private byte[] readMetadataChain(int startBlock) throws IOException {
+		List<Integer> chain = chainBlocks(startBlock);
+		byte[] image = new byte[chain.size() * blockSize];
+		int i = 0;
+		while (i < chain.size()) {
+			int j = i + 1;
+			while (j < chain.size() && chain.get(j) == chain.get(j - 1) + 1)
+				j++;
+			readBlocks(firstDataBlock() + chain.get(i), j - i, image, i * blockSize);
+			i = j;
+		}
+		return image;
+	}
+
+	private List<Integer> chainBlocks(int startBlock) {
+		List<Integer> chain = new ArrayList<>();
+		for (int block = startBlock; block != FileAllocationTable.END_OF_CHAIN; block = fat.getNextBlock(block))
+			chain.add(block);
+		return chain;
+	}
+
+	/**
+	 * Retires the blocks of a dropped metadata chain. Like the tail blocks {@link #writeMetadataChain} cuts off,
+	 * they aren't reused before the save dropping the chain is durable.
+	 */
+	private void retireChain(List<Integer> chain) {
+		for (int block : chain)
+			fat.retireBlock(block);
+		synchronized (retiredRuns) {
+			for (int block : chain)
+				appendBlock(retiredRuns, block);
+		}
+	}
+
+	/**
+	 * Releases the directory blocks of a deleted folder.
+	 */
+	private void freeFolder(vFolder folder) {
+		folder.markDeleted();
+		List<Integer> chain = chainBlocks(folder.getStartBlock());
+		retireChain(chain);
+		adjustSpace(-chain.size());
+		folder.setStartBlock(-1);
+		folder.setDiskImage(null);
+		dirtyFolders.remove(folder);
+		loadedFolders.remove(folder);
+	}
+
+	/**
+	 * Attaches a tree read from the legacy root region to the partition and marks every folder
+	 * as changed, so that the next save gives each of them its directory blocks.
+	 */
+	private void adoptTree(vFolder folder) {
+		folder.setPartition(this);
+		folder.setStartBlock(-1);
+		loadedFolders.add(folder);
+		dirtyFolders.add(folder);
+		for (vFile file : folder.getFiles())
+			if (file instanceof vFolder sub)
+				adoptTree(sub);
+	}
+
+	/**
+	 * Marks the folder holding a file as changed, so that it's written by the next {@link #save()}.
+	 * Must be called after changing the attributes of a file outside of vPartition (e.g. its permissions).
+	 *
+	 * @param file The changed file or folder.
+	 */
+	public void markDirty(vFile file) {
+		checkWritable();
+		dirtyFolders.add(file.getLocation() == null ? rootFolder : file.getLocation());
+	}
 
-		// Serialize and save root folder
+	/**
+	 * Serializes an object into a byte array.
+	 */
+	private static byte[] serialize(Object object) throws IOException {
 		try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
 		     ObjectOutputStream oos = new ObjectOutputStream(baos)) {
-			oos.writeObject(this.rootFolder);
-			byte[] serializedData = baos.toByteArray();
+			oos.writeObject(object);
+			oos.flush();
+			return baos.toByteArray();
+		}
+	}
 
-			// Write root folder to multiple blocks
-			for (int i = 0; i < Math.ceilDiv(serializedData.length, blockSize); i++) {
-				byte[] chunk = new byte[blockSize];
-				int startIdx = (i * blockSize);
-				int endIdx = Math.min((i + 1) * blockSize, serializedData.length);
-				System.arraycopy(serializedData, startIdx, chunk, 0, endIdx - startIdx);
-				writeBlock(i + bootSize + blocksPerFat, chunk);
-			}
+	/**
+	 * Computes the changes needed to store a serialized section in its fixed region:
+	 * every changed block yields one change covering its differing bytes.
+	 *
+	 * @param image The serialized section.
+	 * @param onDisk The region content as last written, or null if unknown.
+	 * @param firstBlock The first block of the region.
+	 * @param regionBlocks The size of the region in blocks.
+	 * @param changes The list receiving the changes.
+	 * @return The region content once the changes are written.
+	 * @throws IOException If the section doesn't fit in its region.
+	 */
+	private byte[] diffRegion(byte[] image, byte[] onDisk, int firstBlock, int regionBlocks, List<Journal.Change> changes) throws IOException {
+		if (image.length > regionBlocks * blockSize)
+			throw new IOException("Metadata exceeds its region (%d of %d bytes)".formatted(image.length, regionBlocks * blockSize));
+
+		byte[] region = onDisk != null ? onDisk : new byte[regionBlocks * blockSize];
+		byte[] padded = Arrays.copyOf(image, Math.ceilDiv(image.length, blockSize) * blockSize);
+		for (int i = 0; i < padded.length / blockSize; i++) {
+			byte[] block = Arrays.copyOfRange(padded, i * blockSize, (i + 1) * blockSize);
+			if (onDisk != null)
+				diffBlock(block, region, i * blockSize, firstBlock + i, changes);
+			else
+				replaceBlock(block, region, i * blockSize, firstBlock + i, changes);
+		}
+		return region;
+	}
+
+	/**
+	 * Computes the change needed to store a block, covering the bytes that differ from its on-disk content.
+	 *
+	 * @param block The new content of the block.
+	 * @param onDisk The content of the region holding the block, updated with the change.
+	 * @param offset The offset of the block in {@code onDisk}.
+	 * @param blockNumber The absolute number of the block.
+	 * @param changes The list receiving the change, if any.
+	 */
+	private static void diffBlock(byte[] block, byte[] onDisk, int offset, int blockNumber, List<Journal.Change> changes) {
+		int first = Arrays.mismatch(block, 0, blockSize, onDisk, offset, offset + blockSize);
+		if (first < 0)
+			return;
+		int last = blockSize - 1;
+		while (block[last] == onDisk[offset + last])
+			last--;
+		changes.add(new Journal.Change(blockNumber, first, Arrays.copyOfRange(block, first, last + 1)));
+		System.arraycopy(block, first, onDisk, offset + first, last + 1 - first);
+	}
+
+	/**
+	 * Computes the change storing a whole block whose on-disk content is unknown.
+	 *
+	 * @param block The new content of the block.
+	 * @param onDisk The content of the region holding the block, updated with the change.
+	 * @param offset The offset of the block in {@code onDisk}.
+	 * @param blockNumber The absolute number of the block.
+	 * @param changes The list receiving the change.
+	 */
+	private static void replaceBlock(byte[] block, byte[] onDisk, int offset, int blockNumber, List<Journal.Change> changes) {
+		changes.add(new Journal.Change(blockNumber, 0, Arrays.copyOf(block, blockSize)));
+		System.arraycopy(block, 0, onDisk, offset, blockSize);
+	}
+
+	/**
+	 * Reads a metadata region with a single I/O.
+	 *
+	 * @param firstBlock The first block of the region.
+	 * @param regionBlocks The size of the region in blocks.
+	 * @return The content of the region.
+	 * @throws IOException If there is an issue accessing the partition.
+	 */
+	private byte[] readRegion(int firstBlock, int regionBlocks) throws IOException {
+		byte[] region = new byte[regionBlocks * blockSize];
+		readBlocks(firstBlock, regionBlocks, region, 0);
+		return region;
+	}
+
+	/**
+	 * Deserializes an object from a byte array.
+	 */
+	private static Object deserialize(byte[] data) throws IOException, ClassNotFoundException {
+		try (ByteArrayInputStream bais = new ByteArrayInputStream(data);
+		     ObjectInputStream ois = new ObjectInputStream(bais)) {
+			return ois.readObject();
 		}
 	}
 
@@ -149,54 +841,42 @@ public class vPartition implements Serializable {
 	 * @throws ClassNotFoundException If the class of a serialized object cannot be found.
 	 */
 	public FileAllocationTable deserializeFat() throws IOException, ClassNotFoundException {
-		// Create a byte array to store the serialized data of the FAT
-		byte[] obj = new byte[blockSize * blocksPerFat];
-
-		// Read serialized data from blocks and concatenate into the byte array
-		for (int i = 0; i < blocksPerFat; i++) {
-			byte[] chunk = readBlock(i + bootSize);
-			System.arraycopy(chunk, 0, obj, i * blockSize, chunk.length);
-		}
-
-		// Deserialize the FileAllocationTable instance from the byte array
-		try (ByteArrayInputStream bais = new ByteArrayInputStream(obj);
-		     ObjectInputStream ois = new ObjectInputStream(bais)) {
-			return (FileAllocationTable) ois.readObject();
-		}
+		byte[] region = readRegion(bootSize, blocksPerFat);
+		if (fatFormat == binaryFatFormat)
+			return new FileAllocationTable(region, dataBlocks());
+		return (FileAllocationTable) deserialize(region);
 	}
 
 	/**
-	 * Deserialize the root folder from the disk.
+	 * Deserialize the root folder from the disk. Its sub-folders are read on first access.
 	 *
 	 * @return The deserialized vFolder instance representing the root folder.
 	 * @throws IOException If an I/O error occurs during the deserialization process.
 	 * @throws ClassNotFoundException If the class of a serialized object cannot be found.
 	 */
 	public vFolder deserializeRoot() throws IOException, ClassNotFoundException {
-		// Create a byte array to store the serialized data of the root folder
-		byte[] obj = new byte[blockSize * blocksPerRoot];
-
-		// Read serialized data from blocks and concatenate into the byte array
-		for (int i = 0; i < blocksPerRoot; i++) {
-			byte[] chunk = readBlock(i + bootSize + blocksPerFat);
-			System.arraycopy(chunk, 0, obj, i * blockSize, chunk.length);
-		}
-
-		// Deserialize the vFolder instance from the byte array
-		try (ByteArrayInputStream bais = new ByteArrayInputStream(obj);
-		     ObjectInputStream ois = new ObjectInputStream(bais)) {
-			return (vFolder) ois.readObject();
-		}
+		if (directoryFormat == blockDirectoryFormat)
+			return vFolder.readRoot(readMetadataChain(rootDirectoryBlock), this);
+		return (vFolder) deserialize(readRegion(bootSize + blocksPerFat, blocksPerRoot));
 	}
 
 	/**
-	 * Forces an unmount operation by closing the RandomAccessFile associated with the virtual partition.
+	 * Forces an unmount operation by closing the block device associated with the virtual partition.
 	 */
 	public void forceUnmount() {
-		try {
-			this.partitionHead.close();
-		} catch (IOException e) {
-			throw new RuntimeException(e);
+		try (PartitionLocks.Held held = locks.exclusive()) {
+			// The device of a snapshot belongs to its partition
+			if (snapshotName != null)
+				return;
+			try {
+				awaitAsyncWrites();
+				trimWorker.close();
+				if (journal != null)
+					journal.close();
+				this.device.close();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
 		}
 	}
 
@@ -209,18 +889,24 @@ public class vPartition implements Serializable {
 	 * @return The newly created vFile instance, or null if the file already exists in the folder.
 	 */
 	public vFile createFile(vFolder folder, String fileName, String fileType) {
-		// Create a new vFile instance
-		vFile file = new vFile(fileName, fileType, folder);
+		try (PartitionLocks.Held held = locks.folder(folder, true)) {
+			checkWritable();
+			checkExists(folder);
+			// Create a new vFile instance
+			vFile file = new vFile(fileName, fileType, folder);
 
-		// Check if the file already exists in the folder
-		if (folder.getFileStartBlock(file) != null)
-			return null; // File with the same name and type already exists
+			// Check if the file already exists in the folder
+			if (folder.getFileStartBlock(file) != null)
+				return null; // File with the same name and type already exists
 
-		// Create a new entry for the file in the folder
-		folder.createEntry(file, -1);
+			// Create a new entry for the file in the folder
+			folder.createEntry(file, -1);
+			markDirty(file);
+			index(file);
 
-		// Return the newly created vFile instance
-		return file;
+			// Return the newly created vFile instance
+			return file;
+		}
 	}
 
 	/**
@@ -231,12 +917,17 @@ public class vPartition implements Serializable {
 	 * @throws IllegalArgumentException if the file doesn't exist
 	 */
 	public void deleteFile(vFolder folder, vFile file) {
-		if (file == null)
-			throw new IllegalArgumentException("File doesn't exists");
-		long n_blocks = deleteFileData(folder, file);
-		folder.deleteEntry(file);
-		usedSpace -= n_blocks * blockSize;
-		freeSpace += n_blocks * blockSize;
+		try (PartitionLocks.Held held = locks.folder(folder, true)) {
+			file = current(folder, file);
+			checkWritable();
+			if (file == null)
+				throw new IllegalArgumentException("File doesn't exists");
+			forget(file);
+			long n_blocks = deleteFileData(folder, file);
+			folder.deleteEntry(file);
+			adjustSpace(-n_blocks);
+			markDirty(file);
+		}
 	}
 
 	/**
@@ -246,33 +937,46 @@ public class vPartition implements Serializable {
 	 * @param sourceFile The file to be moved (vFile instance).
 	 * @param destDir The destination vFolder instance.
 	 * @param destFile The new name of the file after moving.
-	 * @throws IllegalArgumentException If the file is not found in the source folder.
+	 * @throws IllegalArgumentException If the file is not found in the source folder, or the destination exists.
 	 */
 	public void moveFile(vFolder sourceDir, vFile sourceFile, vFolder destDir, String destFile) {
-		// Check if the file exists in the source folder
-		Integer startBlock = sourceDir.getFileStartBlock(sourceFile);
-		if (startBlock == null) {
-			throw new IllegalArgumentException("File not found");
-		}
-
-		// If destFile is empty, use the original full name of the source file
-		if (destFile.isEmpty()) {
-			destFile = sourceFile.getFullName();
-		}
-
-		// Split destFile into name and type
-		String[] arr = destFile.split("\\.", 2);
-
-		// Update file properties
-		sourceFile.setName(arr[0]);
-		sourceFile.setType(arr[1]);
-		sourceFile.setLocation(destDir);
+		try (PartitionLocks.Held held = sourceFile instanceof vFolder ? locks.exclusive() : locks.folders(sourceDir, destDir)) {
+			sourceFile = current(sourceDir, sourceFile);
+			checkWritable();
+			// Check if the file exists in the source folder
+			Integer startBlock = sourceDir.getFileStartBlock(sourceFile);
+			if (startBlock == null) {
+				throw new IllegalArgumentException("File not found");
+			}
 
-		// Delete the file entry from the source folder
-		sourceDir.deleteEntry(sourceFile);
+			// If destFile is empty, use the original full name of the source file
+			if (destFile.isEmpty()) {
+				destFile = sourceFile.getFullName();
+			}
 
-		// Create a new entry for the file in the destination folder
-		destDir.createEntry(sourceFile, sourceFile.getStartBlock());
+			// Split destFile into name and type
+			String[] arr = destFile.split("\\.", 2);
+			if (arr.length < 2)
+				throw new IllegalArgumentException("File %s must have a type".formatted(destFile));
+			vFile existing = destDir.getFileByNameAndType(arr[0], arr[1]);
+			if (existing != null && existing != sourceFile)
+				throw new IllegalArgumentException("File %s already exists".formatted(destFile));
+
+			// Delete the file entry from the source folder while it's still keyed by its current name
+			forget(sourceFile);
+			sourceDir.deleteEntry(sourceFile);
+			dirtyFolders.add(sourceDir);
+
+			// Update file properties
+			sourceFile.setName(arr[0]);
+			sourceFile.setType(arr[1]);
+			sourceFile.setLocation(destDir);
+
+			// Create a new entry for the file in the destination folder
+			destDir.createEntry(sourceFile, sourceFile.getStartBlock());
+			dirtyFolders.add(destDir);
+			index(sourceFile);
+		}
 	}
 
 	/**
@@ -285,14 +989,98 @@ public class vPartition implements Serializable {
 	 * @throws IllegalArgumentException if the source file is not found
 	 */
 	public void copyFile(vFolder sourceDir, vFile sourceFile, vFolder destDir, String destFile) {
-		if (sourceFile == null)
-			throw new IllegalArgumentException("File doesn't exists");
+		try (PartitionLocks.Held held = locks.folders(sourceDir, destDir)) {
+			sourceFile = current(sourceDir, sourceFile);
+			checkWritable();
+			if (sourceFile == null)
+				throw new IllegalArgumentException("File doesn't exists");
+			if (!sourceFile.hasReadPermission())
+				throw new SecurityException("File is read-protected");
+			Integer startBlock = sourceDir.getFileStartBlock(sourceFile);
+			if (startBlock == null)
+				throw new RuntimeException("File not found.");
+
+			if (destFile.isEmpty())
+				destFile = sourceFile.getFullName();
+			String[] arr = destFile.split("\\.", 2);
+			vFile copy = createFile(destDir, arr[0], arr[1]);
+			if (copy == null)
+				throw new IllegalArgumentException("File %s already exists".formatted(destFile));
+
+			// The copy shares the chain of the source; blocks are copied when either file modifies them
+			List<Extent> extents = extentsOf(sourceFile);
+			for (Extent extent : extents)
+				for (int block = extent.start(); block < extent.end(); block++)
+					fat.shareBlock(block);
+			copy.setSize(sourceFile.getSize());
+			copy.setNumOfBlocks(sourceFile.getNumOfBlocks());
+			copy.setExtents(extents);
+			copy.setStartBlock(startBlock);
+			copy.setModificationTime(LocalDateTime.now());
+			markDirty(copy);
+		}
+	}
+
+	/**
+	 * Gives a file its own copy of the shared blocks among its first blocks (copy-on-write), so that they can
+	 * be modified without affecting the other files sharing them.
+	 * Shared blocks always form the end of a chain, since a chain is shared from its first block on and only
+	 * its beginning is ever copied. The block linking to a copied block must be private too, so every shared
+	 * block up to {@code lastIndex} is copied; the following blocks remain shared.
+	 *
+	 * @param file The file about to be modified.
+	 * @param lastIndex The index in the file of the last block to modify.
+	 * @throws IOException If copying the blocks fails.
+	 */
+	private void unshareBlocks(vFile file, int lastIndex) throws IOException {
+		if (file.getStartBlock() == -1 || fat.getSharedBlocks() == 0)
+			return;
 
-		byte[] data = getFileData(sourceDir, sourceFile);
-		if (destFile.isEmpty())
-			destFile = sourceFile.getFullName();
-		String[] arr = destFile.split("\\.", 2);
-		saveFileData(destDir, createFile(destDir, arr[0], arr[1]), data);
+		// Find the shared blocks up to lastIndex, after the last private block
+		List<Integer> shared = new ArrayList<>();
+		int lastPrivate = -1;
+		int block = file.getStartBlock();
+		for (int i = 0; i <= lastIndex && block != FileAllocationTable.END_OF_CHAIN; i++) {
+			if (fat.isShared(block))
+				shared.add(block);
+			else
+				lastPrivate = block;
+			block = fat.getNextBlock(block);
+		}
+		if (shared.isEmpty())
+			return;
+
+		// Copy them to new blocks, linked in place of the shared ones, a buffer of blocks at a time:
+		// shared blocks following each other are read with one I/O, and each buffer is written with one I/O
+		List<Extent> copies = allocateExtents(shared.size());
+		byte[] buffer = new byte[Math.min(shared.size(), streamBufferBlocks) * blockSize];
+		int i = 0;
+		for (Extent extent : copies) {
+			for (int done = 0; done < extent.length(); ) {
+				int count = Math.min(buffer.length / blockSize, extent.length() - done);
+				for (int k = 0; k < count; ) {
+					int run = 1;
+					while (k + run < count && shared.get(i + k + run) == shared.get(i + k) + run)
+						run++;
+					readBlocks(firstDataBlock() + shared.get(i + k), run, buffer, k * blockSize);
+					k += run;
+				}
+				writeBlocks(firstDataBlock() + extent.start() + done, count, buffer, 0);
+				i += count;
+				done += count;
+			}
+		}
+		fat.setNextBlock(copies.get(copies.size() - 1).end() - 1, block);
+		if (lastPrivate == -1)
+			file.setStartBlock(copies.get(0).start());
+		else
+			fat.setNextBlock(lastPrivate, copies.get(0).start());
+		for (int original : shared)
+			fat.releaseBlock(original);
+
+		file.setExtents(chainExtents(file.getStartBlock()));
+		adjustSpace(shared.size());
+		markDirty(file);
 	}
 
 	/**
@@ -302,16 +1090,24 @@ public class vPartition implements Serializable {
 	 * @param folderName The name of the new folder.
 	 */
 	public void createFolder(vFolder parent, String folderName) {
-		// Create a new vFolder object with the given name and parent
-		vFolder folder = new vFolder(folderName, parent);
+		try (PartitionLocks.Held held = locks.folder(parent, true)) {
+			checkWritable();
+			checkExists(parent);
+			// Create a new vFolder object with the given name and parent
+			vFolder folder = new vFolder(folderName, parent);
+
+			// Check if the folder already exists in the parent folder
+			if (parent.getFileStartBlock(folder) != null) {
+				return; // Folder already exists, no need to create a new one
+			}
 
-		// Check if the folder already exists in the parent folder
-		if (parent.getFileStartBlock(folder) != null) {
-			return; // Folder already exists, no need to create a new one
+			// Create a new entry for the folder in the parent folder, the folder gets its directory blocks on save
+			parent.createEntry(folder, -1);
+			markDirty(folder);
+			dirtyFolders.add(folder);
+			loadedFolders.add(folder);
+			index(folder);
 		}
-
-		// Create a new entry for the folder in the parent folder
-		parent.createEntry(folder, -1);
 	}
 
 
@@ -323,18 +1119,24 @@ public class vPartition implements Serializable {
 	 * @throws IllegalArgumentException If the folder doesn't exist.
 	 */
 	public void deleteFolder(vFolder parent, String folderName) {
-		// Get the folder to be deleted
-		vFolder folder = parent.getSubFolderByName(folderName);
-
-		// Check if the folder exists
-		if (folder == null)
-			throw new IllegalArgumentException("Folder doesn't exist");
-
-		// Recursively delete the folder and its children
-		deleteFolderChildren(folder);
-
-		// Remove the folder entry from the parent folder
-		parent.deleteEntry(folder);
+		try (PartitionLocks.Held held = locks.exclusive()) {
+			checkWritable();
+			// Get the folder to be deleted
+			vFolder folder = parent.getSubFolderByName(folderName);
+
+			// Check if the folder exists
+			if (folder == null)
+				throw new IllegalArgumentException("Folder doesn't exist");
+
+			// Recursively delete the folder and its children
+			forget(folder);
+			deleteFolderChildren(folder);
+			freeFolder(folder);
+
+			// Remove the folder entry from the parent folder
+			parent.deleteEntry(folder);
+			dirtyFolders.add(parent);
+		}
 	}
 
 	/**
@@ -347,84 +1149,512 @@ public class vPartition implements Serializable {
 	 * @throws RuntimeException If the file is not found or an IO error occurs during data retrieval.
 	 */
 	public byte[] getFileData(vFolder folder, vFile file) {
-		// Check read permission for the file
-		if (!file.hasReadPermission()) {
-			throw new SecurityException("File is read-protected");
+		try (PartitionLocks.Held held = locks.file(folder, file, false)) {
+			try (vFileInputStream in = openInputStream(folder, file)) {
+				// Read the content straight into an array of the file's size
+				byte[] result = new byte[in.available()];
+				int read = in.readNBytes(result, 0, result.length);
+				return read == result.length ? result : Arrays.copyOf(result, read);
+			} catch (IOException e) {
+				// Throw a runtime exception if an IO error occurs during data retrieval
+				throw new RuntimeException("Error retrieving file data.", e);
+			}
 		}
+	}
 
-		try {
-			// Get the start block index of the file
-			Integer idx = folder.getFileStartBlock(file);
+	/**
+	 * Opens a stream over the content of a vFile in the specified vFolder.
+	 * The file is read block run by block run as the stream is consumed, up to its recorded size.
+	 *
+	 * @param folder The vFolder instance containing the file.
+	 * @param file The vFile instance to read.
+	 * @return A stream (and channel) over the content of the file.
+	 * @throws SecurityException If the file is read-protected.
+	 * @throws RuntimeException If the file is not found.
+	 */
+	public vFileInputStream openInputStream(vFolder folder, vFile file) {
+		try (PartitionLocks.Held held = locks.file(folder, file, false)) {
+			file = current(folder, file);
+			// Check read permission for the file
+			if (!file.hasReadPermission()) {
+				throw new SecurityException("File is read-protected");
+			}
 
 			// Check if the file is not found
-			if (idx == null) {
+			if (folder.getFileStartBlock(file) == null) {
 				throw new RuntimeException("File not found.");
 			}
 
-			// Check if the file has no data blocks
-			if (idx == -1) {
-				return new byte[0]; // Empty file
-			}
-
 			// Update the access time of the file
-			file.setAccessTime(LocalDateTime.now());
+			if (file.getStartBlock() != -1)
+				file.setAccessTime(LocalDateTime.now());
 
-			// List to store data blocks of the file
-			List<byte[]> blocks = new LinkedList<>();
+			return new vFileInputStream(this, fat, firstDataBlock(), blockSize, file);
+		}
+	}
 
-			// Iterate through the file's data blocks
-			while (idx != -1) {
-				// Read the data block from the partition
-				byte[] blockData = readBlock(firstDataBlock() + idx);
+	/**
+	 * Saves data to a vFile instance within the specified vFolder.
+	 *
+	 * @param folder The vFolder instance containing the file.
+	 * @param file The vFile instance for which to save the data.
+	 * @param data The byte array containing the content of the vFile.
+	 * @throws SecurityException If the file is write-protected.
+	 * @throws RuntimeException If an error occurs during data saving.
+	 */
+	public void saveFileData(vFolder folder, vFile file, byte[] data) {
+		try (PartitionLocks.Held held = locks.file(folder, file, true)) {
+			file = current(folder, file);
+			checkWritable();
+			List<Extent> extents = replaceFileData(folder, file, data.length);
+
+			try {
+				// Write every extent of the file with a single I/O
+				int offset = 0;
+				for (Extent extent : extents) {
+					writeBlocks(firstDataBlock() + extent.start(), extent.length(), data, offset);
+					offset += extent.length() * blockSize;
+				}
+			} catch (IOException e) {
+				// Throw a runtime exception if an IO error occurs during data saving
+				throw new RuntimeException("Error saving file data.", e);
+			}
+		}
+	}
 
-				// Add the data block to the list
-				blocks.add(blockData);
+	/**
+	 * Opens a stream writing to a vFile in the specified vFolder.
+	 * In append mode, the content is added after the existing one: the last block of the file is filled first,
+	 * then new blocks are linked onto its chain. Otherwise the existing content is released first.
+	 * The changed metadata of the file is written by the next {@link #save()}.
+	 *
+	 * @param folder The vFolder instance containing the file.
+	 * @param file The vFile instance to write.
+	 * @param append true to append to the existing content, false to replace it.
+	 * @return A stream (and channel) writing to the file.
+	 * @throws SecurityException If the file is write-protected.
+	 * @throws RuntimeException If the file is not found.
+	 */
+	public vFileOutputStream openOutputStream(vFolder folder, vFile file, boolean append) {
+		try (PartitionLocks.Held held = locks.file(folder, file, true)) {
+			file = current(folder, file);
+			checkWritable();
+			// Check if the file is not found
+			Integer startBlock = folder.getFileStartBlock(file);
+			if (startBlock == null)
+				throw new RuntimeException("File not found.");
 
-				// Get the next data block index
-				idx = fat.getNextBlock(idx);
+			if (!append) {
+				replaceFileData(folder, file, 0);
+			} else {
+				// Check write permission for the file
+				if (!file.hasWritePermission())
+					throw new SecurityException("File is write-protected.");
+				// Files written before extents were tracked get them from their chain
+				if (startBlock != -1 && file.getExtents() == null)
+					file.setExtents(chainExtents(startBlock));
+				// Appending modifies the last block and its link, the whole chain must be private
+				try {
+					unshareBlocks(file, file.getNumOfBlocks() - 1);
+				} catch (IOException e) {
+					throw new RuntimeException("Error copying shared blocks.", e);
+				}
 			}
+			return new vFileOutputStream(this, firstDataBlock(), blockSize, file);
+		}
+	}
 
-			// Calculate the total size of the file's content
-			int totalSize = blocks.size() * blockSize;
+	/**
+	 * Reads the content of a vFile without waiting for it. Every run of consecutive blocks of the file is
+	 * requested at once, so the reads are in flight together, and the future completes when all of them landed.
+	 * Like a stream, the read isn't isolated from writes to the file made before it completes.
+	 *
+	 * @param folder The vFolder instance containing the file.
+	 * @param file The vFile instance to read.
+	 * @return A future of the content of the file, failing if an IO error occurs.
+	 * @throws SecurityException If the file is read-protected.
+	 * @throws IllegalArgumentException If the file is larger than an array can hold.
+	 * @throws RuntimeException If the file is not found.
+	 */
+	public CompletableFuture<byte[]> readFileAsync(vFolder folder, vFile file) {
+		try (PartitionLocks.Held held = locks.file(folder, file, false)) {
+			file = current(folder, file);
+			// Check read permission for the file
+			if (!file.hasReadPermission())
+				throw new SecurityException("File is read-protected");
+			if (folder.getFileStartBlock(file) == null)
+				throw new RuntimeException("File not found.");
+			if (file.getStartBlock() != -1)
+				file.setAccessTime(LocalDateTime.now());
 
-			// Create a byte array to store the concatenated content of the file
-			byte[] result = new byte[totalSize];
+			if (file.getSize() > Integer.MAX_VALUE)
+				throw new IllegalArgumentException("File is too large to be read into an array, use a stream");
 
-			// Copy data from each block to the result array
+			// Request every extent of the file, up to its size
+			byte[] result = new byte[(int) file.getSize()];
+			List<CompletableFuture<Void>> reads = new ArrayList<>();
 			int offset = 0;
-			for (byte[] block : blocks) {
-				System.arraycopy(block, 0, result, offset, blockSize);
-				offset += blockSize;
+			for (Extent extent : extentsOf(file)) {
+				if (offset == result.length)
+					break;
+				int length = (int) Math.min((long) extent.length() * blockSize, result.length - offset);
+				reads.add(device.readAsync((long) (firstDataBlock() + extent.start()) * blockSize, result, offset, length));
+				offset += length;
 			}
+			return CompletableFuture.allOf(reads.toArray(CompletableFuture[]::new)).thenApply(done -> result);
+		}
+	}
 
-			// Find the actual size of the file's content by searching for the first zero byte
-			int i;
-			for (i = 0; i < result.length; i++) {
-				if (result[i] == 0) {
-					break;
+	/**
+	 * Replaces the content of a vFile without waiting for the data to be written. The blocks of the new content
+	 * are allocated at once, then every run of consecutive blocks is written with its own request, all of them in
+	 * flight together, and the future completes when all of them landed. The next {@link #save()} waits for the
+	 * writes in flight before saving the file's metadata.
+	 *
+	 * @param folder The vFolder instance containing the file.
+	 * @param file The vFile instance for which to save the data.
+	 * @param data The content of the vFile, which must not be modified until the future completes.
+	 * @return A future completed once the content is written, failing if an IO error occurs.
+	 * @throws SecurityException If the file is write-protected.
+	 */
+	public CompletableFuture<Void> writeFileAsync(vFolder folder, vFile file, byte[] data) {
+		try (PartitionLocks.Held held = locks.file(folder, file, true)) {
+			file = current(folder, file);
+			checkWritable();
+			List<Extent> extents = replaceFileData(folder, file, data.length);
+
+			// Write whole blocks, the end of the last one is zeroed
+			byte[] blocks = data.length % blockSize == 0 ? data : Arrays.copyOf(data, file.getNumOfBlocks() * blockSize);
+			List<CompletableFuture<Void>> writes = new ArrayList<>();
+			int offset = 0;
+			for (Extent extent : extents) {
+				int length = extent.length() * blockSize;
+				writes.add(device.writeAsync((long) (firstDataBlock() + extent.start()) * blockSize, blocks, offset, length));
+				offset += length;
+			}
+			CompletableFuture<Void> written = CompletableFuture.allOf(writes.toArray(CompletableFuture[]::new));
+			asyncWrites.add(written);
+			written.whenComplete((done, e) -> asyncWrites.remove(written));
+			return written;
+		}
+	}
+
+	/**
+	 * Waits for the asynchronous file writes in flight. Their failures are left to their callers.
+	 */
+	private void awaitAsyncWrites() {
+		for (CompletableFuture<Void> write : List.copyOf(asyncWrites))
+			write.exceptionally(e -> null).join();
+	}
+
+	/**
+	 * Reads bytes of a vFile at a given offset, like {@code pread}. Only the blocks holding the range are read,
+	 * with one I/O per run of consecutive blocks, and they are found through the block index of the file.
+	 *
+	 * @param folder The vFolder instance containing the file.
+	 * @param file The vFile instance to read.
+	 * @param position The offset in the file of the first byte to read.
+	 * @param dest The array receiving the bytes.
+	 * @param offset The offset in {@code dest} of the first byte read.
+	 * @param length The maximum number of bytes to read.
+	 * @return The number of bytes read, or -1 if {@code position} is at or beyond the end of the file.
+	 * @throws SecurityException If the file is read-protected.
+	 * @throws RuntimeException If the file is not found or an IO error occurs.
+	 */
+	public int pread(vFolder folder, vFile file, long position, byte[] dest, int offset, int length) {
+		try (PartitionLocks.Held held = locks.file(folder, file, false)) {
+			file = current(folder, file);
+			if (!file.hasReadPermission())
+				throw new SecurityException("File is read-protected");
+			if (folder.getFileStartBlock(file) == null)
+				throw new RuntimeException("File not found.");
+			if (position < 0)
+				throw new IllegalArgumentException("Position must be non-negative");
+			if (position >= file.getSize())
+				return -1;
+
+			length = (int) Math.min(length, file.getSize() - position);
+			try {
+				transfer(file, position, dest, offset, length, false);
+			} catch (IOException e) {
+				throw new RuntimeException("Error reading file data.", e);
+			}
+			file.setAccessTime(LocalDateTime.now());
+			return length;
+		}
+	}
+
+	/**
+	 * Writes bytes to a vFile at a given offset, like {@code pwrite}. Only the blocks holding the range are
+	 * written; a range past the last block extends the chain, and a gap between the end of the file and
+	 * {@code position} is filled with zeros.
+	 *
+	 * @param folder The vFolder instance containing the file.
+	 * @param file The vFile instance to write.
+	 * @param position The offset in the file of the first byte to write.
+	 * @param src The array holding the bytes.
+	 * @param offset The offset in {@code src} of the first byte to write.
+	 * @param length The number of bytes to write.
+	 * @throws SecurityException If the file is write-protected.
+	 * @throws RuntimeException If the file is not found or an IO error occurs.
+	 */
+	public void pwrite(vFolder folder, vFile file, long position, byte[] src, int offset, int length) {
+		try (PartitionLocks.Held held = locks.file(folder, file, true)) {
+			file = current(folder, file);
+			checkWritable();
+			if (!file.hasWritePermission())
+				throw new SecurityException("File is write-protected.");
+			Integer startBlock = folder.getFileStartBlock(file);
+			if (startBlock == null)
+				throw new RuntimeException("File not found.");
+			if (position < 0)
+				throw new IllegalArgumentException("Position must be non-negative");
+
+			try {
+				// Copy the shared blocks the range modifies (all of them if the chain grows), then grow the chain
+				long end = position + length;
+				int needed = (int) Math.ceilDiv(end, blockSize);
+				unshareBlocks(file, Math.min(needed, file.getNumOfBlocks()) - 1);
+				if (needed > file.getNumOfBlocks()) {
+					if (startBlock != -1 && file.getExtents() == null)
+						file.setExtents(chainExtents(startBlock));
+					extendFileData(file, needed - file.getNumOfBlocks());
+				}
+
+				// Zero the gap between the end of the file and the range, the blocks may hold stale data
+				byte[] zeros = new byte[streamBufferBlocks * blockSize];
+				for (long gap = file.getSize(); gap < position; gap += zeros.length)
+					transfer(file, gap, zeros, 0, (int) Math.min(zeros.length, position - gap), true);
+
+				transfer(file, position, src, offset, length, true);
+				if (end > file.getSize())
+					file.setSize(end);
+			} catch (IOException e) {
+				throw new RuntimeException("Error writing file data.", e);
+			}
+			file.setModificationTime(LocalDateTime.now());
+			markDirty(file);
+		}
+	}
+
+	/**
+	 * Reads or writes a range of a file inside its chain, one I/O per run of physically consecutive blocks.
+	 */
+	private void transfer(vFile file, long position, byte[] data, int offset, int length, boolean write) throws IOException {
+		BlockIndex index = file.getBlockIndex();
+		if (index == null) {
+			index = new BlockIndex(fat, file);
+			file.setBlockIndex(index);
+		}
+		while (length > 0) {
+			int block = (int) (position / blockSize);
+			int inBlock = (int) (position % blockSize);
+			int run = index.runLength(block, Math.ceilDiv(inBlock + length, blockSize));
+			if (run == 0)
+				throw new IOException("Chain of %s ends before offset %d".formatted(file.getFullName(), position));
+			int chunk = (int) Math.min(length, (long) run * blockSize - inBlock);
+			long devicePosition = (long) (firstDataBlock() + index.physical(block)) * blockSize + inBlock;
+			if (write)
+				device.write(devicePosition, data, offset, chunk);
+			else
+				device.read(devicePosition, data, offset, chunk);
+			position += chunk;
+			offset += chunk;
+			length -= chunk;
+		}
+	}
+
+	/**
+	 * Allocates blocks at the end of a file's chain. Called by {@link vFileOutputStream} when the blocks of
+	 * the file are full.
+	 *
+	 * @param file The file to extend; its extents must be known.
+	 * @param numBlocks The number of blocks to add.
+	 * @return The added blocks as extents, in chain order.
+	 */
+	List<Extent> extendFileData(vFile file, int numBlocks) {
+		try (PartitionLocks.Held held = locks.file(file.getLocation(), file, true)) {
+			checkExists(file.getLocation());
+			// A copy or a snapshot made since the stream was opened may share the end of the chain; the new blocks
+			// can't follow shared ones, shared blocks always form the end of a chain
+			try {
+				unshareBlocks(file, file.getNumOfBlocks() - 1);
+			} catch (IOException e) {
+				throw new RuntimeException("Error copying shared blocks.", e);
+			}
+			List<Extent> added = allocateExtents(numBlocks);
+			List<Extent> extents = new ArrayList<>(file.getExtents() == null ? List.of() : file.getExtents());
+			if (file.getStartBlock() == -1 || extents.isEmpty()) {
+				file.setStartBlock(added.get(0).start());
+				extents.addAll(added);
+			} else {
+				// Link the new blocks after the last block, merging the runs if they're adjacent
+				Extent last = extents.remove(extents.size() - 1);
+				fat.setNextBlock(last.end() - 1, added.get(0).start());
+				if (last.end() == added.get(0).start()) {
+					extents.add(new Extent(last.start(), last.length() + added.get(0).length()));
+					extents.addAll(added.subList(1, added.size()));
+				} else {
+					extents.add(last);
+					extents.addAll(added);
 				}
 			}
+			file.setExtents(extents);
+			file.setNumOfBlocks(file.getNumOfBlocks() + numBlocks);
+			adjustSpace(numBlocks);
+			markDirty(file);
+			return added;
+		}
+	}
+
+	/**
+	 * Locks a file for a write of {@link vFileOutputStream}.
+	 *
+	 * @param file The file written by the stream.
+	 * @return The held locks.
+	 */
+	PartitionLocks.Held lockFile(vFile file) {
+		return locks.file(file.getLocation(), file, true);
+	}
 
-			// Trim the result array to the actual size of the file's content
-			result = Arrays.copyOfRange(result, 0, i);
+	/**
+	 * Gets the object the folder of a file currently holds for it, for {@link vFileOutputStream}: once the folder
+	 * is evicted and reloaded, the stream's object is no longer part of the tree. Called under the lock of the file.
+	 *
+	 * @param file The file written by the stream.
+	 * @return The entry of the folder for the file, or null if the file was deleted.
+	 */
+	vFile currentEntry(vFile file) {
+		return file.getLocation().getEntry(file);
+	}
+
+	/**
+	 * @return The device block I/O currently goes through, which {@link #setBlockCache} replaces.
+	 * {@link vFileOutputStream} gets it for each write, under the lock of the file, which keeps the cache
+	 * from being replaced meanwhile.
+	 */
+	BlockDevice device() {
+		return device;
+	}
 
-			return result;
+	/**
+	 * @return The in-memory FAT of the partition, for the tests.
+	 */
+	FileAllocationTable fat() {
+		return fat;
+	}
+
+	/**
+	 * Reads bytes of the partition for {@link vFileInputStream}, through its current device. The shared lock
+	 * keeps {@link #setBlockCache} from replacing the cache during the read.
+	 *
+	 * @param position The byte offset to read from.
+	 * @param b The buffer receiving the bytes.
+	 * @param off The offset in {@code b} of the first byte read.
+	 * @param len The number of bytes to read.
+	 * @throws IOException If the read fails.
+	 */
+	void readData(long position, byte[] b, int off, int len) throws IOException {
+		try (PartitionLocks.Held held = locks.shared()) {
+			device.read(position, b, off, len);
+		}
+	}
+
+	/**
+	 * Gives a file its own copies of the blocks it shares with copies or snapshots. Called by
+	 * {@link vFileOutputStream} under the lock of the file, before writing to blocks allocated earlier.
+	 * Shared blocks always form the end of a chain, so the file shares none if its last block is private.
+	 *
+	 * @param file The file written by the stream.
+	 * @return true if blocks were copied, the chain and the extents of the file changed.
+	 */
+	boolean unshareTail(vFile file) {
+		List<Extent> extents = file.getExtents();
+		if (file.getStartBlock() == -1 || extents == null || extents.isEmpty())
+			return false;
+		if (!fat.isShared(extents.get(extents.size() - 1).end() - 1))
+			return false;
+		try {
+			unshareBlocks(file, file.getNumOfBlocks() - 1);
 		} catch (IOException e) {
-			// Throw a runtime exception if an IO error occurs during data retrieval
-			throw new RuntimeException("Error retrieving file data.", e);
+			throw new RuntimeException("Error copying shared blocks.", e);
 		}
+		return true;
 	}
 
 	/**
-	 * Saves data to a vFile instance within the specified vFolder.
+	 * Rejects operations on a folder deleted since the caller got it, such as the current folder of another
+	 * session: the blocks they would allocate would belong to no folder. Called with the folder locked, deleting
+	 * a folder takes the partition's exclusive lock.
+	 *
+	 * @param folder The folder.
+	 * @throws IllegalArgumentException If the folder was deleted.
+	 */
+	private static void checkExists(vFolder folder) {
+		if (folder.isDeleted())
+			throw new IllegalArgumentException("Folder doesn't exist");
+	}
+
+	/**
+	 * Gets the object a folder currently holds for a file. Once a folder is evicted and reloaded, it holds new
+	 * objects for its files, while callers may still use the objects they looked up before.
+	 *
+	 * @param folder The folder holding the file.
+	 * @param file The file, as looked up by the caller.
+	 * @return The entry of the folder for the file, or the file itself if the folder has no such entry.
+	 * @throws IllegalArgumentException If the folder was deleted.
+	 */
+	private static vFile current(vFolder folder, vFile file) {
+		checkExists(folder);
+		vFile entry = file == null ? null : folder.getEntry(file);
+		return entry != null ? entry : file;
+	}
+
+	/**
+	 * Gets the extents of a file, following its chain through the FAT if they aren't recorded.
+	 *
+	 * @param file The file.
+	 * @return The runs of consecutive blocks of the file, empty if it has no data blocks.
+	 */
+	private List<Extent> extentsOf(vFile file) {
+		if (file.getStartBlock() == -1)
+			return List.of();
+		return file.getExtents() != null ? file.getExtents() : chainExtents(file.getStartBlock());
+	}
+
+	/**
+	 * Computes the extents of a chain by following it through the FAT.
+	 *
+	 * @param startBlock The first block of the chain.
+	 * @return The runs of consecutive blocks of the chain, in chain order.
+	 */
+	private List<Extent> chainExtents(int startBlock) {
+		List<Extent> extents = new ArrayList<>();
+		int block = startBlock;
+		while (block != FileAllocationTable.END_OF_CHAIN) {
+			int length = 1;
+			int next = fat.getNextBlock(block);
+			while (next == block + length) {
+				length++;
+				next = fat.getNextBlock(next);
+			}
+			extents.add(new Extent(block, length));
+			block = next;
+		}
+		return extents;
+	}
+
+	/**
+	 * Releases the data blocks of a file and allocates new ones for a given size.
+	 * The file's metadata and its entry in the folder are updated; the caller writes the content.
 	 *
 	 * @param folder The vFolder instance containing the file.
-	 * @param file The vFile instance for which to save the data.
-	 * @param data The byte array containing the content of the vFile.
+	 * @param file The vFile instance whose data is replaced.
+	 * @param size The size of the new content in bytes.
+	 * @return The extents allocated for the new content, empty if the size is 0.
 	 * @throws SecurityException If the file is write-protected.
-	 * @throws RuntimeException If an error occurs during data saving.
 	 */
-	public void saveFileData(vFolder folder, vFile file, byte[] data) {
+	private List<Extent> replaceFileData(vFolder folder, vFile file, long size) {
 		// Check write permission for the file
 		if (!file.hasWritePermission())
 			throw new SecurityException("File is write-protected.");
@@ -433,56 +1663,69 @@ public class vPartition implements Serializable {
 		if (folder.getFileStartBlock(file) != -1) {
 			// Delete existing data blocks and update space information
 			long n_blocks = deleteFileData(folder, file);
-			folder.deleteEntry(file);
-			usedSpace -= n_blocks * blockSize;
-			freeSpace += n_blocks * blockSize;
+			file.setStartBlock(-1);
+			adjustSpace(-n_blocks);
 		}
+		markDirty(file);
 
 		// Check if the data is empty, create an entry with no allocated blocks
-		if (data.length == 0) {
-			folder.createEntry(file, -1);
-			return;
+		if (size == 0) {
+			file.setSize(0);
+			file.setNumOfBlocks(0);
+			file.setExtents(List.of());
+			return List.of();
 		}
 
 		// Calculate the number of blocks needed for the data
-		int[] allocatedBlocks = new int[Math.ceilDiv(data.length, blockSize)];
+		int numBlocks = (int) Math.ceilDiv(size, blockSize);
 
 		// Update file metadata with size and block information
-		file.setSize(data.length);
-		file.setNumOfBlocks(allocatedBlocks.length);
+		file.setSize(size);
+		file.setNumOfBlocks(numBlocks);
 
 		// Allocate data blocks using the File Allocation Table
-		Arrays.setAll(allocatedBlocks, i -> fat.allocateBlock());
+		List<Extent> extents = allocateExtents(numBlocks);
+		file.setExtents(extents);
 
 		// Update used and free space information
-		usedSpace += (long) allocatedBlocks.length * blockSize;
-		freeSpace -= (long) allocatedBlocks.length * blockSize;
+		adjustSpace(numBlocks);
 
 		// Update modification time for the file
 		file.setModificationTime(LocalDateTime.now());
 
-		try {
-			// Write data blocks to the partition
-			for (int i = 0; i < allocatedBlocks.length; i++) {
-				int blockIndex = allocatedBlocks[i];
-				byte[] blockData = Arrays.copyOfRange(data, i * blockSize, (i + 1) * blockSize);
-
-				// Write block data to the partition
-				writeBlock(blockIndex + firstDataBlock(), blockData);
-
-				// Update File Allocation Table with the next block index
-				if (i < allocatedBlocks.length - 1) {
-					int nextBlockIndex = allocatedBlocks[i + 1];
-					fat.setNextBlock(blockIndex, nextBlockIndex);
-				}
+		// Point the entry of the file to the first data block
+		file.setStartBlock(extents.get(0).start());
+		return extents;
+	}
+
+	/**
+	 * Allocates the data blocks of a file according to the partition's allocation mode.
+	 * In contiguous mode the FAT is asked for runs sized to the whole payload;
+	 * otherwise blocks are allocated one by one and adjacent ones are merged into runs.
+	 *
+	 * @param numBlocks The number of blocks to allocate.
+	 * @return The allocated blocks as extents, linked into a single chain in the FAT.
+	 */
+	private List<Extent> allocateExtents(int numBlocks) {
+		if (contiguousAllocation)
+			return fat.allocateExtents(numBlocks);
+
+		List<Extent> extents = new ArrayList<>();
+		int start = fat.allocateBlock();
+		int length = 1;
+		for (int i = 1; i < numBlocks; i++) {
+			int block = fat.allocateBlock();
+			fat.setNextBlock(start + length - 1, block);
+			if (block == start + length) {
+				length++;
+			} else {
+				extents.add(new Extent(start, length));
+				start = block;
+				length = 1;
 			}
-		} catch (IOException e) {
-			// Throw a runtime exception if an IO error occurs during data saving
-			throw new RuntimeException("Error saving file data.", e);
 		}
-
-		// Create an entry in the folder with the index of the first data block
-		folder.createEntry(file, allocatedBlocks[0]);
+		extents.add(new Extent(start, length));
+		return extents;
 	}
 
 	/**
@@ -490,115 +1733,892 @@ public class vPartition implements Serializable {
 	 *
 	 * @param folder The vFolder instance containing the file.
 	 * @param file The vFile instance whose data needs to be deleted.
-	 * @return The total number of bytes freed by deleting the file data.
+	 * The freed blocks are zeroed in the background after the next save, or right away in secure mode
+	 * (see {@link #setSecureDelete(boolean)}).
+	 *
+	 * @return The number of data blocks freed; blocks still shared with other files aren't freed.
 	 * @throws RuntimeException If the file is not found or an IO error occurs during deletion.
 	 */
 	public int deleteFileData(vFolder folder, vFile file) {
-		// Get the start block index of the file
-		Integer idx = folder.getFileStartBlock(file);
-
-		// Check if the file is not found
-		if (idx == null)
-			throw new RuntimeException("File not found.");
-		// Check if the file has no data blocks
-		if (idx == -1)
-			return 0;
+		try (PartitionLocks.Held held = locks.file(folder, file, true)) {
+			file = current(folder, file);
+			checkWritable();
+			// Get the start block index of the file
+			Integer idx = folder.getFileStartBlock(file);
 
-		// Create an empty block of data
-		byte[] data = new byte[blockSize];
+			// Check if the file is not found
+			if (idx == null)
+				throw new RuntimeException("File not found.");
+			// Check if the file has no data blocks
+			if (idx == -1)
+				return 0;
 
-		int counter = 0;
-		try {
+			int counter = 0;
+			// Unlink the chain: shared blocks lose this file's reference, the others are collected as runs
+			List<Extent> freed = new ArrayList<>();
 			while (idx != -1) {
-				// Write an empty block to the data block's location
-				writeBlock(firstDataBlock() + idx, data);
 				// Get the next data block index
 				int next = fat.getNextBlock(idx);
-				// Deallocate the current data block
-				fat.deallocateBlock(idx);
+				if (fat.isShared(idx)) {
+					// Still used by another file or a snapshot: only drop this file's reference
+					fat.releaseBlock(idx);
+				} else {
+					appendBlock(freed, idx);
+					// Increment the counter for each deleted data block
+					counter++;
+				}
 				// Move to the next data block
 				idx = next;
-				// Increment the counter for each deleted data block
-				counter++;
 			}
+			try {
+				discardBlocks(freed);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			file.setExtents(null);
+			return counter;
+		}
+	}
+
+	/**
+	 * Frees data blocks no chain uses anymore. In secure mode they are zeroed right away, one write per run;
+	 * otherwise they are retired, and zeroed in the background once the next save has made their release durable.
+	 *
+	 * @param runs The freed blocks, as runs of consecutive blocks.
+	 * @throws IOException If zeroing the blocks fails.
+	 */
+	private void discardBlocks(List<Extent> runs) throws IOException {
+		for (Extent run : runs) {
+			if (secureDelete)
+				writeBlocks(firstDataBlock() + run.start(), run.length(), new byte[0], 0);
+			for (int block = run.start(); block < run.end(); block++) {
+				if (secureDelete)
+					fat.deallocateBlock(block);
+				else
+					fat.retireBlock(block);
+			}
+		}
+		if (!secureDelete)
+			synchronized (retiredRuns) {
+				retiredRuns.addAll(runs);
+			}
+	}
+
+	/**
+	 * Adds a block to a list of runs, extending the last run if the block follows it.
+	 */
+	private static void appendBlock(List<Extent> runs, int block) {
+		Extent last = runs.isEmpty() ? null : runs.get(runs.size() - 1);
+		if (last != null && last.end() == block)
+			runs.set(runs.size() - 1, new Extent(last.start(), last.length() + 1));
+		else
+			runs.add(new Extent(block, 1));
+	}
+
+	/**
+	 * Zeroes the retired blocks now, even those whose release isn't saved yet.
+	 * Called by the FAT when it lacks free blocks for an allocation.
+	 */
+	private void reclaimRetired() {
+		submitRetired();
+		try {
+			trimWorker.drain();
 		} catch (IOException e) {
-			throw new RuntimeException(e);
+			throw new RuntimeException("Error zeroing freed blocks.", e);
 		}
-		return counter;
+	}
+
+	private void submitRetired() {
+		synchronized (retiredRuns) {
+			trimWorker.submit(retiredRuns);
+			retiredRuns.clear();
+			for (Commit commit : committing.values()) {
+				trimWorker.submit(commit.released());
+				commit.released().clear();
+			}
+		}
+	}
+
+	private void startTrimWorker() {
+		this.trimWorker = new TrimWorker(device, fat, firstDataBlock(), blockSize);
+		fat.setReclaimer(this::reclaimRetired);
+	}
+
+	/**
+	 * Selects how the blocks freed by deletes are zeroed.
+	 * @param secure true to zero them before the delete returns, false to zero them in the background after the next save.
+	 */
+	public void setSecureDelete(boolean secure) {
+		this.secureDelete = secure;
 	}
 
 	/**
 	 * Recursively deletes all files and subdirectories within the specified folder.
 	 * This method is typically used when deleting a folder, and it ensures that all
 	 * resources within the folder are properly released.
+	 * The subtree is read in parallel by a {@link TreeWalker} collecting the chains of its files and its
+	 * folders; their blocks are then released in one batch.
 	 *
 	 * @param folder The vFolder instance representing the folder to delete.
 	 * @throws IllegalArgumentException If the specified folder does not exist.
 	 */
 	public void deleteFolderChildren(vFolder folder) {
-		// Create a copy of the list to avoid ConcurrentModificationException
-		List<vFile> filesCopy = new ArrayList<>(folder.getFiles());
-
-		// Iterate over the copied list
-		for (vFile file : filesCopy) {
-			if (file instanceof vFolder) {
-				deleteFolderChildren((vFolder) file);
-				folder.deleteEntry(file);
+		try (PartitionLocks.Held held = locks.exclusive()) {
+			checkWritable();
+			checkExists(folder);
+			// Collect the chains and sub-folders of the whole subtree, without changing anything
+			DeletionBatch batch = treeWalker.walk(folder, "", this::collectDeletion, DeletionBatch::merge);
+			for (vFile file : folder.getFiles())
+				forget(file);
+
+			// Release the blocks: shared blocks lose a reference, the others are discarded together
+			List<Extent> freed = new ArrayList<>();
+			int counter = 0;
+			for (Extent chain : batch.chains) {
+				for (int block = chain.start(); block < chain.end(); block++) {
+					if (fat.isShared(block)) {
+						fat.releaseBlock(block);
+					} else {
+						appendBlock(freed, block);
+						counter++;
+					}
+				}
+			}
+			try {
+				discardBlocks(freed);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			adjustSpace(-counter);
+
+			// Release the directory blocks of the sub-folders and empty the folder
+			for (vFolder sub : batch.folders)
+				freeFolder(sub);
+			folder.clearEntries();
+			dirtyFolders.add(folder);
+		}
+	}
+
+	/**
+	 * What deleting a subtree releases: the chains of its files and its sub-folders.
+	 */
+	private static final class DeletionBatch {
+		final List<Extent> chains = new ArrayList<>();
+		final List<vFolder> folders = new ArrayList<>();
+
+		DeletionBatch merge(DeletionBatch other) {
+			chains.addAll(other.chains);
+			folders.addAll(other.folders);
+			return this;
+		}
+	}
+
+	private DeletionBatch collectDeletion(vFolder folder, String path) {
+		DeletionBatch batch = new DeletionBatch();
+		for (vFile file : folder.getFiles()) {
+			if (file instanceof vFolder sub)
+				batch.folders.add(sub);
+			else
+				batch.chains.addAll(extentsOf(file));
+		}
+		return batch;
+	}
+
+	/**
+	 * Statistics of a folder tree.
+	 *
+	 * @param files The number of files.
+	 * @param folders The number of sub-folders.
+	 * @param bytes The total size of the files.
+	 * @param blocks The total number of data blocks of the files (blocks shared by copies are counted for each).
+	 */
+	public record TreeStats(long files, long folders, long bytes, long blocks) {
+		TreeStats plus(TreeStats other) {
+			return new TreeStats(files + other.files, folders + other.folders, bytes + other.bytes, blocks + other.blocks);
+		}
+	}
+
+	/**
+	 * Computes the statistics of a folder and everything below it (like {@code du}), walking the tree in parallel.
+	 *
+	 * @param folder The folder at the top of the tree.
+	 * @return The statistics of the tree.
+	 */
+	public TreeStats getTreeStats(vFolder folder) {
+		try (PartitionLocks.Held held = locks.shared()) {
+			return treeWalker.walk(folder, "", (visited, path) -> {
+				long files = 0, folders = 0, bytes = 0, blocks = 0;
+				for (vFile file : visited.getFiles()) {
+					if (file instanceof vFolder) {
+						folders++;
+					} else {
+						files++;
+						bytes += file.getSize();
+						blocks += file.getNumOfBlocks();
+					}
+				}
+				return new TreeStats(files, folders, bytes, blocks);
+			}, TreeStats::plus);
+		}
+	}
+
+	/**
+	 * Lists a folder and everything below it (like {@code ls -R}), walking the tree in parallel.
+	 * Each folder gives a line with its path, followed by a line per entry sorted by name; sub-folders follow
+	 * in name order.
+	 *
+	 * @param folder The folder at the top of the tree.
+	 * @return The lines of the listing.
+	 */
+	public List<String> listTree(vFolder folder) {
+		try (PartitionLocks.Held held = locks.shared()) {
+			String top = pathOf(folder);
+			return treeWalker.walk(folder, top.equals("/") ? "" : top, (visited, path) -> {
+				List<vFile> entries = new ArrayList<>(visited.getFiles());
+				entries.sort(Comparator.comparing(vFile::getFullName));
+				List<String> lines = new ArrayList<>(entries.size() + 1);
+				lines.add((path.isEmpty() ? "/" : path) + ":");
+				for (vFile entry : entries)
+					lines.add(vFolder.describe(entry));
+				return lines;
+			}, (lines, more) -> {
+				lines.addAll(more);
+				return lines;
+			});
+		}
+	}
+
+	/**
+	 * Imports a directory tree of the host into a folder, like {@code cp -r hostDir/. folder}.
+	 * The host tree is checked first, so names the partition can't hold fail the import before anything changes.
+	 * Folders and files are then created, and each file is allocated its whole size at once, from the length of
+	 * its host file; the content of the files is copied by {@link #transferThreads} workers, each streaming its
+	 * files through a buffer of {@link #streamBufferBlocks} blocks. Existing files are overwritten, and the blocks
+	 * they release count as free space. Symbolic links are skipped. The FAT and directory changes of the whole
+	 * import are written by the next {@link #save()}, as a single transaction.
+	 *
+	 * @param hostDir The host directory whose content is imported.
+	 * @param folder The folder receiving the content.
+	 * @return The statistics of the imported tree.
+	 * @throws IllegalArgumentException If a host name isn't a valid file or folder name.
+	 * @throws RuntimeException If the partition lacks space or an IO error occurs.
+	 */
+	public TreeStats importTree(Path hostDir, vFolder folder) {
+		try (PartitionLocks.Held held = locks.exclusive()) {
+			checkWritable();
+			if (!Files.isDirectory(hostDir))
+				throw new IllegalArgumentException("Host directory %s doesn't exist".formatted(hostDir));
+
+			// List the host tree, parents before their content, and check every name and the needed space.
+			// The walk doesn't follow links, and links to directories must not be taken for directories
+			List<Path> entries;
+			try (Stream<Path> walk = Files.walk(hostDir)) {
+				entries = walk.skip(1).filter(path -> isHostDirectory(path) || Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS)).toList();
+			} catch (IOException | UncheckedIOException e) {
+				throw new RuntimeException("Error reading host directory.", e);
+			}
+			Map<Path, vFolder> existing = new HashMap<>();
+			existing.put(hostDir, folder);
+			long neededBlocks = 0, reclaimedBlocks = 0;
+			for (Path entry : entries) {
+				String name = entry.getFileName().toString();
+				vFolder parent = existing.get(entry.getParent());
+				try {
+					if (isHostDirectory(entry)) {
+						new vFolder(name, null);
+						vFolder merged = parent == null ? null : parent.getSubFolderByName(name);
+						if (merged != null)
+							existing.put(entry, merged);
+					} else {
+						String[] arr = name.split("\\.", 2);
+						if (arr.length < 2)
+							throw new IllegalArgumentException("Currently, you must provide provide type to all your files. `<file_name>.<file_type>`");
+						new vFile(arr[0], arr[1], null);
+						neededBlocks += Math.ceilDiv(Files.size(entry), blockSize);
+						// An overwritten file releases the blocks it doesn't share first
+						vFile overwritten = parent == null ? null : parent.getFileByFullName(name);
+						if (overwritten != null)
+							reclaimedBlocks += privateBlocks(overwritten);
+					}
+				} catch (IllegalArgumentException e) {
+					throw new IllegalArgumentException("Can't import %s: %s".formatted(entry, e.getMessage()));
+				} catch (IOException e) {
+					throw new RuntimeException("Error reading host directory.", e);
+				}
+			}
+			if (neededBlocks > fat.getFreeBlocks() + fat.getRetiredBlocks() + reclaimedBlocks)
+				throw new RuntimeException("Couldn't allocate more space. Partition is full.");
+
+			// Create the folders and files, allocating the data blocks of every file up front
+			Map<Path, vFolder> folders = new HashMap<>();
+			folders.put(hostDir, folder);
+			List<Callable<Void>> copies = new ArrayList<>();
+			long files = 0, bytes = 0, blocks = 0;
+			for (Path entry : entries) {
+				vFolder parent = folders.get(entry.getParent());
+				String name = entry.getFileName().toString();
+				if (isHostDirectory(entry)) {
+					createFolder(parent, name);
+					folders.put(entry, parent.getSubFolderByName(name));
+					continue;
+				}
+				String[] arr = name.split("\\.", 2);
+				vFile file = createFile(parent, arr[0], arr[1]);
+				if (file == null)
+					file = parent.getFileByFullName(name);
+				long size;
+				try {
+					size = Files.size(entry);
+				} catch (IOException e) {
+					throw new RuntimeException("Error reading host directory.", e);
+				}
+				List<Extent> extents = replaceFileData(parent, file, size);
+				vFile target = file;
+				copies.add(() -> {
+					long copied = copyFromHost(entry, extents);
+					// The host file shrank meanwhile, keep what was read
+					if (copied < target.getSize())
+						target.setSize(copied);
+					return null;
+				});
+				files++;
+				bytes += size;
+				blocks += file.getNumOfBlocks();
+			}
+
+			// Copy the content of the files, the blocks are already theirs
+			runTransfers(copies, "Error importing file data.");
+			return new TreeStats(files, folders.size() - 1, bytes, blocks);
+		}
+	}
+
+	private static boolean isHostDirectory(Path path) {
+		return Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS);
+	}
+
+	/**
+	 * Counts the data blocks deleting the content of a file frees: those no copy or snapshot shares.
+	 *
+	 * @param file The file.
+	 * @return The number of blocks of its chain used by no other chain.
+	 */
+	private int privateBlocks(vFile file) {
+		int count = 0;
+		for (int block = file.getStartBlock(); block != FileAllocationTable.END_OF_CHAIN; block = fat.getNextBlock(block))
+			if (!fat.isShared(block))
+				count++;
+		return count;
+	}
+
+	/**
+	 * Copies the content of a host file into allocated data blocks, a buffer of blocks at a time.
+	 *
+	 * @param source The host file.
+	 * @param extents The blocks allocated for its content.
+	 * @return The number of bytes copied, less than the allocated size if the host file is shorter.
+	 * @throws IOException If reading the host file or writing the blocks fails.
+	 */
+	private long copyFromHost(Path source, List<Extent> extents) throws IOException {
+		byte[] buffer = new byte[streamBufferBlocks * blockSize];
+		long copied = 0;
+		try (InputStream in = Files.newInputStream(source)) {
+			for (Extent extent : extents) {
+				for (int done = 0; done < extent.length(); ) {
+					int count = Math.min(streamBufferBlocks, extent.length() - done);
+					int read = in.readNBytes(buffer, 0, count * blockSize);
+					Arrays.fill(buffer, read, count * blockSize, (byte) 0);
+					writeBlocks(firstDataBlock() + extent.start() + done, count, buffer, 0);
+					copied += read;
+					done += count;
+				}
+			}
+		}
+		return copied;
+	}
+
+	/**
+	 * Exports a folder and everything below it into a host directory, like {@code cp -r folder/. hostDir}.
+	 * The tree is walked in parallel to list its folders and files, the host directories are created, then the
+	 * files are streamed to the host by {@link #transferThreads} workers. Existing host files are overwritten.
+	 *
+	 * @param folder The folder whose content is exported.
+	 * @param hostDir The host directory receiving the content, created if needed.
+	 * @return The statistics of the exported tree.
+	 * @throws SecurityException If a file is read-protected.
+	 * @throws RuntimeException If an IO error occurs.
+	 */
+	public TreeStats exportTree(vFolder folder, Path hostDir) {
+		record Export(vFolder folder, vFile file, Path target) {
+		}
+
+		// List the tree, folders before their content; files are copied without holding the partition
+		List<Export> exports;
+		try (PartitionLocks.Held held = locks.shared()) {
+			exports = treeWalker.walk(folder, "", (visited, path) -> {
+				Path directory = path.isEmpty() ? hostDir : hostDir.resolve(path.substring(1));
+				List<Export> listed = new ArrayList<>();
+				listed.add(new Export(visited, null, directory));
+				for (vFile file : visited.getFiles())
+					if (!(file instanceof vFolder))
+						listed.add(new Export(visited, file, directory.resolve(file.getFullName())));
+				return listed;
+			}, (listed, more) -> {
+				listed.addAll(more);
+				return listed;
+			});
+		}
+
+		List<Callable<Void>> copies = new ArrayList<>();
+		long files = 0, bytes = 0, blocks = 0;
+		try {
+			for (Export export : exports) {
+				if (export.file() == null) {
+					Files.createDirectories(export.target());
+					continue;
+				}
+				copies.add(() -> {
+					try (vFileInputStream in = openInputStream(export.folder(), export.file())) {
+						Files.copy(in, export.target(), StandardCopyOption.REPLACE_EXISTING);
+					}
+					return null;
+				});
+				files++;
+				bytes += export.file().getSize();
+				blocks += export.file().getNumOfBlocks();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Error creating host directory.", e);
+		}
+		runTransfers(copies, "Error exporting file data.");
+		return new TreeStats(files, exports.size() - files - 1, bytes, blocks);
+	}
+
+	/**
+	 * Runs file copies on a pool of {@link #transferThreads} workers and waits for all of them.
+	 *
+	 * @param copies The copies.
+	 * @param error The message of the exception thrown if a copy fails.
+	 * @throws RuntimeException If a copy fails, once the others are done.
+	 */
+	private static void runTransfers(List<Callable<Void>> copies, String error) {
+		if (copies.isEmpty())
+			return;
+		try (ExecutorService pool = Executors.newFixedThreadPool(Math.min(transferThreads, copies.size()))) {
+			for (Future<Void> copy : pool.invokeAll(copies))
+				copy.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException cause)
+				throw cause;
+			throw new RuntimeException(error, e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(error, e);
+		}
+	}
+
+	/**
+	 * Takes a snapshot of the partition: the folder tree is frozen under a name, and every data block of its
+	 * files gets an extra reference, so no data is copied. Live files copy the blocks they share with the
+	 * snapshot when they modify them, and deleting a live file leaves them to the snapshot.
+	 * The snapshot is written by the next {@link #save()}.
+	 *
+	 * @param name The name of the snapshot.
+	 * @throws IllegalArgumentException If a snapshot with that name already exists.
+	 * @throws RuntimeException If the folder tree cannot be encoded.
+	 */
+	public void createSnapshot(String name) {
+		try (PartitionLocks.Held held = locks.exclusive()) {
+			checkWritable();
+			if (findSnapshot(name) != null)
+				throw new IllegalArgumentException("Snapshot %s already exists".formatted(name));
+
+			// Freeze the tree, then add the snapshot's reference to the blocks of its files
+			byte[] tree;
+			try {
+				tree = rootFolder.encodeTree();
+			} catch (IOException e) {
+				throw new RuntimeException("Error encoding the folder tree.", e);
+			}
+			shareTree(rootFolder);
+
+			// The chain of the tree is written on save, from its first block
+			int treeBlock = fat.allocateBlock();
+			adjustSpace(1);
+			pendingTrees.put(treeBlock, tree);
+			snapshots.add(new Snapshot(name, LocalDateTime.now(), treeBlock));
+			snapshotsDirty = true;
+		}
+	}
+
+	/**
+	 * @return The snapshots of the partition, oldest first.
+	 */
+	public List<Snapshot> getSnapshots() {
+		try (PartitionLocks.Held held = locks.shared()) {
+			return List.copyOf(snapshots);
+		}
+	}
+
+	/**
+	 * Opens a read-only view of a snapshot. The view is used like a partition: its folders and files can be
+	 * browsed and read, while any modification throws a SecurityException. It shares the device of the
+	 * partition and must not be used once the partition is unmounted.
+	 *
+	 * @param name The name of the snapshot.
+	 * @return The view of the snapshot.
+	 * @throws IllegalArgumentException If there is no snapshot with that name.
+	 * @throws RuntimeException If the tree of the snapshot cannot be read.
+	 */
+	public vPartition openSnapshot(String name) {
+		try (PartitionLocks.Held held = locks.shared()) {
+			Snapshot snapshot = findSnapshot(name);
+			if (snapshot == null)
+				throw new IllegalArgumentException("Snapshot %s doesn't exist".formatted(name));
+			try {
+				return new vPartition(this, snapshot, readSnapshotTree(snapshot));
+			} catch (IOException e) {
+				throw new RuntimeException("Error reading snapshot " + name, e);
+			}
+		}
+	}
+
+	/**
+	 * Deletes a snapshot: its references to data blocks are dropped, which frees the blocks no live file
+	 * or other snapshot uses, and the chain of its tree is released.
+	 *
+	 * @param name The name of the snapshot.
+	 * @throws IllegalArgumentException If there is no snapshot with that name.
+	 * @throws RuntimeException If the tree of the snapshot cannot be read.
+	 */
+	public void deleteSnapshot(String name) {
+		try (PartitionLocks.Held held = locks.exclusive()) {
+			checkWritable();
+			Snapshot snapshot = findSnapshot(name);
+			if (snapshot == null)
+				throw new IllegalArgumentException("Snapshot %s doesn't exist".formatted(name));
+
+			try {
+				int freed = releaseTree(vFolder.readTree(readSnapshotTree(snapshot), this));
+				List<Integer> chain = chainBlocks(snapshot.treeBlock());
+				retireChain(chain);
+				adjustSpace(-(freed + chain.size()));
+			} catch (IOException e) {
+				throw new RuntimeException("Error reading snapshot " + name, e);
+			}
+			pendingTrees.remove(snapshot.treeBlock());
+			snapshots.remove(snapshot);
+			snapshotsDirty = true;
+		}
+	}
+
+	private Snapshot findSnapshot(String name) {
+		for (Snapshot snapshot : snapshots)
+			if (snapshot.name().equals(name))
+				return snapshot;
+		return null;
+	}
+
+	private byte[] readSnapshotTree(Snapshot snapshot) throws IOException {
+		byte[] tree = pendingTrees.get(snapshot.treeBlock());
+		if (tree != null)
+			return tree;
+		// The save that wrote the tree may still be committing
+		if (journal != null)
+			journal.sync();
+		return readMetadataChain(snapshot.treeBlock());
+	}
+
+	/**
+	 * Adds a reference to every data block of the files of a tree.
+	 */
+	private void shareTree(vFolder folder) {
+		for (vFile file : folder.getFiles()) {
+			if (file instanceof vFolder sub) {
+				shareTree(sub);
 			} else {
-				deleteFile(folder, file);
+				for (Extent extent : extentsOf(file))
+					for (int block = extent.start(); block < extent.end(); block++)
+						fat.shareBlock(block);
 			}
 		}
 	}
 
+	/**
+	 * Drops the reference of a snapshot's files to their data blocks. Freed blocks are discarded like the
+	 * blocks of a deleted file.
+	 *
+	 * @return The number of data blocks freed.
+	 */
+	private int releaseTree(vFolder folder) throws IOException {
+		List<Extent> freed = new ArrayList<>();
+		collectReleased(folder, freed);
+		discardBlocks(freed);
+		int count = 0;
+		for (Extent run : freed)
+			count += run.length();
+		return count;
+	}
+
+	private void collectReleased(vFolder folder, List<Extent> freed) {
+		for (vFile file : folder.getFiles()) {
+			if (file instanceof vFolder sub) {
+				collectReleased(sub, freed);
+				continue;
+			}
+			// The extents are known before the chain loses any block
+			for (Extent extent : extentsOf(file)) {
+				for (int block = extent.start(); block < extent.end(); block++) {
+					if (fat.isShared(block))
+						fat.releaseBlock(block);
+					else
+						appendBlock(freed, block);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @throws SecurityException If the partition is a snapshot.
+	 */
+	private void checkWritable() {
+		if (snapshotName != null)
+			throw new SecurityException("Snapshot %s is read-only".formatted(snapshotName));
+	}
+
+	/**
+	 * @return The name of the snapshot this view shows, or null if it's the partition itself.
+	 */
+	public String getSnapshotName() {
+		return snapshotName;
+	}
+
 	/**
 	 * Retrieves the vFolder instance corresponding to the specified path.
-	 * The path should be in the format "%c:/folder1/folder2/.../folderN".
+	 * The path should be in the format "/folder1/folder2/.../folderN"; "." and ".." are resolved.
+	 * Resolved paths are cached, so repeated lookups of a path cost a single hash probe.
 	 *
-	 * @param path The full path of the folder, including the partition label.
+	 * @param path The absolute path of the folder.
 	 * @return The vFolder instance corresponding to the specified path.
 	 *         Returns null if the path is invalid or the folder does not exist.
 	 */
 	public vFolder getFolderByPath(String path) {
-		// Check if the path starts with '/'
-		if (!path.matches("^/.*$")) {
-			return null; // Invalid path format
+		try (PartitionLocks.Held held = locks.shared()) {
+			// Check if the path starts with '/'
+			if (!path.startsWith("/")) {
+				return null; // Invalid path format
+			}
+			String normalized = PathCache.normalize(path);
+			if (normalized.equals("/"))
+				return rootFolder;
+			if (pathCache.get(normalized) instanceof vFolder cached)
+				return cached;
+			long stamp = pathCache.stamp();
+
+			// Start from the root folder and navigate through each folder name in the path
+			vFolder currentFolder = rootFolder;
+			for (String dirName : normalized.substring(1).split("/")) {
+				currentFolder = currentFolder.getSubFolderByName(dirName);
+
+				// Check if the subFolder exists
+				if (currentFolder == null) {
+					return null; // folder does not exist
+				}
+			}
+
+			pathCache.put(normalized, currentFolder, stamp);
+			return currentFolder;
+		}
+	}
+
+	/**
+	 * Retrieves the vFile instance corresponding to the specified path.
+	 * The path should be in the format "/folder1/.../folderN/name.type". Resolved paths are cached.
+	 *
+	 * @param path The absolute path of the file.
+	 * @return The vFile instance corresponding to the specified path.
+	 *         Returns null if the path is invalid or the file does not exist.
+	 */
+	public vFile getFileByPath(String path) {
+		try (PartitionLocks.Held held = locks.shared()) {
+			if (!path.startsWith("/"))
+				return null;
+			String normalized = PathCache.normalize(path);
+			vFile cached = pathCache.get(normalized);
+			if (cached != null && !(cached instanceof vFolder))
+				return cached;
+			long stamp = pathCache.stamp();
+
+			int slash = normalized.lastIndexOf('/');
+			vFolder folder = getFolderByPath(slash == 0 ? "/" : normalized.substring(0, slash));
+			vFile file = folder == null ? null : folder.getFileByFullName(normalized.substring(slash + 1));
+			if (file != null)
+				pathCache.put(normalized, file, stamp);
+			return file;
+		}
+	}
+
+	/**
+	 * Finds the files and folders of the whole partition whose full name contains a string.
+	 * The first search indexes every name of the partition (reading every folder); later searches use the index,
+	 * which is kept up to date as entries are created, moved and deleted.
+	 *
+	 * @param query The string to look for.
+	 * @return The absolute paths of the matching entries, sorted.
+	 */
+	public List<String> searchNames(String query) {
+		try (PartitionLocks.Held held = lockNameIndex()) {
+			return nameIndex().findContaining(query);
+		}
+	}
+
+	/**
+	 * Finds the files and folders of the whole partition whose full name starts with a string.
+	 *
+	 * @param prefix The start of the names.
+	 * @return The absolute paths of the matching entries, sorted.
+	 * @see #searchNames(String)
+	 */
+	public List<String> searchNamePrefix(String prefix) {
+		try (PartitionLocks.Held held = lockNameIndex()) {
+			return nameIndex().findStartingWith(prefix);
 		}
+	}
 
-		// Split the path into individual folder names
-		String[] pathElements = path.split("/");
+	/**
+	 * Building the index reads the whole tree, which must not change meanwhile; once built, searches run in parallel.
+	 */
+	private PartitionLocks.Held lockNameIndex() {
+		return nameIndex == null ? locks.exclusive() : locks.shared();
+	}
 
-		// Start from the root folder
-		vFolder currentFolder = rootFolder;
+	private NameIndex nameIndex() {
+		if (nameIndex == null) {
+			nameIndex = new NameIndex();
+			indexTree(rootFolder, "");
+		}
+		return nameIndex;
+	}
 
-		// Iterate through each folder name in the path
-		for (String dirName : pathElements) {
-			// Skip empty folder names
-			if (dirName.isEmpty()) {
-				continue;
-			}
+	private void indexTree(vFolder folder, String path) {
+		for (vFile file : folder.getFiles()) {
+			String filePath = path + "/" + file.getFullName();
+			nameIndex.add(filePath, file.getFullName());
+			if (file instanceof vFolder sub)
+				indexTree(sub, filePath);
+		}
+	}
 
-			// Navigate to the next subFolder
-			currentFolder = currentFolder.getSubFolderByName(dirName);
+	/**
+	 * Records a new file or folder in the name index.
+	 */
+	private void index(vFile file) {
+		if (nameIndex != null)
+			nameIndex.add(pathOf(file), file.getFullName());
+	}
+
+	/**
+	 * Drops a file or folder (with everything below it) from the path cache and the name index,
+	 * before it's deleted or renamed.
+	 */
+	private void forget(vFile file) {
+		String path = pathOf(file);
+		pathCache.invalidate(path);
+		if (nameIndex != null)
+			nameIndex.removeTree(path);
+	}
+
+	/**
+	 * @return The absolute path of a file or folder, as used by the path cache ("/" for the root folder).
+	 */
+	static String pathOf(vFile file) {
+		StringBuilder path = new StringBuilder();
+		for (vFile entry = file; entry.getLocation() != null; entry = entry.getLocation())
+			path.insert(0, entry.getFullName()).insert(0, '/');
+		return path.isEmpty() ? "/" : path.toString();
+	}
+	/**
+	 * Opens the block device of a partition file.
+	 * The file backend gets a block cache in front of it; a memory mapping is already served from memory.
+	 *
+	 * @param file The partition file.
+	 * @param memoryMapped true to memory-map the file.
+	 * @return The device to use for block I/O.
+	 * @throws IOException If the file cannot be opened.
+	 */
+	private static BlockDevice openDevice(File file, boolean memoryMapped) throws IOException {
+		BlockDevice device = BlockDevice.open(file, memoryMapped);
+		if (memoryMapped)
+			return device;
+		return new BlockCache(device, blockSize, defaultCacheBlocks, BlockCache.Policy.CLOCK);
+	}
 
-			// Check if the subFolder exists
-			if (currentFolder == null) {
-				return null; // folder does not exist
+	/**
+	 * Replaces the block cache of the partition. Dirty blocks of the current cache are written back first.
+	 *
+	 * @param capacity The number of blocks to cache, or 0 to disable caching.
+	 * @param policy The replacement policy of the new cache.
+	 * @throws IOException If writing back the current cache fails.
+	 */
+	public void setBlockCache(int capacity, BlockCache.Policy policy) throws IOException {
+		try (PartitionLocks.Held held = locks.exclusive()) {
+			BlockDevice backing = device;
+			awaitAsyncWrites();
+			trimWorker.drain();
+			if (journal != null) {
+				journal.sync();
+				journal.checkpointNow();
+			}
+			if (backing instanceof BlockCache cache) {
+				cache.flush();
+				backing = cache.getBacking();
 			}
+			device = capacity > 0 ? new BlockCache(backing, blockSize, capacity, policy) : backing;
+			if (journal != null)
+				journal.setDevice(device);
+			trimWorker.setDevice(device);
 		}
+	}
 
-		return currentFolder;
+	/**
+	 * @return The block cache of the partition, or null if block I/O isn't cached.
+	 */
+	public BlockCache getBlockCache() {
+		return device instanceof BlockCache cache ? cache : null;
 	}
+
 	/**
-	 * Writes data to the specified block in the vPartition's storage.
+	 * Writes a run of consecutive blocks with a single I/O.
+	 * Bytes beyond the end of {@code data} are written as zeros.
 	 *
-	 * @param blockNumber The index of the block to write.
-	 * @param data The byte array containing data to be written to the block.
+	 * @param firstBlock The index of the first block to write.
+	 * @param count The number of blocks to write.
+	 * @param data The byte array containing the data.
+	 * @param offset The offset in {@code data} of the first byte to write.
 	 * @throws IOException If there is an issue accessing the partition.
 	 */
-	private void writeBlock(int blockNumber, byte[] data) throws IOException {
-		long offset = (long) blockNumber * blockSize;
-		partitionHead.seek(offset);
-		partitionHead.write(data);
+	private void writeBlocks(int firstBlock, int count, byte[] data, int offset) throws IOException {
+		int length = count * blockSize;
+		int available = Math.max(0, Math.min(length, data.length - offset));
+		if (available == length) {
+			device.write((long) firstBlock * blockSize, data, offset, length);
+		} else {
+			byte[] padded = new byte[length];
+			System.arraycopy(data, offset, padded, 0, available);
+			device.write((long) firstBlock * blockSize, padded, 0, length);
+		}
+	}
+
+	/**
+	 * Reads a run of consecutive blocks with a single I/O.
+	 *
+	 * @param firstBlock The index of the first block to read.
+	 * @param count The number of blocks to read.
+	 * @param dest The array receiving the data.
+	 * @param offset The offset in {@code dest} of the first byte read.
+	 * @throws IOException If there is an issue accessing the partition.
+	 */
+	private void readBlocks(int firstBlock, int count, byte[] dest, int offset) throws IOException {
+		device.read((long) firstBlock * blockSize, dest, offset, count * blockSize);
 	}
 
 	/**
@@ -610,9 +2630,8 @@ public class vPartition implements Serializable {
 	 */
 	private byte[] readBlock(int blockNumber) throws IOException {
 		long offset = (long) blockNumber * blockSize;
-		partitionHead.seek(offset);
 		byte[] data = new byte[blockSize];
-		partitionHead.read(data);
+		device.read(offset, data, 0, blockSize);
 		return data;
 	}
 
@@ -633,8 +2652,8 @@ public class vPartition implements Serializable {
 			folder = folder.getLocation();
 		}
 
-		// Prepend the partition label and format the path
-		path.insert(0, "%c:".formatted(this.partitionLabel));
+		// Prepend the partition label (and the snapshot name) and format the path
+		path.insert(0, snapshotName == null ? "%c:".formatted(this.partitionLabel) : "%c@%s:".formatted(this.partitionLabel, snapshotName));
 
 		return path.toString();
 	}
@@ -642,16 +2661,45 @@ public class vPartition implements Serializable {
 
 	@Override
 	public String toString() {
-		return "vPartition [" + partitionLabel +
-				"]\nUUID = " + uuid +
-				"\nPartition Size = " + partitionSize +
-				" Bytes\nTotal Used Space = " + usedSpace +
-				" Bytes\nUsed Space (System excluded) = " + (usedSpace - ((long) firstDataBlock() * blockSize)) +
-				" Bytes\nfreeSpace = " + freeSpace +
-				" Bytes\n";
+		try (PartitionLocks.Held held = locks.shared()) {
+			return "vPartition [" + partitionLabel +
+					"]\nUUID = " + uuid +
+					"\nPartition Size = " + partitionSize +
+					" Bytes\nTotal Used Space = " + usedSpace +
+					" Bytes\nUsed Space (System excluded) = " + (usedSpace - ((long) firstDataBlock() * blockSize)) +
+					" Bytes\nfreeSpace = " + freeSpace +
+					" Bytes\n" +
+					(device instanceof BlockCache cache ? cache + "\n" : "") +
+					(journal != null ? journal + "\n" : "") +
+					pathCache + "\n" +
+					(trimWorker != null ? trimWorker + (secureDelete ? " (secure delete)" : "") + "\n" : "") +
+					(snapshotName != null ? "Snapshot = " + snapshotName + " (read-only)\n" : "Snapshots = " + snapshots.size() + "\n");
+		}
+	}
+
+	/**
+	 * Accounts for allocated or released data blocks in the used and free space of the partition.
+	 *
+	 * @param blocks The number of allocated blocks, negative for released blocks.
+	 */
+	private synchronized void adjustSpace(long blocks) {
+		usedSpace += blocks * blockSize;
+		freeSpace -= blocks * blockSize;
+		headerDirty = true;
 	}
 
 	public int firstDataBlock() {
+		return journalStart() + blocksPerJournal;
+	}
+
+	/**
+	 * @return The number of blocks on the partition defined for data saving, i.e. the number of FAT entries.
+	 */
+	private int dataBlocks() {
+		return (int) Math.ceilDiv(partitionSize, blockSize) - firstDataBlock();
+	}
+
+	private int journalStart() {
 		return bootSize + blocksPerFat + blocksPerRoot;
 	}
 
@@ -666,4 +2714,22 @@ public class vPartition implements Serializable {
 	public vFolder getRoot() {
 		return rootFolder;
 	}
+
+	/**
+	 * Sets how many folders keep their entries in memory after a save; colder folders are reloaded on access.
+	 * @param maxLoadedFolders The maximum number of loaded folders (the root folder is always loaded).
+	 */
+	public void setMaxLoadedFolders(int maxLoadedFolders) {
+		if (maxLoadedFolders < 1)
+			throw new IllegalArgumentException("At least one folder must stay loaded");
+		this.maxLoadedFolders = maxLoadedFolders;
+	}
+
+	/**
+	 * Selects how file data is allocated.
+	 * @param contiguous true to request contiguous runs sized to the payload, false to allocate block by block.
+	 */
+	public void setContiguousAllocation(boolean contiguous) {
+		this.contiguousAllocation = contiguous;
+	}
 }
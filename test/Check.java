@@ -0,0 +1,76 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Assertions shared by the tests, and cleanup of the partitions they create in the working directory.
+ */
+final class Check {
+	private Check() {
+	}
+
+	/**
+	 * An action expected to throw.
+	 */
+	interface Action {
+		void run() throws Exception;
+	}
+
+	static void check(boolean condition, String message) {
+		if (!condition)
+			throw new AssertionError(message);
+	}
+
+	static void equal(long expected, long actual, String what) {
+		if (expected != actual)
+			throw new AssertionError("%s: expected %d, got %d".formatted(what, expected, actual));
+	}
+
+	static void equal(Object expected, Object actual, String what) {
+		if (!Objects.equals(expected, actual))
+			throw new AssertionError("%s: expected %s, got %s".formatted(what, expected, actual));
+	}
+
+	static void equal(byte[] expected, byte[] actual, String what) {
+		if (!Arrays.equals(expected, actual))
+			throw new AssertionError("%s: expected %d bytes, got %s".formatted(what, expected.length,
+					actual == null ? "null" : actual.length + " different bytes"));
+	}
+
+	/**
+	 * Checks that an action throws an exception of a given type.
+	 *
+	 * @return The exception.
+	 */
+	static <T extends Throwable> T raises(Class<T> type, Action action, String what) {
+		try {
+			action.run();
+		} catch (Throwable e) {
+			if (type.isInstance(e))
+				return type.cast(e);
+			throw new AssertionError("%s: expected %s, got %s".formatted(what, type.getSimpleName(), e), e);
+		}
+		throw new AssertionError("%s: expected %s".formatted(what, type.getSimpleName()));
+	}
+
+	/**
+	 * Unmounts a partition created by a test and deletes its file.
+	 */
+	static void delete(vPartition partition) throws IOException {
+		partition.forceUnmount();
+		Files.deleteIfExists(partitionFile(partition.getUuid().toString()));
+	}
+
+	static Path partitionFile(String uuid) {
+		return Path.of(uuid + ".vpar");
+	}
+
+	/**
+	 * @return The directory holding the test fixtures, set by the {@code test.resources} property.
+	 */
+	static Path resources() {
+		return Path.of(System.getProperty("test.resources", "test/resources"));
+	}
+}
@@ -0,0 +1,158 @@
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Reference counts of the blocks shared by copies: a copy shares the chain of its source, modifying either file
+ * gives it its own blocks, deleting them drops their references, and the counts survive a remount.
+ */
+class CopyRefcountTest {
+	private static final int fileBlocks = 10;
+
+	private static byte[] content(int blocks, int seed) {
+		byte[] data = new byte[blocks * vPartition.blockSize];
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) (i * 31 + seed);
+		return data;
+	}
+
+	/**
+	 * @return The blocks of the partition that are free or waiting to be trimmed, i.e. not used by any file.
+	 */
+	private static long unused(vPartition partition) {
+		return partition.fat().getFreeBlocks() + partition.fat().getRetiredBlocks();
+	}
+
+	private static vFile file(vPartition partition, String name) {
+		return partition.getRoot().getFileByNameAndType(name, "bin");
+	}
+
+	private static byte[] read(vPartition partition, String name) {
+		return partition.getFileData(partition.getRoot(), file(partition, name));
+	}
+
+	/**
+	 * Creates a partition holding {@code source.bin} and its copy, {@code copy.bin}.
+	 */
+	private static vPartition copied(byte[] data) throws Exception {
+		vPartition partition = new vPartition('c', 1_000_000);
+		vFolder root = partition.getRoot();
+		partition.saveFileData(root, partition.createFile(root, "source", "bin"), data);
+		partition.copyFile(root, file(partition, "source"), root, "copy.bin");
+		return partition;
+	}
+
+	static void testCopySharesBlocks() throws Exception {
+		vPartition partition = new vPartition('c', 1_000_000);
+		try {
+			vFolder root = partition.getRoot();
+			byte[] data = content(fileBlocks, 1);
+			partition.saveFileData(root, partition.createFile(root, "source", "bin"), data);
+			long unused = unused(partition);
+			partition.copyFile(root, file(partition, "source"), root, "copy.bin");
+
+			Check.equal(unused, unused(partition), "unused blocks after the copy");
+			Check.equal(fileBlocks, partition.fat().getSharedBlocks(), "shared blocks");
+			Check.equal(file(partition, "source").getStartBlock(), file(partition, "copy").getStartBlock(), "start block of the copy");
+			Check.equal(data, read(partition, "copy"), "content of the copy");
+		} finally {
+			Check.delete(partition);
+		}
+	}
+
+	static void testWriteUnsharesModifiedBlocks() throws Exception {
+		byte[] data = content(fileBlocks, 1);
+		vPartition partition = copied(data);
+		try {
+			long unused = unused(partition);
+			// Writing the fourth block copies the blocks up to it; the blocks after it stay shared
+			byte[] patch = {1, 2, 3};
+			int position = 3 * vPartition.blockSize + 10;
+			partition.pwrite(partition.getRoot(), file(partition, "copy"), position, patch, 0, patch.length);
+
+			Check.equal(unused - 4, unused(partition), "unused blocks after the write");
+			Check.equal(fileBlocks - 4, partition.fat().getSharedBlocks(), "shared blocks after the write");
+			Check.equal(data, read(partition, "source"), "content of the source");
+			byte[] expected = data.clone();
+			System.arraycopy(patch, 0, expected, position, patch.length);
+			Check.equal(expected, read(partition, "copy"), "content of the copy");
+
+			// The source's blocks before the written one are its own again
+			int block = file(partition, "source").getStartBlock();
+			for (int i = 0; i < fileBlocks; i++) {
+				Check.equal(i >= 4, partition.fat().isShared(block), "sharing of block %d of the source".formatted(i));
+				block = partition.fat().getNextBlock(block);
+			}
+		} finally {
+			Check.delete(partition);
+		}
+	}
+
+	static void testAppendUnsharesTheChain() throws Exception {
+		byte[] data = content(fileBlocks, 1);
+		vPartition partition = copied(data);
+		try {
+			byte[] more = content(2, 7);
+			try (OutputStream out = partition.openOutputStream(partition.getRoot(), file(partition, "copy"), true)) {
+				out.write(more);
+			}
+			Check.equal(0, partition.fat().getSharedBlocks(), "shared blocks after the append");
+			Check.equal(data, read(partition, "source"), "content of the source");
+			byte[] expected = Arrays.copyOf(data, data.length + more.length);
+			System.arraycopy(more, 0, expected, data.length, more.length);
+			Check.equal(expected, read(partition, "copy"), "content of the copy");
+		} finally {
+			Check.delete(partition);
+		}
+	}
+
+	static void testDeleteDropsReferences() throws Exception {
+		vPartition partition = new vPartition('c', 1_000_000);
+		try {
+			vFolder root = partition.getRoot();
+			long empty = unused(partition);
+			byte[] data = content(fileBlocks, 1);
+			partition.saveFileData(root, partition.createFile(root, "source", "bin"), data);
+			partition.copyFile(root, file(partition, "source"), root, "copy.bin");
+			partition.copyFile(root, file(partition, "copy"), root, "second.bin");
+			int start = file(partition, "source").getStartBlock();
+
+			partition.deleteFile(root, file(partition, "source"));
+			Check.check(partition.fat().isShared(start), "the blocks are still shared by both copies");
+			Check.equal(data, read(partition, "second"), "content of the second copy");
+			partition.deleteFile(root, file(partition, "copy"));
+			Check.check(!partition.fat().isShared(start), "the blocks belong to the second copy only");
+			Check.check(partition.fat().isAllocated(start), "the blocks are still allocated");
+			Check.equal(empty - fileBlocks, unused(partition), "unused blocks while a copy is left");
+			Check.equal(data, read(partition, "second"), "content of the second copy");
+			partition.deleteFile(root, file(partition, "second"));
+			Check.equal(empty, unused(partition), "unused blocks once every copy is deleted");
+		} finally {
+			Check.delete(partition);
+		}
+	}
+
+	static void testReferencesSurviveRemount() throws Exception {
+		byte[] data = content(fileBlocks, 1);
+		vPartition partition = copied(data);
+		String uuid = partition.getUuid().toString();
+		try {
+			partition.save();
+			partition.forceUnmount();
+
+			partition = new vPartition(uuid);
+			Check.equal(fileBlocks, partition.fat().getSharedBlocks(), "shared blocks after a remount");
+			// Still copied on write: the source keeps its content
+			byte[] patch = {9};
+			partition.pwrite(partition.getRoot(), file(partition, "copy"), 0, patch, 0, 1);
+			partition.deleteFile(partition.getRoot(), file(partition, "copy"));
+			partition.save();
+			partition.forceUnmount();
+
+			partition = new vPartition(uuid);
+			Check.equal(0, partition.fat().getSharedBlocks(), "shared blocks once the copy is deleted");
+			Check.equal(data, read(partition, "source"), "content of the source");
+		} finally {
+			Check.delete(partition);
+		}
+	}
+}
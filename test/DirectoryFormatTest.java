@@ -0,0 +1,135 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Round-trips of the directory formats: the directory blocks of a folder, the tree encoding of snapshots,
+ * and the folders of a saved and remounted partition.
+ */
+class DirectoryFormatTest {
+	/**
+	 * Builds a folder holding files with every field of an entry set, an empty sub-folder,
+	 * and a sub-folder holding a file of its own.
+	 */
+	private static vFolder sampleFolder() {
+		vFolder root = new vFolder("root", null);
+		vFile file = new vFile("notes", "txt", root);
+		file.setSize(3 * vPartition.blockSize + 5);
+		file.setNumOfBlocks(4);
+		file.setExtents(List.of(new Extent(10, 3), new Extent(40, 1)));
+		file.setWritePermission(false);
+		file.setExecutePermission(true);
+		root.createEntry(file, 10);
+		// A file without content and without extents, and a name using more than ASCII
+		root.createEntry(new vFile("résumé", "md", root), -1);
+		root.createEntry(new vFolder("empty", root), -1);
+		vFolder sub = new vFolder("sub", root);
+		root.createEntry(sub, -1);
+		vFile nested = new vFile("data", "bin", sub);
+		nested.setSize(1);
+		nested.setNumOfBlocks(1);
+		nested.setExtents(List.of(new Extent(7, 1)));
+		sub.createEntry(nested, 7);
+		return root;
+	}
+
+	private static void assertSameEntry(vFile expected, vFile actual) {
+		String name = expected.getFullName();
+		Check.check(actual != null, name + " is missing");
+		Check.equal(expected instanceof vFolder, actual instanceof vFolder, "kind of " + name);
+		Check.equal(expected.getName(), actual.getName(), "name of " + name);
+		Check.equal(expected.getType(), actual.getType(), "type of " + name);
+		Check.equal(expected.getSize(), actual.getSize(), "size of " + name);
+		Check.equal(expected.getStartBlock(), actual.getStartBlock(), "start block of " + name);
+		Check.equal(expected.getNumOfBlocks(), actual.getNumOfBlocks(), "number of blocks of " + name);
+		Check.equal(expected.getExtents(), actual.getExtents(), "extents of " + name);
+		Check.equal(expected.getPermissionString(), actual.getPermissionString(), "permissions of " + name);
+		Check.equal(expected.getCreationTime(), actual.getCreationTime(), "creation time of " + name);
+		Check.equal(expected.getModificationTime(), actual.getModificationTime(), "modification time of " + name);
+		Check.equal(expected.getAccessTime(), actual.getAccessTime(), "access time of " + name);
+	}
+
+	/**
+	 * Compares the entries of two folders, and with {@code deep}, the entries of their sub-folders.
+	 */
+	private static void assertSameFolder(vFolder expected, vFolder actual, boolean deep) {
+		Check.equal(expected.getFiles().size(), actual.getFiles().size(), "entries of " + expected.getName());
+		for (vFile file : expected.getFiles()) {
+			vFile read = file instanceof vFolder
+					? actual.getSubFolderByName(file.getName())
+					: actual.getFileByNameAndType(file.getName(), file.getType());
+			assertSameEntry(file, read);
+			Check.check(read.getLocation() == actual, "location of " + file.getFullName());
+			if (deep && file instanceof vFolder folder)
+				assertSameFolder(folder, (vFolder) read, true);
+		}
+	}
+
+	static void testFolderRoundTrip() throws IOException {
+		vFolder root = sampleFolder();
+		vFolder read = vFolder.readRoot(root.encode(), null);
+		assertSameEntry(root, read);
+		assertSameFolder(root, read, false);
+		// Sub-folders are read with their own blocks
+		Check.check(!read.getSubFolderByName("sub").isLoaded(), "a sub-folder is loaded on first access");
+	}
+
+	static void testReloadKeepsSubFolders() throws IOException {
+		vFolder root = sampleFolder();
+		byte[] image = root.encode();
+		vFolder read = vFolder.readRoot(image, null);
+		vFolder sub = read.getSubFolderByName("sub");
+		read.evict();
+		Check.check(!read.isLoaded(), "an evicted folder drops its entries");
+		read.load(image);
+		assertSameFolder(root, read, false);
+		Check.equal(image, read.getDiskImage(), "image of the loaded folder");
+		Check.check(read.getSubFolderByName("sub") == sub, "a reloaded folder keeps its sub-folders");
+	}
+
+	static void testTreeRoundTrip() throws IOException {
+		vFolder root = sampleFolder();
+		vFolder read = vFolder.readTree(root.encodeTree(), null);
+		assertSameEntry(root, read);
+		assertSameFolder(root, read, true);
+	}
+
+	static void testOtherImagesAreRejected() throws IOException {
+		vFolder root = sampleFolder();
+		byte[] tree = root.encodeTree();
+		Check.raises(IOException.class, () -> vFolder.readRoot(tree, null), "tree read as a folder");
+		byte[] folder = root.encode();
+		Check.raises(IOException.class, () -> vFolder.readTree(folder, null), "folder read as a tree");
+		byte[] truncated = new byte[folder.length - 1];
+		System.arraycopy(folder, 0, truncated, 0, truncated.length);
+		Check.raises(IOException.class, () -> vFolder.readRoot(truncated, null), "truncated folder");
+	}
+
+	static void testSavedPartitionFolders() throws Exception {
+		vPartition partition = new vPartition('d', 2_000_000);
+		String uuid = partition.getUuid().toString();
+		try {
+			vFolder root = partition.getRoot();
+			partition.createFolder(root, "docs");
+			vFolder docs = root.getSubFolderByName("docs");
+			partition.createFolder(docs, "deep");
+			// Enough entries to take a chain of several directory blocks
+			for (int i = 0; i < 100; i++)
+				partition.saveFileData(docs, partition.createFile(docs, "file" + i, "txt"), ("file " + i).getBytes());
+			vFolder deep = docs.getSubFolderByName("deep");
+			partition.saveFileData(deep, partition.createFile(deep, "n", "md"), "nested".getBytes());
+			partition.save();
+			List<String> listing = new ArrayList<>(partition.listTree(root));
+			partition.forceUnmount();
+
+			vPartition mounted = new vPartition(uuid);
+			partition = mounted;
+			Check.equal(listing, mounted.listTree(mounted.getRoot()), "listing of the remounted partition");
+			vFolder read = mounted.getFolderByPath("/docs/deep");
+			Check.equal("nested", new String(mounted.getFileData(read, read.getFileByNameAndType("n", "md"))),
+					"content of a nested file");
+		} finally {
+			Check.delete(partition);
+		}
+	}
+}
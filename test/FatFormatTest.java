@@ -0,0 +1,167 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.List;
+
+/**
+ * Round-trips of the binary FAT format: pages, reference counts, the legacy serialized form it replaces,
+ * and the table of a saved partition.
+ */
+class FatFormatTest {
+	private static final int pageSize = FileAllocationTable.entriesPerPage * FileAllocationTable.bytesPerEntry;
+
+	/**
+	 * Builds a table holding a fragmented chain, a contiguous chain and a single block, with free blocks between them.
+	 */
+	private static FileAllocationTable sampleTable(int numBlocks) {
+		FileAllocationTable fat = new FileAllocationTable(numBlocks);
+		List<Extent> first = fat.allocateExtents(10);
+		fat.allocateExtents(300);
+		fat.allocateBlock();
+		// Free every other block of the first chain, then fill the holes with a fragmented chain
+		for (int block = first.get(0).start(); block < first.get(0).end(); block += 2)
+			fat.deallocateBlock(block);
+		fat.allocateExtents(5);
+		return fat;
+	}
+
+	private static byte[] encode(FileAllocationTable fat) {
+		int pages = Math.ceilDiv(fat.getNumBlocks(), FileAllocationTable.entriesPerPage);
+		byte[] region = new byte[pages * pageSize];
+		for (int page = 0; page < pages; page++)
+			fat.encodePage(page, region, page * pageSize);
+		return region;
+	}
+
+	private static void assertSameTable(FileAllocationTable expected, FileAllocationTable actual) {
+		Check.equal(expected.getFreeBlocks(), actual.getFreeBlocks(), "free blocks");
+		Check.equal(expected.getNumBlocks(), actual.getNumBlocks(), "number of blocks");
+		for (int block = 0; block < expected.getNumBlocks(); block++) {
+			Check.equal(expected.isAllocated(block), actual.isAllocated(block), "allocation of block " + block);
+			Check.equal(expected.getNextBlock(block), actual.getNextBlock(block), "next block of " + block);
+		}
+	}
+
+	/**
+	 * Compares the table of a partition with the table read from its disk: the blocks of deleted files are free
+	 * on disk, but stay allocated in memory while they're retired, until they're trimmed.
+	 */
+	private static void assertSavedTable(FileAllocationTable inMemory, FileAllocationTable onDisk) {
+		int retired = 0;
+		for (int block = 0; block < inMemory.getNumBlocks(); block++) {
+			if (onDisk.isAllocated(block)) {
+				Check.check(inMemory.isAllocated(block), "block %d is allocated on disk only".formatted(block));
+				Check.equal(inMemory.getNextBlock(block), onDisk.getNextBlock(block), "next block of " + block);
+			} else if (inMemory.isAllocated(block)) {
+				retired++;
+			}
+		}
+		Check.equal(inMemory.getRetiredBlocks(), retired, "retired blocks");
+	}
+
+	static void testPagesRoundTrip() {
+		// Not a multiple of the page size, the last page is partial
+		FileAllocationTable fat = sampleTable(1000);
+		FileAllocationTable loaded = new FileAllocationTable(encode(fat), fat.getNumBlocks());
+		assertSameTable(fat, loaded);
+		Check.check(loaded.getDirtyPages().isEmpty(), "a loaded table has no dirty pages");
+	}
+
+	static void testEntriesAreLittleEndianSlots() {
+		FileAllocationTable fat = new FileAllocationTable(FileAllocationTable.entriesPerPage * 2);
+		int block = FileAllocationTable.entriesPerPage + 3;
+		fat.setNextBlock(block, 0x01020304);
+		byte[] region = encode(fat);
+		int slot = block * FileAllocationTable.bytesPerEntry;
+		Check.equal(4, region[slot], "low byte of the entry");
+		Check.equal(1, region[slot + 3], "high byte of the entry");
+		Check.equal(FileAllocationTable.FREE, region[0], "low byte of a free entry");
+	}
+
+	static void testLoadedTableAllocatesFreeBlocksOnly() {
+		FileAllocationTable fat = sampleTable(1000);
+		FileAllocationTable loaded = new FileAllocationTable(encode(fat), fat.getNumBlocks());
+		int free = loaded.getFreeBlocks();
+		for (Extent extent : loaded.allocateExtents(free))
+			for (int block = extent.start(); block < extent.end(); block++)
+				Check.check(!fat.isAllocated(block), "block %d was already allocated".formatted(block));
+		Check.equal(0, loaded.getFreeBlocks(), "free blocks once the table is full");
+	}
+
+	static void testReferencesRoundTrip() throws Exception {
+		FileAllocationTable fat = new FileAllocationTable(200);
+		List<Extent> chain = fat.allocateExtents(20);
+		int start = chain.get(0).start();
+		// A run of blocks sharing a count, and a block with more references
+		for (int block = start; block < start + 8; block++)
+			fat.shareBlock(block);
+		fat.shareBlock(start + 12);
+		fat.shareBlock(start + 12);
+		fat.shareBlock(start + 12);
+		Check.check(fat.referencesChanged(), "sharing blocks changes the reference counts");
+		byte[] image = fat.encodeReferences();
+		Check.check(!fat.referencesChanged(), "encoding saves the reference counts");
+
+		FileAllocationTable loaded = new FileAllocationTable(encode(fat), fat.getNumBlocks());
+		loaded.loadReferences(image);
+		Check.equal(fat.getSharedBlocks(), loaded.getSharedBlocks(), "shared blocks");
+		for (int block = start; block < start + 20; block++)
+			Check.equal(fat.isShared(block), loaded.isShared(block), "sharing of block " + block);
+		// Every extra reference is dropped before the block itself is freed
+		for (int i = 0; i < 3; i++)
+			Check.check(!loaded.releaseBlock(start + 12), "a shared block is kept");
+		Check.check(loaded.releaseBlock(start + 12), "the last reference frees the block");
+		Check.check(!loaded.isAllocated(start + 12), "the released block is free");
+	}
+
+	static void testCorruptedReferencesAreRejected() {
+		FileAllocationTable fat = new FileAllocationTable(10);
+		byte[] image = fat.encodeReferences();
+		image[0] ^= 1;
+		Check.raises(IOException.class, () -> new FileAllocationTable(10).loadReferences(image), "bad magic");
+	}
+
+	static void testLegacySerializedTable() throws Exception {
+		FileAllocationTable fat = sampleTable(700);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(fat);
+		}
+		FileAllocationTable legacy;
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+			legacy = (FileAllocationTable) in.readObject();
+		}
+		// As migrated by the partition: copied, then written in the binary format
+		FileAllocationTable migrated = new FileAllocationTable(legacy);
+		assertSameTable(fat, migrated);
+		assertSameTable(fat, new FileAllocationTable(encode(migrated), migrated.getNumBlocks()));
+	}
+
+	static void testSavedPartitionTable() throws Exception {
+		vPartition partition = new vPartition('f', 2_000_000);
+		String uuid = partition.getUuid().toString();
+		try {
+			vFolder root = partition.getRoot();
+			byte[] data = new byte[vPartition.blockSize * 40 + 17];
+			for (int i = 0; i < data.length; i++)
+				data[i] = (byte) i;
+			for (int i = 0; i < 5; i++)
+				partition.saveFileData(root, partition.createFile(root, "file" + i, "bin"), data);
+			partition.deleteFile(root, root.getFileByNameAndType("file2", "bin"));
+			partition.save();
+			FileAllocationTable saved = partition.fat();
+			assertSavedTable(saved, partition.deserializeFat());
+			partition.forceUnmount();
+
+			vPartition mounted = new vPartition(uuid);
+			partition = mounted;
+			assertSavedTable(saved, mounted.fat());
+			Check.equal(data, mounted.getFileData(mounted.getRoot(), mounted.getRoot().getFileByNameAndType("file4", "bin")),
+					"content of a file");
+		} finally {
+			Check.delete(partition);
+		}
+	}
+}
@@ -0,0 +1,179 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Replay of the journal after a crash: committed transactions are applied again on mount, while a torn or
+ * corrupted transaction, and the transactions after it, are not.
+ */
+class JournalReplayTest {
+	private static final int blockSize = vPartition.blockSize;
+	private static final int journalStart = 1;
+	private static final int journalBlocks = 16;
+	private static final int homeBlock = 20;
+
+	/**
+	 * How the device fails, from the point of view of the next mount.
+	 */
+	private enum Fault {
+		NONE,
+		// The machine stops once the log is written: writes outside of the log never reach the disk
+		LOST_AFTER_LOG,
+		// Same, and a log write of several blocks only reaches the disk for its first block
+		TORN_LOG,
+		// Writes outside of the log fail
+		FAILED_HOME
+	}
+
+	/**
+	 * A device in memory, failing as told by {@link #fault}.
+	 */
+	private static final class MemoryDevice implements BlockDevice {
+		private final byte[] data = new byte[32 * blockSize];
+		private volatile Fault fault = Fault.NONE;
+
+		private static boolean inLog(long position) {
+			return position >= (long) (journalStart + 1) * blockSize && position < (long) (journalStart + journalBlocks) * blockSize;
+		}
+
+		@Override
+		public synchronized void read(long position, byte[] dest, int offset, int length) {
+			System.arraycopy(data, (int) position, dest, offset, length);
+		}
+
+		@Override
+		public synchronized void write(long position, byte[] src, int offset, int length) throws IOException {
+			boolean log = inLog(position);
+			switch (fault) {
+				case LOST_AFTER_LOG:
+					if (!log)
+						return;
+					break;
+				case TORN_LOG:
+					if (!log)
+						return;
+					length = Math.min(length, blockSize);
+					break;
+				case FAILED_HOME:
+					if (!log)
+						throw new IOException("Write failed at " + position);
+					break;
+				default:
+					break;
+			}
+			System.arraycopy(src, offset, data, (int) position, length);
+		}
+
+		@Override
+		public void force() {
+		}
+
+		@Override
+		public long size() {
+			return data.length;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	private static Journal open(MemoryDevice device) throws IOException {
+		return new Journal(device, blockSize, journalStart, journalBlocks);
+	}
+
+	private static byte[] block(MemoryDevice device, int block) {
+		byte[] content = new byte[blockSize];
+		device.read((long) block * blockSize, content, 0, blockSize);
+		return content;
+	}
+
+	private static byte[] filled(int length, int value) {
+		byte[] bytes = new byte[length];
+		Arrays.fill(bytes, (byte) value);
+		return bytes;
+	}
+
+	static void testCheckpointedTransactionsAreNotReplayed() throws IOException {
+		MemoryDevice device = new MemoryDevice();
+		Journal journal = open(device);
+		journal.commit(List.of(new Journal.Change(homeBlock, 0, filled(8, 1))));
+		journal.close();
+		// Rewritten in place since: a replay would bring the old content back
+		device.write((long) homeBlock * blockSize, filled(8, 2), 0, 8);
+		Check.equal(0, open(device).replay(), "replayed transactions");
+		Check.equal(2, block(device, homeBlock)[0], "content of the home block");
+	}
+
+	static void testCommittedTransactionIsReplayed() throws IOException {
+		MemoryDevice device = new MemoryDevice();
+		Journal journal = open(device);
+		device.fault = Fault.LOST_AFTER_LOG;
+		journal.commit(List.of(
+				new Journal.Change(homeBlock, 4, filled(8, 1)),
+				new Journal.Change(homeBlock + 1, blockSize - 2, filled(2, 3))));
+		Check.equal(0, block(device, homeBlock)[4], "content of the home block before the mount");
+
+		device.fault = Fault.NONE;
+		Check.equal(1, open(device).replay(), "replayed transactions");
+		byte[] home = block(device, homeBlock);
+		Check.equal(filled(8, 1), Arrays.copyOfRange(home, 4, 12), "replayed change");
+		Check.equal(0, home[3], "byte before the change");
+		Check.equal(3, block(device, homeBlock + 1)[blockSize - 1], "replayed change of the second block");
+		// The replay was checkpointed
+		Check.equal(0, open(device).replay(), "transactions replayed by the next mount");
+	}
+
+	static void testTornTransactionIsNotReplayed() throws IOException {
+		MemoryDevice device = new MemoryDevice();
+		Journal journal = open(device);
+		device.fault = Fault.TORN_LOG;
+		journal.commit(List.of(new Journal.Change(homeBlock, 0, filled(8, 1))));
+		// Longer than a block: only the first block of the transaction reaches the log
+		journal.commit(List.of(new Journal.Change(homeBlock + 1, 0, filled(blockSize, 2))));
+		journal.commit(List.of(new Journal.Change(homeBlock + 2, 0, filled(8, 3))));
+
+		device.fault = Fault.NONE;
+		Check.equal(1, open(device).replay(), "replayed transactions");
+		Check.equal(1, block(device, homeBlock)[0], "content of the first home block");
+		Check.equal(new byte[blockSize], block(device, homeBlock + 1), "home block of the torn transaction");
+		// Replay stops at the torn transaction
+		Check.equal(0, block(device, homeBlock + 2)[0], "home block of the transaction after it");
+	}
+
+	static void testCorruptedTransactionStopsReplay() throws IOException {
+		MemoryDevice device = new MemoryDevice();
+		Journal journal = open(device);
+		device.fault = Fault.LOST_AFTER_LOG;
+		for (int i = 0; i < 3; i++)
+			journal.commit(List.of(new Journal.Change(homeBlock + i, 0, filled(8, i + 1))));
+
+		// Each transaction takes a block of the log; flip a byte of the payload of the second one
+		device.fault = Fault.NONE;
+		long payload = (long) (journalStart + 2) * blockSize + 24;
+		byte[] bad = {(byte) ~block(device, journalStart + 2)[24]};
+		device.write(payload, bad, 0, 1);
+		Check.equal(1, open(device).replay(), "replayed transactions");
+		Check.equal(1, block(device, homeBlock)[0], "content of the first home block");
+		Check.equal(0, block(device, homeBlock + 1)[0], "home block of the corrupted transaction");
+		Check.equal(0, block(device, homeBlock + 2)[0], "home block of the transaction after it");
+	}
+
+	static void testDiscardedTransactionIsNotReplayed() throws IOException {
+		for (boolean discard : new boolean[]{false, true}) {
+			MemoryDevice device = new MemoryDevice();
+			Journal journal = open(device);
+			device.fault = Fault.FAILED_HOME;
+			Check.raises(IOException.class, () -> journal.commit(List.of(new Journal.Change(homeBlock, 0, filled(8, 1)))),
+					"commit with a failing home block");
+
+			// The next save empties the log, then writes the metadata in place
+			device.fault = Fault.NONE;
+			if (discard)
+				journal.discard();
+			device.write((long) homeBlock * blockSize, filled(8, 2), 0, 8);
+			Check.equal(discard ? 0 : 1, open(device).replay(), "replayed transactions, discard " + discard);
+			Check.equal(discard ? 2 : 1, block(device, homeBlock)[0], "content of the home block, discard " + discard);
+		}
+	}
+}
@@ -0,0 +1,100 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Mounts a partition written before the binary FAT and the directory blocks: the serialized FAT and root tree
+ * are migrated on mount. The fixture, {@code baseline.vpar.gz}, was made by the shell script {@code baseline.txt}.
+ */
+class MigrationTest {
+	private static final String baselineUuid = "cbc8eca2-3740-4fb0-95e0-7f40998b8c39";
+
+	/**
+	 * Copies the baseline partition to the working directory.
+	 */
+	private static void restoreBaseline() throws IOException {
+		try (InputStream in = new GZIPInputStream(Files.newInputStream(Check.resources().resolve("baseline.vpar.gz")))) {
+			Files.copy(in, Check.partitionFile(baselineUuid), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private static String read(vPartition partition, String path) {
+		vFile file = partition.getFileByPath(path);
+		Check.check(file != null, path + " is missing");
+		return new String(partition.getFileData(file.getLocation(), file));
+	}
+
+	/**
+	 * Checks the content written by the baseline script.
+	 */
+	private static void assertBaselineContent(vPartition partition) {
+		Check.equal('L', partition.getPartitionLabel(), "label");
+		Check.check(partition.getFolderByPath("/empty").getFiles().isEmpty(), "/empty is empty");
+		Check.equal(5, partition.getFolderByPath("/docs").getFiles().size(), "entries of /docs");
+		Check.equal("hello world", read(partition, "/docs/a.txt"), "content of a.txt");
+		Check.equal("", read(partition, "/docs/b.txt"), "content of b.txt");
+		Check.equal("read only", read(partition, "/docs/ro.txt"), "content of ro.txt");
+		Check.equal("nested", read(partition, "/docs/deep/n.md"), "content of n.md");
+		// Spans several blocks
+		StringBuilder big = new StringBuilder();
+		for (int i = 0; i < 1500; i++)
+			big.append((char) ('a' + i % 26));
+		Check.equal(big.toString(), read(partition, "/docs/big.txt"), "content of big.txt");
+		Check.check(!partition.getFileByPath("/docs/ro.txt").hasWritePermission(), "ro.txt is write-protected");
+	}
+
+	static void testBaselineMigration() throws Exception {
+		restoreBaseline();
+		vPartition partition = new vPartition(baselineUuid);
+		try {
+			assertBaselineContent(partition);
+			FileAllocationTable fat = partition.fat();
+			long freeBlocks = fat.getFreeBlocks();
+			// The migration saved the partition: the FAT on disk is read in the binary format
+			FileAllocationTable onDisk = partition.deserializeFat();
+			Check.equal(freeBlocks, onDisk.getFreeBlocks(), "free blocks on disk");
+			for (int block = 0; block < fat.getNumBlocks(); block++)
+				Check.equal(fat.getNextBlock(block), onDisk.getNextBlock(block), "next block of " + block);
+			partition.forceUnmount();
+
+			// Mounted again, nothing is left to migrate
+			partition = new vPartition(baselineUuid);
+			assertBaselineContent(partition);
+			Check.equal(freeBlocks, partition.fat().getFreeBlocks(), "free blocks after a second mount");
+		} finally {
+			Check.delete(partition);
+		}
+	}
+
+	static void testMigratedPartitionIsWritable() throws Exception {
+		restoreBaseline();
+		vPartition partition = new vPartition(baselineUuid);
+		try {
+			vFolder docs = partition.getFolderByPath("/docs");
+			vFile ro = partition.getFileByPath("/docs/ro.txt");
+			Check.raises(SecurityException.class, () -> partition.saveFileData(docs, ro, new byte[1]), "write to ro.txt");
+			partition.saveFileData(docs, partition.getFileByPath("/docs/a.txt"), "changed".getBytes());
+			partition.deleteFile(docs, partition.getFileByPath("/docs/big.txt"));
+			partition.createFolder(partition.getRoot(), "new");
+			vFolder created = partition.getFolderByPath("/new");
+			partition.saveFileData(created, partition.createFile(created, "c", "txt"), "created".getBytes());
+			partition.save();
+			partition.forceUnmount();
+
+			vPartition mounted = new vPartition(baselineUuid);
+			try {
+				Check.equal("changed", read(mounted, "/docs/a.txt"), "content of a.txt");
+				Check.check(mounted.getFileByPath("/docs/big.txt") == null, "big.txt was deleted");
+				Check.equal("created", read(mounted, "/new/c.txt"), "content of a new file");
+				Check.equal("nested", read(mounted, "/docs/deep/n.md"), "content of n.md");
+			} finally {
+				Check.delete(mounted);
+			}
+		} finally {
+			Files.deleteIfExists(Check.partitionFile(baselineUuid));
+		}
+	}
+}
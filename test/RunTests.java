@@ -0,0 +1,52 @@
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Runs the tests: every static method named {@code test...} of the test classes, in name order.
+ * Partitions are created in the working directory, so run it from a scratch directory:
+ * <pre>
+ * java -cp out -Dtest.resources=test/resources RunTests [class...]
+ * </pre>
+ * Exits with status 1 if a test fails.
+ */
+public class RunTests {
+	private static final List<Class<?>> testClasses = List.of(
+			FatFormatTest.class,
+			DirectoryFormatTest.class,
+			MigrationTest.class,
+			JournalReplayTest.class,
+			CopyRefcountTest.class
+	);
+
+	public static void main(String[] args) throws Exception {
+		int passed = 0, failed = 0;
+		for (Class<?> testClass : testClasses) {
+			if (args.length > 0 && !Arrays.asList(args).contains(testClass.getSimpleName()))
+				continue;
+			Method[] methods = testClass.getDeclaredMethods();
+			Arrays.sort(methods, Comparator.comparing(Method::getName));
+			for (Method method : methods) {
+				if (!method.getName().startsWith("test") || !Modifier.isStatic(method.getModifiers()))
+					continue;
+				String name = testClass.getSimpleName() + "." + method.getName();
+				try {
+					method.setAccessible(true);
+					method.invoke(null);
+					passed++;
+					System.out.println("PASS " + name);
+				} catch (InvocationTargetException e) {
+					failed++;
+					System.out.println("FAIL " + name + ": " + e.getCause());
+					e.getCause().printStackTrace(System.out);
+				}
+			}
+		}
+		System.out.printf("%d passed, %d failed%n", passed, failed);
+		if (failed > 0)
+			System.exit(1);
+	}
+}